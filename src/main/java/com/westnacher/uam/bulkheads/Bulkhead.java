@@ -0,0 +1,107 @@
+package com.westnacher.uam.bulkheads;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Admits at most maxConcurrent callers at a time. Up to maxQueue more wait in
+ * arrival order for at most maxWait, everyone beyond that is turned away at
+ * once.
+ */
+public class Bulkhead {
+
+	private final String name;
+	private final int maxConcurrent;
+	private final int maxQueue;
+	private final long maxWaitNanos;
+	private final Duration retryAfter;
+	private final Semaphore permits;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final Counter rejected;
+
+	public Bulkhead(String name, int maxConcurrent, int maxQueue, Duration maxWait, Duration retryAfter,
+			MeterRegistry meterRegistry) {
+		if (maxConcurrent < 1 || maxQueue < 0) {
+			throw new IllegalArgumentException("Bulkhead " + name
+					+ " needs max-concurrent of at least 1 and a max-queue that is not negative");
+		}
+		this.name = name;
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueue = maxQueue;
+		this.maxWaitNanos = maxWait.toNanos();
+		this.retryAfter = retryAfter;
+		this.permits = new Semaphore(maxConcurrent, true);
+		this.rejected = meterRegistry.counter("uam.bulkhead.rejected", "bulkhead", name);
+		Gauge.builder("uam.bulkhead.active", this, Bulkhead::active).tag("bulkhead", name).register(meterRegistry);
+		Gauge.builder("uam.bulkhead.queued", queued, AtomicInteger::get).tag("bulkhead", name)
+				.register(meterRegistry);
+	}
+
+	/**
+	 * Whether the caller got in, in which case it must call {@link #exit()} when
+	 * done.
+	 */
+	public boolean tryEnter() {
+		try {
+			// a timed acquire, unlike tryAcquire(), does not barge ahead of the queue
+			if (permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+				return true;
+			}
+			if (queued.incrementAndGet() > maxQueue) {
+				queued.decrementAndGet();
+				rejected.increment();
+				return false;
+			}
+			try {
+				if (permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS)) {
+					return true;
+				}
+			} finally {
+				queued.decrementAndGet();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		rejected.increment();
+		return false;
+	}
+
+	public void exit() {
+		permits.release();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	public int getMaxQueue() {
+		return maxQueue;
+	}
+
+	public Duration getRetryAfter() {
+		return retryAfter;
+	}
+
+	public int active() {
+		return maxConcurrent - permits.availablePermits();
+	}
+
+	public int queued() {
+		return queued.get();
+	}
+
+	public double rejected() {
+		return rejected.count();
+	}
+
+}
@@ -0,0 +1,65 @@
+package com.westnacher.uam.bulkheads;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+/**
+ * Partitions the connections to one database by bulkhead. Each bulkhead takes
+ * connections from a pool of its own, everything outside of a bulkhead from
+ * the shared pool, so exports waiting for connections never hold up profile
+ * lookups and the other way around.
+ */
+public class BulkheadDataSource extends AbstractDataSource implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(BulkheadDataSource.class);
+
+	private final Map<Bulkheads.Type, DataSource> pools;
+	private final DataSource shared;
+
+	public BulkheadDataSource(Map<Bulkheads.Type, DataSource> pools, DataSource shared) {
+		this.pools = new EnumMap<>(pools);
+		this.shared = shared;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return pool().getConnection();
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		return pool().getConnection(username, password);
+	}
+
+	@Override
+	public void close() {
+		List<DataSource> all = new ArrayList<>(pools.values());
+		all.add(shared);
+		for (DataSource pool : all) {
+			if (pool instanceof Closeable) {
+				try {
+					((Closeable) pool).close();
+				} catch (Exception ex) {
+					LOGGER.warn("Closing connection pool failed", ex);
+				}
+			}
+		}
+	}
+
+	DataSource pool() {
+		Bulkheads.Type type = Bulkheads.current();
+		return type == null ? shared : pools.getOrDefault(type, shared);
+	}
+
+}
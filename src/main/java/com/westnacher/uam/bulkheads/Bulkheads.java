@@ -0,0 +1,148 @@
+package com.westnacher.uam.bulkheads;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * One bulkhead per kind of request, so a burst of exports or batch writes
+ * cannot take the request threads and connections that profile lookups need.
+ * Together the bulkheads hold fewer requests than Tomcat has threads, so a
+ * flood of one kind always leaves threads to the others. Each bulkhead also
+ * has a connection pool of its own, see {@link BulkheadDataSource}.
+ * Configured under uam.bulkheads.&lt;name&gt;.
+ */
+@Component
+public class Bulkheads {
+
+	private static final ThreadLocal<Type> CURRENT = new ThreadLocal<>();
+
+	public enum Type {
+
+		// single users and small multi-gets, mostly answered from the cache
+		POINT_READS("point-reads", 40, 40, Duration.ofMillis(200), 4),
+		WRITES("writes", 10, 20, Duration.ofMillis(500), 4),
+		// pages, change feeds and exports
+		BULK("bulk", 4, 4, Duration.ofMillis(500), 2);
+
+		private final String name;
+		private final int maxConcurrent;
+		private final int maxQueue;
+		private final Duration maxWait;
+		private final int poolSize;
+
+		Type(String name, int maxConcurrent, int maxQueue, Duration maxWait, int poolSize) {
+			this.name = name;
+			this.maxConcurrent = maxConcurrent;
+			this.maxQueue = maxQueue;
+			this.maxWait = maxWait;
+			this.poolSize = poolSize;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	private final Map<Type, Bulkhead> bulkheads = new EnumMap<>(Type.class);
+	private final Map<Type, Integer> poolSizes = new EnumMap<>(Type.class);
+	private final int sharedPoolSize;
+
+	@Autowired
+	public Bulkheads(@Value("${uam.bulkheads.enabled:true}") boolean enabled,
+			@Value("${uam.bulkheads.retry-after:1s}") Duration retryAfter,
+			@Value("${uam.bulkheads.shared.pool-size:2}") int sharedPoolSize,
+			@Value("${server.tomcat.threads.max:200}") int requestThreads,
+			@Value("${uam.threads.virtual:false}") boolean virtualThreads, Environment environment,
+			MeterRegistry meterRegistry) {
+		this.sharedPoolSize = sharedPoolSize;
+		if (!enabled) {
+			return;
+		}
+		int admitted = 0;
+		for (Type type : Type.values()) {
+			String prefix = "uam.bulkheads." + type.getName() + ".";
+			Bulkhead bulkhead = new Bulkhead(type.getName(),
+					environment.getProperty(prefix + "max-concurrent", Integer.class, type.maxConcurrent),
+					environment.getProperty(prefix + "max-queue", Integer.class, type.maxQueue),
+					environment.getProperty(prefix + "max-wait", Duration.class, type.maxWait), retryAfter,
+					meterRegistry);
+			bulkheads.put(type, bulkhead);
+			poolSizes.put(type, environment.getProperty(prefix + "pool-size", Integer.class, type.poolSize));
+			admitted += bulkhead.getMaxConcurrent() + bulkhead.getMaxQueue();
+		}
+		// virtual threads are not pooled, there is no pool to run out of
+		if (!virtualThreads && admitted >= requestThreads) {
+			throw new IllegalStateException("The bulkheads together hold up to " + admitted
+					+ " running and queued requests but server.tomcat.threads.max is " + requestThreads
+					+ ", lower their max-concurrent and max-queue so that threads are left for the others");
+		}
+	}
+
+	/**
+	 * The bulkhead the current thread works for, null outside of any.
+	 */
+	public static Type current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Runs the work for the bulkhead, with its connections. Hand
+	 * {@link #current()} to it to carry the bulkhead to another thread.
+	 */
+	public static <T> T callWithin(Type type, Supplier<T> work) {
+		Type previous = CURRENT.get();
+		enter(type);
+		try {
+			return work.get();
+		} finally {
+			enter(previous);
+		}
+	}
+
+	/**
+	 * Marks the current thread as working for the bulkhead, null clears it.
+	 */
+	public static void enter(Type type) {
+		if (type == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(type);
+		}
+	}
+
+	public boolean isEnabled() {
+		return !bulkheads.isEmpty();
+	}
+
+	/**
+	 * The bulkhead of the type, null when bulkheads are disabled.
+	 */
+	public Bulkhead get(Type type) {
+		return bulkheads.get(type);
+	}
+
+	/**
+	 * Connections of the pool of the bulkhead, on every database.
+	 */
+	public int poolSize(Type type) {
+		return poolSizes.get(type);
+	}
+
+	/**
+	 * Connections of the pool used outside of any bulkhead, by background jobs
+	 * and endpoints without a bulkhead.
+	 */
+	public int sharedPoolSize() {
+		return sharedPoolSize;
+	}
+
+}
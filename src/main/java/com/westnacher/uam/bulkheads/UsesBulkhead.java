@@ -0,0 +1,20 @@
+package com.westnacher.uam.bulkheads;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Runs the annotated handler method within the given bulkhead, for as long
+ * as the request lasts including any asynchronous part.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface UsesBulkhead {
+
+	Bulkheads.Type value();
+
+}
@@ -0,0 +1,130 @@
+package com.westnacher.uam.caches;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter with 4-bit counters, so entries can be removed again. A counter
+ * that reaches 15 saturates and is never decremented, which can only cause
+ * false positives, never false negatives.
+ */
+public class CountingBloomFilter {
+
+	private static final int COUNTER_BITS = 4;
+	private static final int COUNTERS_PER_WORD = Long.SIZE / COUNTER_BITS;
+	private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+
+	private final AtomicLongArray words;
+	private final long counters;
+	private final int hashFunctions;
+	private final AtomicLong nonZeroCounters = new AtomicLong();
+
+	public CountingBloomFilter(long expectedInsertions, double falsePositiveRate) {
+		if (expectedInsertions < 1) {
+			throw new IllegalArgumentException("Expected insertions must be positive but was " + expectedInsertions);
+		}
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException(
+					"False positive rate must be between 0 and 1 exclusive but was " + falsePositiveRate);
+		}
+		long optimalCounters = (long) Math
+				.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		int words = (int) Math.min(Integer.MAX_VALUE - 8, (optimalCounters + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD);
+		this.words = new AtomicLongArray(words);
+		this.counters = (long) words * COUNTERS_PER_WORD;
+		this.hashFunctions = Math.max(1, (int) Math.round((double) counters / expectedInsertions * Math.log(2)));
+	}
+
+	public void add(String value) {
+		long[] hashes = hash(value);
+		for (int i = 0; i < hashFunctions; i++) {
+			update(index(hashes, i), 1);
+		}
+	}
+
+	public void remove(String value) {
+		long[] hashes = hash(value);
+		for (int i = 0; i < hashFunctions; i++) {
+			update(index(hashes, i), -1);
+		}
+	}
+
+	public boolean mightContain(String value) {
+		long[] hashes = hash(value);
+		for (int i = 0; i < hashFunctions; i++) {
+			if (counter(index(hashes, i)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public double fillRatio() {
+		return (double) nonZeroCounters.get() / counters;
+	}
+
+	public int getHashFunctions() {
+		return hashFunctions;
+	}
+
+	public long getCounters() {
+		return counters;
+	}
+
+	private long counter(long index) {
+		long word = words.get((int) (index / COUNTERS_PER_WORD));
+		return (word >>> shift(index)) & COUNTER_MASK;
+	}
+
+	private void update(long index, int delta) {
+		int wordIndex = (int) (index / COUNTERS_PER_WORD);
+		int shift = shift(index);
+		while (true) {
+			long word = words.get(wordIndex);
+			long value = (word >>> shift) & COUNTER_MASK;
+			if (value == COUNTER_MASK || (delta < 0 && value == 0)) {
+				return;
+			}
+			long updated = (word & ~(COUNTER_MASK << shift)) | ((value + delta) << shift);
+			if (words.compareAndSet(wordIndex, word, updated)) {
+				if (value == 0) {
+					nonZeroCounters.incrementAndGet();
+				} else if (value + delta == 0) {
+					nonZeroCounters.decrementAndGet();
+				}
+				return;
+			}
+		}
+	}
+
+	private static int shift(long index) {
+		return (int) (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+	}
+
+	private long index(long[] hashes, int i) {
+		return Math.floorMod(hashes[0] + i * hashes[1], counters);
+	}
+
+	// two independent 64-bit hashes combined as h1 + i * h2 (Kirsch-Mitzenmacher)
+	private static long[] hash(String value) {
+		long fnv = 0xcbf29ce484222325L;
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			fnv ^= b;
+			fnv *= 0x100000001b3L;
+		}
+		long h1 = mix(fnv);
+		long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L) | 1;
+		return new long[] { h1, h2 };
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
@@ -0,0 +1,134 @@
+package com.westnacher.uam.caches;
+
+import java.util.Locale;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.westnacher.uam.repositories.UserRepository;
+import com.westnacher.uam.shards.ShardRouting;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * The registered emails as this instance knows them: loaded at startup and
+ * kept up to date by the writes of this instance only. An email registered
+ * through another instance can be missing, so a miss is a hint that the
+ * database still has the last word on.
+ */
+@Component
+public class EmailBloomFilter {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(EmailBloomFilter.class);
+
+	private final boolean enabled;
+	private final CountingBloomFilter filter;
+	private final UserRepository userRepository;
+	private final ShardRouting shardRouting;
+	private final TransactionTemplate readOnlyTransaction;
+	private final Counter skippedLookups;
+
+	// until the registered emails are loaded every email may be registered
+	private volatile boolean loaded;
+
+	@Autowired
+	public EmailBloomFilter(@Value("${uam.bloom.emails.enabled:true}") boolean enabled,
+			@Value("${uam.bloom.emails.expected-insertions:1000000}") long expectedInsertions,
+			@Value("${uam.bloom.emails.false-positive-rate:0.01}") double falsePositiveRate,
+			UserRepository userRepository, ShardRouting shardRouting, PlatformTransactionManager transactionManager,
+			MeterRegistry meterRegistry) {
+		this.enabled = enabled;
+		this.filter = new CountingBloomFilter(enabled ? expectedInsertions : 1, falsePositiveRate);
+		this.userRepository = userRepository;
+		this.shardRouting = shardRouting;
+		this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+		this.readOnlyTransaction.setReadOnly(true);
+		this.skippedLookups = meterRegistry.counter("uam.emails.bloom.skipped.lookups");
+		Gauge.builder("uam.emails.bloom.fill.ratio", filter, CountingBloomFilter::fillRatio)
+				.register(meterRegistry);
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void loadInBackground() {
+		if (!enabled) {
+			return;
+		}
+		Thread loader = new Thread(this::load, "email-bloom-filter-loader");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	void load() {
+		try {
+			for (int shard = 0; shard < shardRouting.shardCount(); shard++) {
+				try (ShardRouting.Scope scope = shardRouting.enter(shard)) {
+					readOnlyTransaction.execute(status -> {
+						try (Stream<String> emails = userRepository.streamAllEmails()) {
+							emails.map(EmailBloomFilter::normalize).forEach(filter::add);
+						}
+						return null;
+					});
+				}
+			}
+			loaded = true;
+			LOGGER.info("Loaded registered emails into bloom filter, fill ratio {}", filter.fillRatio());
+		} catch (RuntimeException ex) {
+			LOGGER.error("Loading registered emails into bloom filter failed, lookups will not be skipped", ex);
+		}
+	}
+
+	public boolean mightBeRegistered(String email) {
+		if (!enabled || !loaded) {
+			return true;
+		}
+		boolean mightContain = filter.mightContain(normalize(email));
+		if (!mightContain) {
+			skippedLookups.increment();
+		}
+		return mightContain;
+	}
+
+	/**
+	 * Call before the email is written so that concurrent checks on this
+	 * instance do not miss it.
+	 */
+	public void add(String email) {
+		if (enabled) {
+			filter.add(normalize(email));
+		}
+	}
+
+	/**
+	 * Call only once the email is gone from the database. Removals that arrive
+	 * while the filter is loading are dropped, leaving a harmless false positive.
+	 */
+	public void remove(String email) {
+		if (enabled && loaded) {
+			filter.remove(normalize(email));
+		}
+	}
+
+	// the unique key compares emails ignoring case, so every case variant has to hit
+	private static String normalize(String email) {
+		return email.trim().toLowerCase(Locale.ROOT);
+	}
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	public double fillRatio() {
+		return filter.fillRatio();
+	}
+
+}
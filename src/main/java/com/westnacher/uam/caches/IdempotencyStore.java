@@ -0,0 +1,156 @@
+package com.westnacher.uam.caches;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.westnacher.uam.exceptions.AccountsManagerException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Outcomes of requests sent with an Idempotency-Key, so a retried request
+ * gets the original outcome instead of running again. A retry that arrives
+ * while the original is still running waits for its outcome. Client errors
+ * are kept like results, any other failure is forgotten so the next retry
+ * runs again.
+ *
+ * Keys live in memory on each instance, for at most the ttl, and the least
+ * recently used ones are dropped beyond the maximum.
+ */
+@Component
+public class IdempotencyStore {
+
+	public static final String NAME = "idempotency";
+	public static final String KEY_HEADER = "Idempotency-Key";
+
+	private static final int MAX_KEY_LENGTH = 255;
+
+	private final boolean enabled;
+	private final Cache<String, Outcome> outcomes;
+	private final ObjectMapper objectMapper;
+	private final Counter replays;
+
+	@Autowired
+	public IdempotencyStore(@Value("${uam.idempotency.enabled:true}") boolean enabled,
+			@Value("${uam.idempotency.max-keys:100000}") long maxKeys,
+			@Value("${uam.idempotency.ttl:24h}") Duration ttl, ObjectMapper objectMapper,
+			MeterRegistry meterRegistry) {
+		this(enabled, maxKeys, ttl, objectMapper, meterRegistry, Ticker.systemTicker());
+		CaffeineCacheMetrics.monitor(meterRegistry, outcomes, NAME);
+	}
+
+	IdempotencyStore(boolean enabled, long maxKeys, Duration ttl, ObjectMapper objectMapper,
+			MeterRegistry meterRegistry, Ticker ticker) {
+		this.enabled = enabled;
+		this.outcomes = Caffeine.newBuilder()
+				.maximumSize(maxKeys)
+				.expireAfterWrite(ttl)
+				.ticker(ticker)
+				.recordStats()
+				.build();
+		this.objectMapper = objectMapper;
+		this.replays = meterRegistry.counter("uam.idempotency.replays");
+	}
+
+	/**
+	 * Runs the action unless the key was already used for the same operation,
+	 * then returns or throws the outcome of that first run. Reusing a key for a
+	 * different request is rejected.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T execute(String operation, String key, Object request, Supplier<T> action)
+			throws AccountsManagerException {
+		if (key == null || !enabled) {
+			return action.get();
+		}
+		if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+			throw new AccountsManagerException(
+					KEY_HEADER + " must be between 1 and " + MAX_KEY_LENGTH + " characters long",
+					HttpStatus.BAD_REQUEST);
+		}
+		String storeKey = operation + " " + key;
+		Outcome outcome = new Outcome(fingerprint(request));
+		Outcome existing = outcomes.asMap().putIfAbsent(storeKey, outcome);
+		if (existing != null) {
+			if (!existing.fingerprint.equals(outcome.fingerprint)) {
+				throw new AccountsManagerException(KEY_HEADER + " " + key + " was already used for a different request",
+						HttpStatus.UNPROCESSABLE_ENTITY);
+			}
+			replays.increment();
+			return (T) await(existing.result);
+		}
+		try {
+			T value = action.get();
+			outcome.result.complete(value);
+			return value;
+		} catch (AccountsManagerException ex) {
+			if (!ex.getStatus().is4xxClientError()) {
+				outcomes.asMap().remove(storeKey, outcome);
+			}
+			outcome.result.completeExceptionally(ex);
+			throw ex;
+		} catch (RuntimeException | Error ex) {
+			outcomes.asMap().remove(storeKey, outcome);
+			outcome.result.completeExceptionally(ex);
+			throw ex;
+		}
+	}
+
+	public long estimatedSize() {
+		return outcomes.estimatedSize();
+	}
+
+	void cleanUp() {
+		outcomes.cleanUp();
+	}
+
+	private String fingerprint(Object request) {
+		try {
+			return DigestUtils.md5DigestAsHex(objectMapper.writeValueAsString(request).getBytes(StandardCharsets.UTF_8));
+		} catch (JsonProcessingException ex) {
+			throw new IllegalArgumentException("Request cannot be fingerprinted", ex);
+		}
+	}
+
+	private static Object await(CompletableFuture<Object> result) {
+		try {
+			return result.join();
+		} catch (CompletionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw ex;
+		}
+	}
+
+	private static class Outcome {
+
+		private final String fingerprint;
+		private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+		private Outcome(String fingerprint) {
+			this.fingerprint = fingerprint;
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+package com.westnacher.uam.caches;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.westnacher.uam.dtos.UserDto;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+@Component
+public class UserCache {
+
+	public static final String NAME = "users";
+
+	private static final int GENERATION_STRIPES = 1024;
+
+	private final boolean enabled;
+	private final Cache<Long, UserDto> cache;
+
+	// bumped on every invalidation so that a load which raced with a write is not cached
+	private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+	@Autowired
+	public UserCache(@Value("${uam.cache.users.enabled:true}") boolean enabled,
+			@Value("${uam.cache.users.max-size:100000}") long maxSize,
+			@Value("${uam.cache.users.ttl:10m}") Duration ttl, MeterRegistry meterRegistry) {
+		this(enabled, maxSize, ttl, Ticker.systemTicker());
+		CaffeineCacheMetrics.monitor(meterRegistry, cache, NAME);
+	}
+
+	UserCache(boolean enabled, long maxSize, Duration ttl, Ticker ticker) {
+		this.enabled = enabled;
+		this.cache = Caffeine.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterWrite(ttl)
+				.ticker(ticker)
+				.recordStats()
+				.build();
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public UserDto get(Long id) {
+		return enabled ? cache.getIfPresent(id) : null;
+	}
+
+	/**
+	 * Must be called before the user is read from the database and handed back
+	 * to {@link #put(Long, UserDto, long)} with the loaded value.
+	 */
+	public long readToken(Long id) {
+		return generations.get(stripe(id));
+	}
+
+	public void put(Long id, UserDto user, long readToken) {
+		if (!enabled) {
+			return;
+		}
+		int stripe = stripe(id);
+		cache.asMap().compute(id, (key, current) -> generations.get(stripe) == readToken ? user : current);
+	}
+
+	public void invalidate(Long id) {
+		generations.incrementAndGet(stripe(id));
+		cache.invalidate(id);
+	}
+
+	public void invalidateAll() {
+		for (int i = 0; i < GENERATION_STRIPES; i++) {
+			generations.incrementAndGet(i);
+		}
+		cache.invalidateAll();
+	}
+
+	public long estimatedSize() {
+		return cache.estimatedSize();
+	}
+
+	void cleanUp() {
+		cache.cleanUp();
+	}
+
+	private static int stripe(Long id) {
+		return (Long.hashCode(id) & Integer.MAX_VALUE) % GENERATION_STRIPES;
+	}
+
+}
@@ -0,0 +1,130 @@
+package com.westnacher.uam.caches;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.westnacher.uam.datasources.ReadConsistency;
+import com.westnacher.uam.dtos.UserValidatorsDto;
+import com.westnacher.uam.repositories.UserRepository;
+import com.westnacher.uam.repositories.UserTombstoneRepository;
+import com.westnacher.uam.shards.ShardRouting;
+
+/**
+ * Evicts users that other instances changed from the {@link UserCache} of this
+ * one, which only hears about its own writes. Every interval it reads the ids
+ * and versions of the users modified or deleted within the lookback, on the
+ * primary, and invalidates the ones it has not seen at that version yet. The
+ * lookback covers transactions that committed after an earlier poll and
+ * clocks that differ between instances, so another instance's change is
+ * served from here for at most about one interval.
+ */
+@Component
+public class UserCacheInvalidator {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(UserCacheInvalidator.class);
+
+	private final boolean enabled;
+	private final long intervalMillis;
+	private final Duration lookback;
+	private final UserCache userCache;
+	private final UserRepository userRepository;
+	private final UserTombstoneRepository userTombstoneRepository;
+	private final ShardRouting shardRouting;
+	private final ReadConsistency readConsistency;
+	private final ScheduledExecutorService executor;
+
+	// poller thread only, what the previous polls already invalidated
+	private Map<Long, Long> seenVersions = new HashMap<>();
+	private Set<Long> seenDeletions = new HashSet<>();
+	private LocalDateTime lastPoll = LocalDateTime.now();
+
+	@Autowired
+	public UserCacheInvalidator(@Value("${uam.cache.users.invalidation.enabled:true}") boolean enabled,
+			@Value("${uam.cache.users.invalidation.interval:1s}") Duration interval,
+			@Value("${uam.cache.users.invalidation.lookback:10s}") Duration lookback, UserCache userCache,
+			UserRepository userRepository, UserTombstoneRepository userTombstoneRepository,
+			ShardRouting shardRouting, ReadConsistency readConsistency) {
+		this.enabled = enabled && userCache.isEnabled();
+		this.intervalMillis = interval.toMillis();
+		this.lookback = lookback;
+		this.userCache = userCache;
+		this.userRepository = userRepository;
+		this.userTombstoneRepository = userTombstoneRepository;
+		this.shardRouting = shardRouting;
+		this.readConsistency = readConsistency;
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "user-cache-invalidator");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void start() {
+		if (enabled) {
+			executor.scheduleWithFixedDelay(this::pollSafely, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		executor.shutdownNow();
+	}
+
+	private void pollSafely() {
+		try {
+			poll();
+		} catch (RuntimeException ex) {
+			// cached users then only expire with their ttl until the next poll succeeds
+			LOGGER.warn("Polling user changes for cache invalidation failed, retrying in {} ms", intervalMillis, ex);
+		}
+	}
+
+	void poll() {
+		LocalDateTime pollStart = LocalDateTime.now();
+		LocalDateTime since = lastPoll.minus(lookback);
+		// a lagging replica would hide the changes this poll is looking for
+		List<List<UserValidatorsDto>> modified = readConsistency
+				.onPrimary(() -> shardRouting.scatter(shard -> userRepository.findValidatorsModifiedSince(since)));
+		List<List<Long>> deleted = readConsistency
+				.onPrimary(() -> shardRouting.scatter(shard -> userTombstoneRepository.findIdsDeletedSince(since)));
+
+		Map<Long, Long> versions = new HashMap<>();
+		modified.forEach(users -> users.forEach(user -> {
+			versions.put(user.getId(), user.getVersion());
+			if (!user.getVersion().equals(seenVersions.get(user.getId()))) {
+				userCache.invalidate(user.getId());
+			}
+		}));
+		Set<Long> deletions = new HashSet<>();
+		deleted.forEach(ids -> ids.forEach(id -> {
+			deletions.add(id);
+			if (!seenDeletions.contains(id)) {
+				userCache.invalidate(id);
+			}
+		}));
+		// only what is still within the lookback can show up again
+		seenVersions = versions;
+		seenDeletions = deletions;
+		lastPoll = pollStart;
+	}
+
+}
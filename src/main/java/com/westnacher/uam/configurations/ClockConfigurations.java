@@ -0,0 +1,20 @@
+package com.westnacher.uam.configurations;
+
+import java.time.Clock;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * The clock that time windows are measured with, tests replace it to skip
+ * ahead.
+ */
+@Configuration
+public class ClockConfigurations {
+
+	@Bean
+	public Clock clock() {
+		return Clock.systemDefaultZone();
+	}
+
+}
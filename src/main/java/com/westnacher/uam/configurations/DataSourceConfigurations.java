@@ -0,0 +1,130 @@
+package com.westnacher.uam.configurations;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.hibernate.jpa.boot.internal.EntityManagerFactoryBuilderImpl;
+import org.hibernate.jpa.boot.spi.IntegratorProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import com.westnacher.uam.bulkheads.BulkheadDataSource;
+import com.westnacher.uam.bulkheads.Bulkheads;
+import com.westnacher.uam.datasources.ReplicaRoutingDataSource;
+import com.westnacher.uam.shards.ShardRouting;
+import com.westnacher.uam.shards.ShardRoutingDataSource;
+import com.westnacher.uam.shards.ShardSchemaExporter;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Every database gets one connection pool per bulkhead, see
+ * {@link BulkheadDataSource}. Only with bulkheads disabled and neither
+ * replicas nor shards configured, Spring Boot's single data source from
+ * spring.datasource.* is used as before.
+ */
+@Configuration
+public class DataSourceConfigurations {
+
+	@Bean
+	@ConditionalOnExpression("${uam.bulkheads.enabled:true} and '${uam.datasource.replica-urls:}'.isEmpty() "
+			+ "and '${uam.shards.urls:}'.isEmpty()")
+	public DataSource bulkheadDataSource(DataSourceProperties properties, Bulkheads bulkheads) {
+		return pool(properties, properties.determineUrl(), "primary", false, bulkheads);
+	}
+
+	@Bean
+	@ConditionalOnProperty(name = "uam.datasource.replica-urls")
+	public DataSource dataSource(DataSourceProperties properties,
+			@Value("${uam.datasource.replica-urls}") List<String> replicaUrls,
+			@Value("${uam.datasource.replica-health-interval:5s}") Duration healthCheckInterval,
+			Bulkheads bulkheads) {
+		DataSource primary = pool(properties, properties.determineUrl(), "primary", false, bulkheads);
+
+		List<DataSource> replicas = new ArrayList<>();
+		for (String url : replicaUrls) {
+			replicas.add(pool(properties, url.trim(), "replica-" + replicas.size(), true, bulkheads));
+		}
+		ReplicaRoutingDataSource routing = new ReplicaRoutingDataSource(primary, replicas, healthCheckInterval);
+		return new RoutingDataSourceProxy(routing, routing);
+	}
+
+	@Bean
+	@ConditionalOnProperty(name = "uam.shards.urls")
+	public DataSource shardedDataSource(DataSourceProperties properties,
+			@Value("${uam.shards.urls}") List<String> shardUrls,
+			@Value("${uam.datasource.replica-urls:}") List<String> replicaUrls, Bulkheads bulkheads) {
+		if (!replicaUrls.isEmpty()) {
+			throw new IllegalStateException("uam.shards.urls and uam.datasource.replica-urls cannot be combined");
+		}
+		List<DataSource> shards = new ArrayList<>();
+		for (String url : shardUrls) {
+			shards.add(pool(properties, url.trim(), "shard-" + shards.size(), false, bulkheads));
+		}
+		ShardRoutingDataSource routing = new ShardRoutingDataSource(shards);
+		return new RoutingDataSourceProxy(routing, routing);
+	}
+
+	@Bean
+	@ConditionalOnProperty(name = "uam.shards.urls")
+	public HibernatePropertiesCustomizer shardSchemaCustomizer(ShardRouting shardRouting) {
+		return properties -> properties.put(EntityManagerFactoryBuilderImpl.INTEGRATOR_PROVIDER,
+				(IntegratorProvider) () -> Collections.singletonList(new ShardSchemaExporter(shardRouting)));
+	}
+
+	private static DataSource pool(DataSourceProperties properties, String url, String name, boolean readOnly,
+			Bulkheads bulkheads) {
+		if (!bulkheads.isEnabled()) {
+			return hikari(properties, url, name, readOnly, null);
+		}
+		Map<Bulkheads.Type, DataSource> pools = new EnumMap<>(Bulkheads.Type.class);
+		for (Bulkheads.Type type : Bulkheads.Type.values()) {
+			pools.put(type, hikari(properties, url, name + "-" + type.getName(), readOnly, bulkheads.poolSize(type)));
+		}
+		return new BulkheadDataSource(pools,
+				hikari(properties, url, name + "-shared", readOnly, bulkheads.sharedPoolSize()));
+	}
+
+	private static HikariDataSource hikari(DataSourceProperties properties, String url, String name,
+			boolean readOnly, Integer poolSize) {
+		HikariDataSource pool = properties.initializeDataSourceBuilder().type(HikariDataSource.class).url(url)
+				.build();
+		pool.setPoolName(name);
+		pool.setReadOnly(readOnly);
+		if (poolSize != null) {
+			pool.setMaximumPoolSize(poolSize);
+		}
+		return pool;
+	}
+
+	// defers fetching the connection until the transaction is marked read-only or the shard was entered,
+	// and closes the pools on shutdown
+	private static class RoutingDataSourceProxy extends LazyConnectionDataSourceProxy implements Closeable {
+
+		private final Closeable pools;
+
+		private RoutingDataSourceProxy(DataSource routing, Closeable pools) {
+			super(routing);
+			this.pools = pools;
+		}
+
+		@Override
+		public void close() throws IOException {
+			pools.close();
+		}
+	}
+
+}
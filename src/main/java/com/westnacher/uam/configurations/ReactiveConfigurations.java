@@ -0,0 +1,30 @@
+package com.westnacher.uam.configurations;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * The threads that {@link com.westnacher.uam.controllers.ReactiveUserController}
+ * hands its blocking work to. The bulkheads admit fewer point reads and writes
+ * at once than fit into the queue, so it only rejects when they are disabled.
+ */
+@Configuration
+@Profile("reactive")
+public class ReactiveConfigurations {
+
+	@Bean(destroyMethod = "shutdown")
+	public ThreadPoolTaskExecutor reactiveUserExecutor(@Value("${uam.reactive.threads:16}") int threads,
+			@Value("${uam.reactive.queue-capacity:100}") int queueCapacity) {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(threads);
+		executor.setMaxPoolSize(threads);
+		executor.setQueueCapacity(queueCapacity);
+		executor.setThreadNamePrefix("reactive-users-");
+		executor.setDaemon(true);
+		return executor;
+	}
+
+}
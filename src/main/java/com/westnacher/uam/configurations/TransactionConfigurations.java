@@ -0,0 +1,26 @@
+package com.westnacher.uam.configurations;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.transaction.TransactionManagerCustomizers;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.westnacher.uam.deadlines.DeadlineJpaTransactionManager;
+
+/**
+ * Replaces Spring Boot's JpaTransactionManager with one that applies request
+ * deadlines, customized the same way.
+ */
+@Configuration
+public class TransactionConfigurations {
+
+	@Bean
+	public PlatformTransactionManager transactionManager(
+			ObjectProvider<TransactionManagerCustomizers> transactionManagerCustomizers) {
+		DeadlineJpaTransactionManager transactionManager = new DeadlineJpaTransactionManager();
+		transactionManagerCustomizers.ifAvailable(customizers -> customizers.customize(transactionManager));
+		return transactionManager;
+	}
+
+}
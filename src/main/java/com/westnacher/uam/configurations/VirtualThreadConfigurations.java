@@ -0,0 +1,48 @@
+package com.westnacher.uam.configurations;
+
+import java.util.concurrent.ExecutorService;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.coyote.ProtocolHandler;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * With uam.threads.virtual=true Tomcat runs every request on a virtual thread
+ * of its own instead of its bounded worker pool, and so do async responses
+ * such as /users/export. A request blocked on JDBC then costs no platform
+ * thread, the connection pool is what bounds concurrent database work.
+ *
+ * The MySQL driver blocks inside synchronized blocks, which pins the carrier
+ * thread before Java 24. Keep the connection pools of the bulkheads together
+ * at or below the number of carrier threads (one per core by default).
+ */
+@Configuration
+@ConditionalOnProperty(name = "uam.threads.virtual", havingValue = "true")
+public class VirtualThreadConfigurations implements WebMvcConfigurer {
+
+	private final ExecutorService requestExecutor = VirtualThreads.newExecutor("uam-request-");
+
+	@Bean
+	public TomcatProtocolHandlerCustomizer<ProtocolHandler> virtualThreadProtocolHandlerCustomizer() {
+		return protocolHandler -> protocolHandler.setExecutor(requestExecutor);
+	}
+
+	@Override
+	public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+		configurer.setTaskExecutor(new TaskExecutorAdapter(requestExecutor));
+	}
+
+	// Tomcat leaves an executor it was given running, the server has stopped by the time beans are destroyed
+	@PreDestroy
+	public void shutdown() {
+		requestExecutor.shutdown();
+	}
+
+}
@@ -0,0 +1,44 @@
+package com.westnacher.uam.configurations;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads (Java 21) reached through reflection, so the code still
+ * compiles for the Java 8 target. Build with -Pjdk21 to run on them.
+ */
+public final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	public static boolean isSupported() {
+		try {
+			newExecutor("probe-").shutdown();
+			return true;
+		} catch (IllegalStateException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * An executor that starts a new virtual thread, named with the prefix and a
+	 * counter, for every task.
+	 */
+	public static ExecutorService newExecutor(String namePrefix) {
+		try {
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+			ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+			return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+					.invoke(null, factory);
+		} catch (ReflectiveOperationException ex) {
+			// missing before Java 19, a preview feature that throws when disabled in 19 and 20
+			throw new IllegalStateException(
+					"Virtual threads need Java 21 or later, running on " + System.getProperty("java.version"), ex);
+		}
+	}
+
+}
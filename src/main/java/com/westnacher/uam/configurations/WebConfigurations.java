@@ -0,0 +1,46 @@
+package com.westnacher.uam.configurations;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import com.westnacher.uam.controllers.BulkheadInterceptor;
+import com.westnacher.uam.controllers.ConcurrencyLimitInterceptor;
+import com.westnacher.uam.controllers.ConsistencyTokenInterceptor;
+import com.westnacher.uam.controllers.DeadlineInterceptor;
+
+@Configuration
+public class WebConfigurations implements WebMvcConfigurer {
+
+	private final ConsistencyTokenInterceptor consistencyTokenInterceptor;
+	private final BulkheadInterceptor bulkheadInterceptor;
+	private final ConcurrencyLimitInterceptor concurrencyLimitInterceptor;
+	private final DeadlineInterceptor deadlineInterceptor;
+
+	@Autowired
+	public WebConfigurations(ConsistencyTokenInterceptor consistencyTokenInterceptor,
+			BulkheadInterceptor bulkheadInterceptor, ConcurrencyLimitInterceptor concurrencyLimitInterceptor,
+			DeadlineInterceptor deadlineInterceptor) {
+		this.consistencyTokenInterceptor = consistencyTokenInterceptor;
+		this.bulkheadInterceptor = bulkheadInterceptor;
+		this.concurrencyLimitInterceptor = concurrencyLimitInterceptor;
+		this.deadlineInterceptor = deadlineInterceptor;
+	}
+
+	@Override
+	public void addInterceptors(InterceptorRegistry registry) {
+		registry.addInterceptor(deadlineInterceptor).addPathPatterns("/users/**");
+		// before the limiter, so the wait for a bulkhead does not count as latency and shrink the limit
+		registry.addInterceptor(bulkheadInterceptor).addPathPatterns("/users/**");
+		registry.addInterceptor(concurrencyLimitInterceptor).addPathPatterns("/users/**");
+		registry.addInterceptor(consistencyTokenInterceptor).addPathPatterns("/users/**");
+	}
+
+	@Override
+	public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+		configurer.registerCallableInterceptors(bulkheadInterceptor);
+	}
+
+}
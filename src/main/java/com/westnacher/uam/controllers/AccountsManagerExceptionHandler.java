@@ -1,10 +1,15 @@
 package com.westnacher.uam.controllers;
 
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.QueryTimeoutException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.TransactionTimedOutException;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
 
+import com.westnacher.uam.deadlines.RequestDeadline;
 import com.westnacher.uam.dtos.ApplicationErrorResponse;
 import com.westnacher.uam.exceptions.AccountsManagerException;
 
@@ -18,4 +23,14 @@ class AccountsManagerExceptionHandler {
 				ex.getMessage());
 		return new ResponseEntity<Object>(apiError, new HttpHeaders(), apiError.getStatus());
 	}
+
+	// a statement cut off by its timeout fails with whatever the driver makes of the cancel
+	@ExceptionHandler(value = { DataAccessException.class, TransactionException.class })
+	public ResponseEntity<?> handleDeadlineExceeded(RuntimeException ex) {
+		if (!(ex instanceof QueryTimeoutException) && !(ex instanceof TransactionTimedOutException)
+				&& !RequestDeadline.isExpired()) {
+			throw ex;
+		}
+		return handleConstraintViolation(RequestDeadline.expired());
+	}
 }
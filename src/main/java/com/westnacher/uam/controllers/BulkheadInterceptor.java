@@ -0,0 +1,95 @@
+package com.westnacher.uam.controllers;
+
+import java.util.concurrent.Callable;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import com.westnacher.uam.bulkheads.Bulkhead;
+import com.westnacher.uam.bulkheads.Bulkheads;
+import com.westnacher.uam.bulkheads.UsesBulkhead;
+import com.westnacher.uam.exceptions.AccountsManagerException;
+
+/**
+ * Admits requests to handler methods annotated with {@link UsesBulkhead}
+ * through their bulkhead, and answers 503 with Retry-After when it is full.
+ * Admitted requests take their connections from the bulkhead's pool, also
+ * while a streaming response is written on another thread.
+ */
+@Component
+public class BulkheadInterceptor implements AsyncHandlerInterceptor, CallableProcessingInterceptor {
+
+	private static final String ENTERED_ATTRIBUTE = BulkheadInterceptor.class.getName() + ".entered";
+	private static final String TYPE_ATTRIBUTE = BulkheadInterceptor.class.getName() + ".type";
+
+	private final Bulkheads bulkheads;
+
+	@Autowired
+	public BulkheadInterceptor(Bulkheads bulkheads) {
+		this.bulkheads = bulkheads;
+	}
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+		// the async dispatch that completes a streaming response already holds the permit
+		if (!(handler instanceof HandlerMethod) || request.getAttribute(ENTERED_ATTRIBUTE) != null) {
+			return true;
+		}
+		UsesBulkhead usesBulkhead = ((HandlerMethod) handler).getMethodAnnotation(UsesBulkhead.class);
+		Bulkhead bulkhead = usesBulkhead == null ? null : bulkheads.get(usesBulkhead.value());
+		if (bulkhead == null) {
+			return true;
+		}
+		if (!bulkhead.tryEnter()) {
+			// kept on the response, the exception handler only adds the error body
+			long retryAfterSeconds = Math.max(1, (bulkhead.getRetryAfter().toMillis() + 999) / 1000);
+			response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+			throw new AccountsManagerException("Too many " + bulkhead.getName() + " requests in progress, retry later",
+					HttpStatus.SERVICE_UNAVAILABLE);
+		}
+		request.setAttribute(ENTERED_ATTRIBUTE, bulkhead);
+		request.setAttribute(TYPE_ATTRIBUTE, usesBulkhead.value());
+		Bulkheads.enter(usesBulkhead.value());
+		return true;
+	}
+
+	// only called once the request is complete, for async requests after their last dispatch
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+			Exception ex) {
+		Bulkheads.enter(null);
+		Bulkhead bulkhead = (Bulkhead) request.getAttribute(ENTERED_ATTRIBUTE);
+		if (bulkhead != null) {
+			request.removeAttribute(ENTERED_ATTRIBUTE);
+			bulkhead.exit();
+		}
+	}
+
+	// the request keeps its permit, only this thread is done with it
+	@Override
+	public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response,
+			Object handler) {
+		Bulkheads.enter(null);
+	}
+
+	@Override
+	public <T> void preProcess(NativeWebRequest request, Callable<T> task) {
+		Bulkheads.enter((Bulkheads.Type) request.getAttribute(TYPE_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST));
+	}
+
+	@Override
+	public <T> void postProcess(NativeWebRequest request, Callable<T> task, Object concurrentResult) {
+		Bulkheads.enter(null);
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.westnacher.uam.controllers;
+
+import java.util.concurrent.CompletionStage;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import com.westnacher.uam.exceptions.AccountsManagerException;
+import com.westnacher.uam.limits.AdaptiveConcurrencyLimiter;
+
+/**
+ * Admits /users requests through the {@link AdaptiveConcurrencyLimiter}, the
+ * ones beyond its limit get 503 with Retry-After right away.
+ */
+@Component
+public class ConcurrencyLimitInterceptor implements AsyncHandlerInterceptor {
+
+	private static final String PERMIT_ATTRIBUTE = ConcurrencyLimitInterceptor.class.getName() + ".permit";
+	private static final String RETRY_AFTER_SECONDS = "1";
+
+	private final AdaptiveConcurrencyLimiter limiter;
+
+	@Autowired
+	public ConcurrencyLimitInterceptor(AdaptiveConcurrencyLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+		if (!limiter.isEnabled() || !(handler instanceof HandlerMethod)
+				|| request.getDispatcherType() == DispatcherType.ASYNC) {
+			return true;
+		}
+		AdaptiveConcurrencyLimiter.Permit permit = limiter.tryAcquire();
+		if (permit == null) {
+			response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+			throw new AccountsManagerException("Too many requests in progress, retry later",
+					HttpStatus.SERVICE_UNAVAILABLE);
+		}
+		request.setAttribute(PERMIT_ATTRIBUTE, permit);
+		return true;
+	}
+
+	// failures are mostly fast, sampling them would read as an idle database exactly when it struggles
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+			Exception ex) {
+		AdaptiveConcurrencyLimiter.Permit permit = removePermit(request);
+		if (permit == null) {
+			return;
+		}
+		if (ex == null && response.getStatus() < HttpStatus.BAD_REQUEST.value()) {
+			permit.release();
+		} else {
+			permit.releaseWithoutSample();
+		}
+	}
+
+	// streams and exports last as long as the client reads, their bulkhead bounds them instead. Work that only
+	// moved to another thread keeps its permit until the response is complete
+	@Override
+	public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response,
+			Object handler) {
+		if (handler instanceof HandlerMethod && CompletionStage.class
+				.isAssignableFrom(((HandlerMethod) handler).getReturnType().getParameterType())) {
+			return;
+		}
+		AdaptiveConcurrencyLimiter.Permit permit = removePermit(request);
+		if (permit != null) {
+			permit.releaseWithoutSample();
+		}
+	}
+
+	private static AdaptiveConcurrencyLimiter.Permit removePermit(HttpServletRequest request) {
+		AdaptiveConcurrencyLimiter.Permit permit = (AdaptiveConcurrencyLimiter.Permit) request
+				.getAttribute(PERMIT_ATTRIBUTE);
+		request.removeAttribute(PERMIT_ATTRIBUTE);
+		return permit;
+	}
+
+}
@@ -0,0 +1,47 @@
+package com.westnacher.uam.controllers;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import com.westnacher.uam.datasources.ReadConsistency;
+
+/**
+ * Sends the reads of a request to the primary while the consistency token it
+ * carries is recent enough that replicas may not have the write yet.
+ */
+@Component
+public class ConsistencyTokenInterceptor implements AsyncHandlerInterceptor {
+
+	private final ReadConsistency readConsistency;
+
+	@Autowired
+	public ConsistencyTokenInterceptor(ReadConsistency readConsistency) {
+		this.readConsistency = readConsistency;
+	}
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+		String token = request.getHeader(ReadConsistency.TOKEN_HEADER);
+		if (token != null) {
+			readConsistency.requirePrimaryFor(token);
+		}
+		return true;
+	}
+
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+			Exception ex) {
+		readConsistency.clear();
+	}
+
+	@Override
+	public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response,
+			Object handler) {
+		readConsistency.clear();
+	}
+
+}
@@ -0,0 +1,58 @@
+package com.westnacher.uam.controllers;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import com.westnacher.uam.bulkheads.UsesBulkhead;
+import com.westnacher.uam.deadlines.RequestDeadline;
+
+/**
+ * Starts the {@link RequestDeadline} of /users requests. Registered first, so
+ * the time spent waiting for a bulkhead counts against it.
+ */
+@Component
+public class DeadlineInterceptor implements AsyncHandlerInterceptor {
+
+	private final RequestDeadline requestDeadline;
+
+	@Autowired
+	public DeadlineInterceptor(RequestDeadline requestDeadline) {
+		this.requestDeadline = requestDeadline;
+	}
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+		// the async dispatch of a stream only writes what was already read
+		if (!(handler instanceof HandlerMethod) || request.getDispatcherType() == DispatcherType.ASYNC) {
+			return true;
+		}
+		UsesBulkhead usesBulkhead = ((HandlerMethod) handler).getMethodAnnotation(UsesBulkhead.class);
+		requestDeadline.start(request.getHeader(RequestDeadline.TIMEOUT_HEADER),
+				usesBulkhead == null ? null : usesBulkhead.value());
+		// afterCompletion is skipped when preHandle fails
+		if (RequestDeadline.isExpired()) {
+			requestDeadline.clear();
+			throw RequestDeadline.expired();
+		}
+		return true;
+	}
+
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+			Exception ex) {
+		requestDeadline.clear();
+	}
+
+	@Override
+	public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response,
+			Object handler) {
+		requestDeadline.clear();
+	}
+
+}
@@ -0,0 +1,193 @@
+package com.westnacher.uam.controllers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+import javax.validation.Valid;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.validation.BindingResult;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.westnacher.uam.bulkheads.Bulkheads;
+import com.westnacher.uam.bulkheads.UsesBulkhead;
+import com.westnacher.uam.caches.IdempotencyStore;
+import com.westnacher.uam.datasources.ReadConsistency;
+import com.westnacher.uam.deadlines.RequestDeadline;
+import com.westnacher.uam.dtos.UserDto;
+import com.westnacher.uam.dtos.UserPageDto;
+import com.westnacher.uam.exceptions.AccountsManagerException;
+import com.westnacher.uam.forms.UserForm;
+import com.westnacher.uam.services.UserService;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiOperation;
+
+/**
+ * List, get, create, edit and delete of {@link UserController} without holding
+ * a request thread while the database works. The handlers complete on the
+ * bounded reactiveUserExecutor, and GET /users streams every user a page at a
+ * time, reading the next page only once the client took the previous one.
+ * Replaces UserController under the "reactive" profile, everything below the
+ * controller stays on JPA.
+ */
+@RestController
+@RequestMapping("users")
+@Profile("reactive")
+@ApiModel(description = "Endpoints of users", value = "Users")
+public class ReactiveUserController {
+
+	private final UserService userService;
+	private final ReadConsistency readConsistency;
+	private final IdempotencyStore idempotencyStore;
+	private final ObjectMapper objectMapper;
+	private final Executor executor;
+	private final int streamPageSize;
+
+	@Autowired
+	public ReactiveUserController(UserService userService, ReadConsistency readConsistency,
+			IdempotencyStore idempotencyStore, ObjectMapper objectMapper,
+			@Qualifier("reactiveUserExecutor") Executor executor,
+			@Value("${uam.reactive.stream-page-size:100}") int streamPageSize) {
+		this.userService = userService;
+		this.readConsistency = readConsistency;
+		this.idempotencyStore = idempotencyStore;
+		this.objectMapper = objectMapper;
+		this.executor = executor;
+		this.streamPageSize = streamPageSize;
+	}
+
+	@ApiOperation(produces = MediaType.APPLICATION_STREAM_JSON_VALUE, value = "stream the users ordered by id as one JSON object per line, starting after the cursor 'after' when given. Users are read as the client takes them.")
+	@GetMapping(produces = MediaType.APPLICATION_STREAM_JSON_VALUE)
+	@UsesBulkhead(Bulkheads.Type.BULK)
+	public ResponseEntity<StreamingResponseBody> getAllUsers(@RequestParam(required = false) String after) {
+		return ResponseEntity.status(HttpStatus.OK).contentType(MediaType.APPLICATION_STREAM_JSON)
+				.body(out -> streamUsers(after, out));
+	}
+
+	@ApiOperation(produces = "application/json", value = "retrieve a user as JSON object. The ETag header carries the user version for conditional edits. Supports If-None-Match and If-Modified-Since.")
+	@GetMapping(path = "/{userId}", produces = "application/json")
+	@UsesBulkhead(Bulkheads.Type.POINT_READS)
+	public CompletableFuture<ResponseEntity<?>> getUserById(@PathVariable Long userId)
+			throws AccountsManagerException {
+		return async(() -> {
+			UserDto user = userService.getUserById(userId);
+			ResponseEntity.BodyBuilder builder = UserController.withETag(ResponseEntity.status(HttpStatus.OK),
+					user.getVersion());
+			if (user.getModifiedAt() != null) {
+				builder.lastModified(UserController.toEpochMilli(user.getModifiedAt()));
+			}
+			// the conditional headers are checked against these when the response is written
+			return builder.body(user);
+		});
+	}
+
+	@ApiOperation(produces = "application/json", value = "create a user from JSON Object Form and return it as JSON Object. Restriction : cannot create user with email that is already registered. "
+			+ "A retry with the same Idempotency-Key header returns the outcome of the first request instead of creating the user again.", consumes = "application/json")
+	@PostMapping(produces = "application/json", consumes = "application/json")
+	@UsesBulkhead(Bulkheads.Type.WRITES)
+	public CompletableFuture<ResponseEntity<?>> createUser(@Valid @RequestBody UserForm userForm,
+			BindingResult bindingResult,
+			@RequestHeader(name = IdempotencyStore.KEY_HEADER, required = false) String idempotencyKey)
+			throws AccountsManagerException {
+		if (bindingResult.hasFieldErrors()) {
+			return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY)
+					.body(UserController.convertFieldErrorsIntoString(bindingResult)));
+		}
+		return async(() -> {
+			UserDto user = idempotencyStore.execute("POST /users", idempotencyKey, userForm,
+					() -> userService.createUser(userForm));
+			return written(ResponseEntity.status(HttpStatus.CREATED)).body(user);
+		});
+	}
+
+	@ApiOperation(produces = "application/json", value = "Edit user with id from the path. Takes JSON Object and returns JSON Object. Restriction : cannot edit email to already existing email. "
+			+ "With an If-Match header holding the ETag from GET the edit only applies to that version, answers 412 if the user changed meanwhile.", consumes = "application/json")
+	@PutMapping(path = "/{userId}", produces = "application/json", consumes = "application/json")
+	@UsesBulkhead(Bulkheads.Type.WRITES)
+	public CompletableFuture<ResponseEntity<?>> editUser(@Valid @RequestBody UserForm form,
+			BindingResult bindingResult, @PathVariable Long userId,
+			@RequestHeader(name = HttpHeaders.IF_MATCH, required = false) String ifMatch)
+			throws AccountsManagerException {
+		if (bindingResult.hasFieldErrors()) {
+			return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY)
+					.body(UserController.convertFieldErrorsIntoString(bindingResult)));
+		}
+		Long expectedVersion = ifMatch == null || ifMatch.trim().equals("*") ? null
+				: UserController.parseIfMatch(ifMatch);
+		return async(() -> {
+			UserDto user = expectedVersion == null ? userService.editUser(userId, form)
+					: userService.editUser(userId, form, expectedVersion);
+			return UserController.withETag(written(ResponseEntity.status(HttpStatus.OK)), user.getVersion())
+					.body(user);
+		});
+	}
+
+	@ApiOperation(value = "Delete user with id from the path. No content is returned.")
+	@DeleteMapping(path = "/{userId}")
+	@UsesBulkhead(Bulkheads.Type.WRITES)
+	public CompletableFuture<ResponseEntity<?>> deleteUser(@PathVariable Long userId)
+			throws AccountsManagerException {
+		return async(() -> {
+			userService.deleteUserById(userId);
+			return written(ResponseEntity.status(HttpStatus.NO_CONTENT)).build();
+		});
+	}
+
+	// every page is a read of its own, so a slow client holds neither a transaction nor a connection
+	private void streamUsers(String after, OutputStream out) throws IOException {
+		String cursor = after;
+		do {
+			UserPageDto page = userService.getAllUsers(cursor, streamPageSize);
+			for (UserDto user : page.getUsers()) {
+				out.write(objectMapper.writeValueAsBytes(user));
+				out.write('\n');
+			}
+			// blocks until the client has room for the page
+			out.flush();
+			cursor = page.getNextCursor();
+		} while (cursor != null);
+	}
+
+	// the request thread is released, the work keeps the deadline, bulkhead and read consistency of the request
+	private <T> CompletableFuture<T> async(Supplier<T> work) throws AccountsManagerException {
+		Long deadline = RequestDeadline.current();
+		Bulkheads.Type bulkhead = Bulkheads.current();
+		boolean primaryRequired = ReadConsistency.isPrimaryRequired();
+		try {
+			return CompletableFuture.supplyAsync(() -> RequestDeadline.callWithin(deadline,
+					() -> Bulkheads.callWithin(bulkhead, () -> readConsistency.onPrimaryIf(primaryRequired, work))),
+					executor);
+		} catch (RejectedExecutionException ex) {
+			throw new AccountsManagerException("Too many users requests in progress, retry later",
+					HttpStatus.SERVICE_UNAVAILABLE);
+		}
+	}
+
+	private ResponseEntity.BodyBuilder written(ResponseEntity.BodyBuilder builder) {
+		return builder.header(ReadConsistency.TOKEN_HEADER, readConsistency.issueToken());
+	}
+
+}
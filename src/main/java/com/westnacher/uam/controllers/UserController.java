@@ -1,22 +1,44 @@
 package com.westnacher.uam.controllers;
 
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
 import java.util.stream.Collectors;
 
 import javax.validation.Valid;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.westnacher.uam.bulkheads.Bulkheads;
+import com.westnacher.uam.bulkheads.UsesBulkhead;
+import com.westnacher.uam.caches.IdempotencyStore;
+import com.westnacher.uam.datasources.ReadConsistency;
+import com.westnacher.uam.dtos.UserBatchResultDto;
+import com.westnacher.uam.dtos.UserDto;
+import com.westnacher.uam.dtos.UserPageDto;
+import com.westnacher.uam.dtos.UserValidatorsDto;
+import com.westnacher.uam.events.UserChangeFeed;
 import com.westnacher.uam.exceptions.AccountsManagerException;
 import com.westnacher.uam.forms.UserForm;
 import com.westnacher.uam.services.UserService;
@@ -26,58 +48,219 @@ import io.swagger.annotations.ApiOperation;
 
 @RestController
 @RequestMapping("users")
+@Profile("!reactive")
 @ApiModel(description = "Endpoints of users", value = "Users")
 public class UserController {
 
+	private static final String NDJSON = "application/x-ndjson";
+	private static final String LAST_EVENT_ID = "Last-Event-ID";
+	private static final String MERGE_PATCH_JSON = "application/merge-patch+json";
+
 	private UserService userService;
+	private UserChangeFeed userChangeFeed;
+	private ReadConsistency readConsistency;
+	private IdempotencyStore idempotencyStore;
 
 	@Autowired
-	public UserController(UserService userService) {
+	public UserController(UserService userService, UserChangeFeed userChangeFeed, ReadConsistency readConsistency,
+			IdempotencyStore idempotencyStore) {
 		this.userService = userService;
+		this.userChangeFeed = userChangeFeed;
+		this.readConsistency = readConsistency;
+		this.idempotencyStore = idempotencyStore;
 	}
 
-	@ApiOperation(produces = "application/json", value = "retrieve all users in JSON Array")
+	@ApiOperation(produces = "application/json", value = "retrieve a page of users ordered by id. Pass the returned nextCursor as 'after' to get the following page. Supports If-None-Match with the returned ETag.")
 	@GetMapping(produces = "application/json")
-	public ResponseEntity<?> getAllUsers() {
-		return ResponseEntity.status(HttpStatus.OK).body(userService.getAllUsers());
+	@UsesBulkhead(Bulkheads.Type.BULK)
+	public ResponseEntity<?> getAllUsers(@RequestParam(required = false) String after,
+			@RequestParam(required = false) Integer limit, WebRequest request) throws AccountsManagerException {
+		if (request.getHeader(HttpHeaders.IF_NONE_MATCH) != null
+				&& request.checkNotModified(userService.getAllUsersETag(after, limit))) {
+			return null;
+		}
+		UserPageDto page = userService.getAllUsers(after, limit);
+		ResponseEntity.BodyBuilder builder = ResponseEntity.status(HttpStatus.OK);
+		return (page.getETag() == null ? builder : builder.eTag(page.getETag())).body(page);
+	}
+
+	@ApiOperation(produces = "application/json", value = "retrieve up to " + UserService.MAX_LOOKUP_SIZE + " users by id, e.g. ?ids=1,2,3. Returns one result per id, in request order, with either the user or status NOT_FOUND. POST the ids to /users/lookup when they do not fit into a URL.")
+	@GetMapping(params = "ids", produces = "application/json")
+	@UsesBulkhead(Bulkheads.Type.POINT_READS)
+	public ResponseEntity<?> getUsersByIds(@RequestParam List<Long> ids) throws AccountsManagerException {
+		return ResponseEntity.status(HttpStatus.OK).body(userService.getUsersByIds(ids));
+	}
+
+	@ApiOperation(produces = "application/json", value = "retrieve up to " + UserService.MAX_LOOKUP_SIZE + " users by id from a JSON Array of ids. Returns one result per id, in request order, with either the user or status NOT_FOUND.", consumes = "application/json")
+	@PostMapping(path = "/lookup", produces = "application/json", consumes = "application/json")
+	@UsesBulkhead(Bulkheads.Type.POINT_READS)
+	public ResponseEntity<?> lookupUsers(@RequestBody List<Long> ids) throws AccountsManagerException {
+		return ResponseEntity.status(HttpStatus.OK).body(userService.getUsersByIds(ids));
 	}
 
-	@ApiOperation(produces = "application/json", value = "retrieve a user as JSON object")
+	@ApiOperation(produces = NDJSON, value = "stream all users as newline-delimited JSON, one object per line")
+	@GetMapping(path = "/export", produces = NDJSON)
+	@UsesBulkhead(Bulkheads.Type.BULK)
+	public ResponseEntity<StreamingResponseBody> exportUsers() {
+		return ResponseEntity.status(HttpStatus.OK).contentType(MediaType.valueOf(NDJSON))
+				.body(userService::exportUsers);
+	}
+
+	@ApiOperation(produces = "application/json", value = "retrieve users changed and deleted since the token of a previous call. Omit 'since' on the first sync and pass the returned nextToken afterwards; keep calling while hasMore is true.")
+	@GetMapping(path = "/changes", produces = "application/json")
+	@UsesBulkhead(Bulkheads.Type.BULK)
+	public ResponseEntity<?> getChanges(@RequestParam(required = false) String since,
+			@RequestParam(required = false) Integer limit) throws AccountsManagerException {
+		return ResponseEntity.status(HttpStatus.OK).body(userService.getChanges(since, limit));
+	}
+
+	@ApiOperation(produces = MediaType.TEXT_EVENT_STREAM_VALUE, value = "stream every user create, edit and delete as Server-Sent Events. Reconnect with Last-Event-ID to receive the events missed meanwhile, or a 'reset' event when they are no longer buffered and the client has to resync from /users/changes.")
+	@GetMapping(path = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public ResponseEntity<SseEmitter> streamUsers(
+			@RequestHeader(name = LAST_EVENT_ID, required = false) String lastEventId) {
+		return ResponseEntity.status(HttpStatus.OK).body(userChangeFeed.subscribe(lastEventId));
+	}
+
+	@ApiOperation(produces = "application/json", value = "retrieve a user as JSON object. The ETag header carries the user version for conditional edits. Supports If-None-Match and If-Modified-Since.")
 	@GetMapping(path = "/{userId}", produces = "application/json")
-	public ResponseEntity<?> getUserById(@PathVariable Long userId) throws AccountsManagerException {
-		return ResponseEntity.status(HttpStatus.OK).body(userService.getUserById(userId));
+	@UsesBulkhead(Bulkheads.Type.POINT_READS)
+	public ResponseEntity<?> getUserById(@PathVariable Long userId, WebRequest request)
+			throws AccountsManagerException {
+		if (request.getHeader(HttpHeaders.IF_NONE_MATCH) != null
+				|| request.getHeader(HttpHeaders.IF_MODIFIED_SINCE) != null) {
+			UserValidatorsDto validators = userService.getUserValidators(userId);
+			if (request.checkNotModified(validators.getVersion().toString(),
+					toEpochMilli(validators.getModifiedAt()))) {
+				return null;
+			}
+		}
+		UserDto user = userService.getUserById(userId);
+		ResponseEntity.BodyBuilder builder = withETag(ResponseEntity.status(HttpStatus.OK), user.getVersion());
+		if (user.getModifiedAt() != null) {
+			builder.lastModified(toEpochMilli(user.getModifiedAt()));
+		}
+		return builder.body(user);
 	}
 
-	@ApiOperation(produces = "application/json", value = "create a user from JSON Object Form and return it as JSON Object. Restriction : cannot create user with email that is already registered.", consumes = "application/json")
+	@ApiOperation(produces = "application/json", value = "create a user from JSON Object Form and return it as JSON Object. Restriction : cannot create user with email that is already registered. "
+			+ "A retry with the same Idempotency-Key header returns the outcome of the first request instead of creating the user again.", consumes = "application/json")
 	@PostMapping(produces = "application/json", consumes = "application/json")
-	public ResponseEntity<?> createUser(@Valid @RequestBody UserForm userForm, BindingResult bindingResult)
+	@UsesBulkhead(Bulkheads.Type.WRITES)
+	public ResponseEntity<?> createUser(@Valid @RequestBody UserForm userForm, BindingResult bindingResult,
+			@RequestHeader(name = IdempotencyStore.KEY_HEADER, required = false) String idempotencyKey)
 			throws AccountsManagerException {
 		if (bindingResult.hasFieldErrors()) {
 			String body = convertFieldErrorsIntoString(bindingResult);
 			return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(body);
 		}
-		return ResponseEntity.status(HttpStatus.CREATED).body(userService.createUser(userForm));
+		UserDto user = idempotencyStore.execute("POST /users", idempotencyKey, userForm,
+				() -> userService.createUser(userForm));
+		return written(ResponseEntity.status(HttpStatus.CREATED)).body(user);
+	}
+
+	@ApiOperation(produces = "application/json", value = "create up to " + UserService.MAX_BATCH_SIZE + " users from a JSON Array of forms. Returns one result per form, in order, with either the created user or the errors for that form. "
+			+ "A retry with the same Idempotency-Key header returns the results of the first request.", consumes = "application/json")
+	@PostMapping(path = "/batch", produces = "application/json", consumes = "application/json")
+	@UsesBulkhead(Bulkheads.Type.WRITES)
+	public ResponseEntity<?> createUsers(@RequestBody List<UserForm> userForms,
+			@RequestHeader(name = IdempotencyStore.KEY_HEADER, required = false) String idempotencyKey)
+			throws AccountsManagerException {
+		List<UserBatchResultDto> results = idempotencyStore.execute("POST /users/batch", idempotencyKey, userForms,
+				() -> userService.createUsers(userForms));
+		return written(ResponseEntity.status(HttpStatus.OK)).body(results);
 	}
 
-	@ApiOperation(produces = "application/json", value = "Edit user with id from the path. Takes JSON Object and returns JSON Object. Restriction : cannot edit email to already existing email.", consumes = "application/json")
+	@ApiOperation(produces = "application/json", value = "Edit user with id from the path. Takes JSON Object and returns JSON Object. Restriction : cannot edit email to already existing email. "
+			+ "With an If-Match header holding the ETag from GET the edit only applies to that version, answers 412 if the user changed meanwhile.", consumes = "application/json")
 	@PutMapping(path = "/{userId}", produces = "application/json", consumes = "application/json")
+	@UsesBulkhead(Bulkheads.Type.WRITES)
 	public ResponseEntity<?> editUser(@Valid @RequestBody UserForm form, BindingResult bindingResult,
-			@PathVariable Long userId) throws AccountsManagerException {
+			@PathVariable Long userId, @RequestHeader(name = HttpHeaders.IF_MATCH, required = false) String ifMatch)
+			throws AccountsManagerException {
 		if (bindingResult.hasFieldErrors()) {
 			String body = convertFieldErrorsIntoString(bindingResult);
 			return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(body);
 		}
-		return ResponseEntity.status(HttpStatus.OK).body(userService.editUser(userId, form));
+		UserDto user = ifMatch == null || ifMatch.trim().equals("*") ? userService.editUser(userId, form)
+				: userService.editUser(userId, form, parseIfMatch(ifMatch));
+		return withETag(written(ResponseEntity.status(HttpStatus.OK)), user.getVersion()).body(user);
+	}
+
+	@ApiOperation(produces = "application/json", value = "Change only the fields present in a JSON merge patch of the user with id from the path, and return the user. "
+			+ "Only those fields are validated, a patch that changes nothing writes nothing. With an If-Match header the patch only applies to that version and answers 412 otherwise.", consumes = MERGE_PATCH_JSON)
+	@PatchMapping(path = "/{userId}", produces = "application/json", consumes = { MERGE_PATCH_JSON, "application/json" })
+	@UsesBulkhead(Bulkheads.Type.WRITES)
+	public ResponseEntity<?> patchUser(@RequestBody JsonNode patch, @PathVariable Long userId,
+			@RequestHeader(name = HttpHeaders.IF_MATCH, required = false) String ifMatch)
+			throws AccountsManagerException {
+		Long expectedVersion = ifMatch == null || ifMatch.trim().equals("*") ? null : parseIfMatch(ifMatch);
+		UserDto user = userService.patchUser(userId, patch, expectedVersion);
+		return withETag(written(ResponseEntity.status(HttpStatus.OK)), user.getVersion()).body(user);
+	}
+
+	@ApiOperation(produces = "application/json", value = "Create the user with the email from the path, or overwrite the names and date of birth of the user already registered with it, in a single statement. "
+			+ "Answers 201 with the user when it was created and 200 when it was updated.", consumes = "application/json")
+	@PutMapping(path = "/by-email/{email}", produces = "application/json", consumes = "application/json")
+	@UsesBulkhead(Bulkheads.Type.WRITES)
+	public ResponseEntity<?> upsertUserByEmail(@Valid @RequestBody UserForm form, BindingResult bindingResult,
+			@PathVariable String email) throws AccountsManagerException {
+		if (bindingResult.hasFieldErrors()) {
+			String body = convertFieldErrorsIntoString(bindingResult);
+			return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(body);
+		}
+		UserBatchResultDto result = userService.upsertUserByEmail(email, form);
+		return withETag(written(ResponseEntity.status(result.getStatus())), result.getUser().getVersion())
+				.body(result.getUser());
+	}
+
+	@ApiOperation(produces = "application/json", value = "Create or update up to " + UserService.MAX_BATCH_SIZE + " users by email from a JSON Array of forms, in one JDBC batch. "
+			+ "Returns one result per form, in order, with status CREATED or OK and the user, or the errors for that form.", consumes = "application/json")
+	@PutMapping(path = "/by-email", produces = "application/json", consumes = "application/json")
+	@UsesBulkhead(Bulkheads.Type.WRITES)
+	public ResponseEntity<?> upsertUsersByEmail(@RequestBody List<UserForm> userForms) throws AccountsManagerException {
+		return written(ResponseEntity.status(HttpStatus.OK)).body(userService.upsertUsersByEmail(userForms));
 	}
 
 	@ApiOperation(value = "Delete user with id from the path. No content is returned.")
 	@DeleteMapping(path = "/{userId}")
+	@UsesBulkhead(Bulkheads.Type.WRITES)
 	public ResponseEntity<?> deleteUser(@PathVariable Long userId) throws AccountsManagerException {
 		userService.deleteUserById(userId);
-		return ResponseEntity.status(HttpStatus.NO_CONTENT).build();
+		return written(ResponseEntity.status(HttpStatus.NO_CONTENT)).build();
+	}
+
+	// echoing the token on later reads makes them see this write even when replicas lag behind
+	private ResponseEntity.BodyBuilder written(ResponseEntity.BodyBuilder builder) {
+		return builder.header(ReadConsistency.TOKEN_HEADER, readConsistency.issueToken());
+	}
+
+	static ResponseEntity.BodyBuilder withETag(ResponseEntity.BodyBuilder builder, Long version) {
+		return version == null ? builder : builder.eTag(version.toString());
+	}
+
+	static long toEpochMilli(LocalDateTime dateTime) {
+		return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+	}
+
+	static Long parseIfMatch(String ifMatch) throws AccountsManagerException {
+		String tag = ifMatch.trim();
+		if (tag.contains(",")) {
+			throw new AccountsManagerException("If-Match must contain a single entity tag", HttpStatus.BAD_REQUEST);
+		}
+		// If-Match uses strong comparison, so weak or foreign tags can never match a user version
+		if (tag.length() < 3 || !tag.startsWith("\"") || !tag.endsWith("\"")) {
+			throw new AccountsManagerException("If-Match " + tag + " does not match the current user version",
+					HttpStatus.PRECONDITION_FAILED);
+		}
+		try {
+			return Long.valueOf(tag.substring(1, tag.length() - 1));
+		} catch (NumberFormatException ex) {
+			throw new AccountsManagerException("If-Match " + tag + " does not match the current user version",
+					HttpStatus.PRECONDITION_FAILED);
+		}
 	}
 
-	private String convertFieldErrorsIntoString(BindingResult bindingResult) {
+	static String convertFieldErrorsIntoString(BindingResult bindingResult) {
 		String body = bindingResult.getFieldErrors().stream()
 				.map(fe -> fe.getField().toUpperCase() + " : " + fe.getDefaultMessage())
 				.collect(Collectors.joining(System.lineSeparator()));
@@ -0,0 +1,145 @@
+package com.westnacher.uam.datasources;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.function.Supplier;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.westnacher.uam.exceptions.AccountsManagerException;
+
+/**
+ * Read-your-writes on top of replicas that may lag the primary by up to
+ * uam.datasource.replica-lag-window. Writes hand out a consistency token, and
+ * reads presenting a token younger than the window are served by the primary.
+ * Tokens are signed, so that clients cannot pin their reads to the primary
+ * with made up timestamps. Instances behind one load balancer need the same
+ * uam.datasource.consistency-token-secret to accept each other's tokens.
+ */
+@Component
+public class ReadConsistency {
+
+	public static final String TOKEN_HEADER = "X-Consistency-Token";
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReadConsistency.class);
+	private static final String SIGNATURE_ALGORITHM = "HmacSHA256";
+
+	private static final ThreadLocal<Boolean> PRIMARY_REQUIRED = new ThreadLocal<>();
+
+	private final long lagWindowMillis;
+	private final SecretKeySpec signingKey;
+	private final Cache<Long, Boolean> recentWrites;
+
+	@Autowired
+	public ReadConsistency(@Value("${uam.datasource.replica-lag-window:5s}") Duration lagWindow,
+			@Value("${uam.datasource.consistency-token-secret:}") String secret) {
+		this.lagWindowMillis = lagWindow.toMillis();
+		this.signingKey = new SecretKeySpec(secret.isEmpty() ? randomSecret() : secret.getBytes(StandardCharsets.UTF_8),
+				SIGNATURE_ALGORITHM);
+		this.recentWrites = Caffeine.newBuilder().expireAfterWrite(lagWindow).build();
+	}
+
+	public static boolean isPrimaryRequired() {
+		return Boolean.TRUE.equals(PRIMARY_REQUIRED.get());
+	}
+
+	public String issueToken() {
+		return issueToken(System.currentTimeMillis());
+	}
+
+	String issueToken(long issuedAt) {
+		return issuedAt + "." + sign(issuedAt);
+	}
+
+	/**
+	 * Routes the reads of the current thread to the primary if the token is
+	 * younger than the lag window. Must be paired with {@link #clear()}.
+	 */
+	public void requirePrimaryFor(String token) throws AccountsManagerException {
+		String[] parts = token.trim().split("\\.", -1);
+		long issuedAt;
+		try {
+			issuedAt = Long.parseLong(parts[0]);
+		} catch (NumberFormatException ex) {
+			throw invalidToken(token);
+		}
+		if (parts.length != 2 || !MessageDigest.isEqual(sign(issuedAt).getBytes(StandardCharsets.US_ASCII),
+				parts[1].getBytes(StandardCharsets.US_ASCII))) {
+			throw invalidToken(token);
+		}
+		// a token from an instance whose clock runs ahead is as young as a token can be
+		long now = System.currentTimeMillis();
+		if (now - Math.min(issuedAt, now) < lagWindowMillis) {
+			PRIMARY_REQUIRED.set(Boolean.TRUE);
+		}
+	}
+
+	public void clear() {
+		PRIMARY_REQUIRED.remove();
+	}
+
+	private String sign(long issuedAt) {
+		try {
+			Mac mac = Mac.getInstance(SIGNATURE_ALGORITHM);
+			mac.init(signingKey);
+			byte[] signature = mac.doFinal(Long.toString(issuedAt).getBytes(StandardCharsets.US_ASCII));
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException(SIGNATURE_ALGORITHM + " is not available", ex);
+		}
+	}
+
+	private static AccountsManagerException invalidToken(String token) {
+		return new AccountsManagerException("Invalid " + TOKEN_HEADER + " : " + token, HttpStatus.BAD_REQUEST);
+	}
+
+	private static byte[] randomSecret() {
+		LOGGER.info("No uam.datasource.consistency-token-secret set, consistency tokens only work on this instance");
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		return secret;
+	}
+
+	public <T> T onPrimary(Supplier<T> read) {
+		if (isPrimaryRequired()) {
+			return read.get();
+		}
+		PRIMARY_REQUIRED.set(Boolean.TRUE);
+		try {
+			return read.get();
+		} finally {
+			PRIMARY_REQUIRED.remove();
+		}
+	}
+
+	public <T> T onPrimaryIf(boolean condition, Supplier<T> read) {
+		return condition ? onPrimary(read) : read.get();
+	}
+
+	/**
+	 * Remembers the user as written so that loads into shared caches read it from
+	 * the primary until every replica must have caught up.
+	 */
+	public void recordWrite(Long userId) {
+		recentWrites.put(userId, Boolean.TRUE);
+	}
+
+	public boolean isRecentlyWritten(Long userId) {
+		return recentWrites.getIfPresent(userId) != null;
+	}
+
+}
@@ -0,0 +1,163 @@
+package com.westnacher.uam.datasources;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Hands out replica connections to read-only transactions and primary
+ * connections to everything else. Replicas are picked round-robin among those
+ * that passed the last health check. A replica that fails to hand out a
+ * connection is skipped until it passes a check again, and the read goes to
+ * the primary meanwhile.
+ *
+ * Must be wrapped in a LazyConnectionDataSourceProxy, so the connection is only
+ * fetched once the transaction has been marked read-only.
+ */
+public class ReplicaRoutingDataSource extends AbstractDataSource implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+	private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+
+	private final DataSource primary;
+	private final List<Replica> replicas = new ArrayList<>();
+	private final AtomicInteger next = new AtomicInteger();
+	private final ScheduledExecutorService healthChecker;
+
+	public ReplicaRoutingDataSource(DataSource primary, List<DataSource> replicas, Duration healthCheckInterval) {
+		this.primary = primary;
+		for (DataSource replica : replicas) {
+			this.replicas.add(new Replica(replica));
+		}
+		this.healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "replica-health-checker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long intervalMillis = healthCheckInterval.toMillis();
+		if (intervalMillis > 0) {
+			healthChecker.scheduleWithFixedDelay(this::checkReplicas, intervalMillis, intervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		Replica replica = route();
+		if (replica == null) {
+			return primary.getConnection();
+		}
+		try {
+			return replica.dataSource.getConnection();
+		} catch (SQLException ex) {
+			markDown(replica, ex);
+			return primary.getConnection();
+		}
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		Replica replica = route();
+		if (replica == null) {
+			return primary.getConnection(username, password);
+		}
+		try {
+			return replica.dataSource.getConnection(username, password);
+		} catch (SQLException ex) {
+			markDown(replica, ex);
+			return primary.getConnection(username, password);
+		}
+	}
+
+	public int healthyReplicaCount() {
+		int healthy = 0;
+		for (Replica replica : replicas) {
+			if (replica.healthy) {
+				healthy++;
+			}
+		}
+		return healthy;
+	}
+
+	void checkReplicas() {
+		for (Replica replica : replicas) {
+			boolean healthy;
+			try (Connection connection = replica.dataSource.getConnection()) {
+				healthy = connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+			} catch (SQLException ex) {
+				healthy = false;
+			}
+			if (healthy != replica.healthy) {
+				LOGGER.info("Replica {} is {}", replicas.indexOf(replica), healthy ? "back up" : "down");
+			}
+			replica.healthy = healthy;
+		}
+	}
+
+	@Override
+	public void close() {
+		healthChecker.shutdownNow();
+		closeQuietly(primary);
+		for (Replica replica : replicas) {
+			closeQuietly(replica.dataSource);
+		}
+	}
+
+	// null means the primary
+	private Replica route() {
+		if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly() || ReadConsistency.isPrimaryRequired()) {
+			return null;
+		}
+		int size = replicas.size();
+		int start = Math.floorMod(next.getAndIncrement(), Math.max(size, 1));
+		for (int i = 0; i < size; i++) {
+			Replica replica = replicas.get((start + i) % size);
+			if (replica.healthy) {
+				return replica;
+			}
+		}
+		return null;
+	}
+
+	private void markDown(Replica replica, SQLException ex) {
+		replica.healthy = false;
+		LOGGER.warn("Replica {} refused a connection, reading from the primary until it recovers",
+				replicas.indexOf(replica), ex);
+	}
+
+	private static void closeQuietly(DataSource dataSource) {
+		if (dataSource instanceof Closeable) {
+			try {
+				((Closeable) dataSource).close();
+			} catch (Exception ex) {
+				LOGGER.warn("Closing data source failed", ex);
+			}
+		}
+	}
+
+	private static class Replica {
+
+		private final DataSource dataSource;
+		private volatile boolean healthy = true;
+
+		private Replica(DataSource dataSource) {
+			this.dataSource = dataSource;
+		}
+	}
+
+}
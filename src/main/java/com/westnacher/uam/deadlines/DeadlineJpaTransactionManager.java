@@ -0,0 +1,53 @@
+package com.westnacher.uam.deadlines;
+
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+import org.springframework.transaction.support.DelegatingTransactionDefinition;
+
+/**
+ * Begins the transactions of a request with what is left of its
+ * {@link RequestDeadline} as timeout, which Hibernate passes to every statement
+ * as JDBC query timeout. Once the deadline passed no transaction begins, so the
+ * request does not even take a connection, and none commits, so a write is
+ * never visible later than its deadline.
+ */
+public class DeadlineJpaTransactionManager extends JpaTransactionManager {
+
+	private static final long serialVersionUID = -2486011964372409157L;
+
+	@Override
+	protected void doBegin(Object transaction, TransactionDefinition definition) {
+		Long remainingMillis = RequestDeadline.remainingMillis();
+		if (remainingMillis == null) {
+			super.doBegin(transaction, definition);
+			return;
+		}
+		if (remainingMillis <= 0) {
+			throw RequestDeadline.expired();
+		}
+		// JDBC query timeouts are whole seconds, rounded up so that they never fire early
+		int remainingSeconds = (int) Math.min(Integer.MAX_VALUE, (remainingMillis + 999) / 1000);
+		int timeout = definition.getTimeout() == TransactionDefinition.TIMEOUT_DEFAULT ? remainingSeconds
+				: Math.min(definition.getTimeout(), remainingSeconds);
+		super.doBegin(transaction, new DelegatingTransactionDefinition(definition) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public int getTimeout() {
+				return timeout;
+			}
+		});
+	}
+
+	// rolled back instead, the caller gave up on it anyway
+	@Override
+	protected void doCommit(DefaultTransactionStatus status) {
+		if (RequestDeadline.isExpired()) {
+			throw RequestDeadline.expired();
+		}
+		super.doCommit(status);
+	}
+
+}
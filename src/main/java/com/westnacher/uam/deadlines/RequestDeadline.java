@@ -0,0 +1,121 @@
+package com.westnacher.uam.deadlines;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import com.westnacher.uam.bulkheads.Bulkheads;
+import com.westnacher.uam.exceptions.AccountsManagerException;
+
+/**
+ * The point in time after which nobody waits for the current request anymore,
+ * the default of the endpoint's bulkhead. Callers can shorten it with the
+ * X-Request-Timeout header in milliseconds, but not extend it.
+ * {@link DeadlineJpaTransactionManager} turns what is left of it into the
+ * statement timeout of every transaction the request begins.
+ */
+@Component
+public class RequestDeadline {
+
+	public static final String TIMEOUT_HEADER = "X-Request-Timeout";
+
+	// System.nanoTime() of the deadline
+	private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<>();
+
+	private final Map<Bulkheads.Type, Duration> defaults = new EnumMap<>(Bulkheads.Type.class);
+
+	@Autowired
+	public RequestDeadline(@Value("${uam.deadlines.point-reads:2s}") Duration pointReads,
+			@Value("${uam.deadlines.writes:5s}") Duration writes, @Value("${uam.deadlines.bulk:30s}") Duration bulk) {
+		defaults.put(Bulkheads.Type.POINT_READS, pointReads);
+		defaults.put(Bulkheads.Type.WRITES, writes);
+		defaults.put(Bulkheads.Type.BULK, bulk);
+	}
+
+	/**
+	 * Milliseconds left until the deadline of the current thread, negative once it
+	 * passed and null without a deadline.
+	 */
+	public static Long remainingMillis() {
+		Long deadline = DEADLINE.get();
+		return deadline == null ? null : TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+	}
+
+	/**
+	 * The deadline of the current thread as System.nanoTime(), null without one.
+	 * Hand it to {@link #callWithin(Long, Supplier)} to carry it to another thread.
+	 */
+	public static Long current() {
+		return DEADLINE.get();
+	}
+
+	public static <T> T callWithin(Long deadline, Supplier<T> work) {
+		Long previous = DEADLINE.get();
+		if (deadline == null) {
+			DEADLINE.remove();
+		} else {
+			DEADLINE.set(deadline);
+		}
+		try {
+			return work.get();
+		} finally {
+			if (previous == null) {
+				DEADLINE.remove();
+			} else {
+				DEADLINE.set(previous);
+			}
+		}
+	}
+
+	public static boolean isExpired() {
+		Long deadline = DEADLINE.get();
+		return deadline != null && deadline - System.nanoTime() <= 0;
+	}
+
+	public static AccountsManagerException expired() {
+		return new AccountsManagerException("The request deadline passed before the request completed",
+				HttpStatus.GATEWAY_TIMEOUT);
+	}
+
+	public Duration defaultTimeout(Bulkheads.Type type) {
+		return type == null ? null : defaults.get(type);
+	}
+
+	/**
+	 * Starts the deadline of the current thread from the default of the
+	 * endpoint's bulkhead, or from the header when that is shorter. Endpoints
+	 * without a bulkhead get no deadline. Must be paired with {@link #clear()}.
+	 */
+	public void start(String timeoutHeader, Bulkheads.Type type) throws AccountsManagerException {
+		Long requestedMillis = timeoutHeader == null ? null : parse(timeoutHeader);
+		Duration timeout = defaultTimeout(type);
+		if (timeout == null) {
+			return;
+		}
+		if (requestedMillis != null && requestedMillis < timeout.toMillis()) {
+			timeout = Duration.ofMillis(requestedMillis);
+		}
+		DEADLINE.set(System.nanoTime() + timeout.toNanos());
+	}
+
+	public void clear() {
+		DEADLINE.remove();
+	}
+
+	private static long parse(String timeoutHeader) throws AccountsManagerException {
+		try {
+			return Math.max(0, Long.parseLong(timeoutHeader.trim()));
+		} catch (NumberFormatException ex) {
+			throw new AccountsManagerException("Invalid " + TIMEOUT_HEADER + " : " + timeoutHeader,
+					HttpStatus.BAD_REQUEST);
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.westnacher.uam.dtos;
+
+import java.time.LocalDateTime;
+
+import com.fasterxml.jackson.annotation.JsonRawValue;
+import com.westnacher.uam.models.OutboxEvent;
+
+public class OutboxMessageDto {
+
+	private Long id;
+	private UserChangeEventDto.Type type;
+	private Long userId;
+	private Long version;
+	private String payload;
+	private LocalDateTime createdAt;
+
+	public OutboxMessageDto() {
+	}
+
+	public OutboxMessageDto(Long id, UserChangeEventDto.Type type, Long userId, Long version, String payload,
+			LocalDateTime createdAt) {
+		this.id = id;
+		this.type = type;
+		this.userId = userId;
+		this.version = version;
+		this.payload = payload;
+		this.createdAt = createdAt;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public UserChangeEventDto.Type getType() {
+		return type;
+	}
+
+	public void setType(UserChangeEventDto.Type type) {
+		this.type = type;
+	}
+
+	public Long getUserId() {
+		return userId;
+	}
+
+	public void setUserId(Long userId) {
+		this.userId = userId;
+	}
+
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+
+	/**
+	 * The user as JSON, already serialized when the change was written. Missing
+	 * for deletes and for edits applied without loading the user.
+	 */
+	@JsonRawValue
+	public String getPayload() {
+		return payload;
+	}
+
+	public void setPayload(String payload) {
+		this.payload = payload;
+	}
+
+	public LocalDateTime getCreatedAt() {
+		return createdAt;
+	}
+
+	public void setCreatedAt(LocalDateTime createdAt) {
+		this.createdAt = createdAt;
+	}
+
+	public static OutboxMessageDto of(OutboxEvent event) {
+		return new OutboxMessageDto(event.getId(), event.getType(), event.getUserId(), event.getVersion(),
+				event.getPayload(), event.getCreatedAt());
+	}
+}
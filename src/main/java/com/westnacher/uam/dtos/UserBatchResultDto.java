@@ -0,0 +1,72 @@
+package com.westnacher.uam.dtos;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.springframework.http.HttpStatus;
+
+public class UserBatchResultDto {
+
+	private int index;
+	private HttpStatus status;
+	private UserDto user;
+	private List<String> errors;
+
+	public UserBatchResultDto() {
+	}
+
+	public UserBatchResultDto(int index, HttpStatus status, UserDto user, List<String> errors) {
+		this.index = index;
+		this.status = status;
+		this.user = user;
+		this.errors = errors;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public void setIndex(int index) {
+		this.index = index;
+	}
+
+	public HttpStatus getStatus() {
+		return status;
+	}
+
+	public void setStatus(HttpStatus status) {
+		this.status = status;
+	}
+
+	public UserDto getUser() {
+		return user;
+	}
+
+	public void setUser(UserDto user) {
+		this.user = user;
+	}
+
+	public List<String> getErrors() {
+		return errors;
+	}
+
+	public void setErrors(List<String> errors) {
+		this.errors = errors;
+	}
+
+	public static UserBatchResultDto created(int index, UserDto user) {
+		return new UserBatchResultDto(index, HttpStatus.CREATED, user, null);
+	}
+
+	public static UserBatchResultDto updated(int index, UserDto user) {
+		return new UserBatchResultDto(index, HttpStatus.OK, user, null);
+	}
+
+	public static UserBatchResultDto failed(int index, HttpStatus status, String... errors) {
+		return new UserBatchResultDto(index, status, null, Arrays.asList(errors));
+	}
+
+	public static UserBatchResultDto failed(int index, HttpStatus status, List<String> errors) {
+		return new UserBatchResultDto(index, status, null, errors);
+	}
+}
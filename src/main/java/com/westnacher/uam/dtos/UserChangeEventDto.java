@@ -0,0 +1,70 @@
+package com.westnacher.uam.dtos;
+
+public class UserChangeEventDto {
+
+	public enum Type {
+		CREATED, UPDATED, DELETED
+	}
+
+	private long sequence;
+	private Type type;
+	private Long userId;
+	private Long version;
+	private UserDto user;
+
+	public UserChangeEventDto() {
+	}
+
+	public UserChangeEventDto(long sequence, Type type, Long userId, Long version, UserDto user) {
+		this.sequence = sequence;
+		this.type = type;
+		this.userId = userId;
+		this.version = version;
+		this.user = user;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public void setType(Type type) {
+		this.type = type;
+	}
+
+	public Long getUserId() {
+		return userId;
+	}
+
+	public void setUserId(Long userId) {
+		this.userId = userId;
+	}
+
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+
+	/**
+	 * Missing when the change was applied without loading the user, fetch it by
+	 * id if the full state is needed.
+	 */
+	public UserDto getUser() {
+		return user;
+	}
+
+	public void setUser(UserDto user) {
+		this.user = user;
+	}
+
+}
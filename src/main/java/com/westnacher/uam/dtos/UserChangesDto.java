@@ -0,0 +1,54 @@
+package com.westnacher.uam.dtos;
+
+import java.util.List;
+
+public class UserChangesDto {
+
+	private List<UserDto> users;
+	private List<UserTombstoneDto> deleted;
+	private String nextToken;
+	private boolean hasMore;
+
+	public UserChangesDto() {
+	}
+
+	public UserChangesDto(List<UserDto> users, List<UserTombstoneDto> deleted, String nextToken, boolean hasMore) {
+		this.users = users;
+		this.deleted = deleted;
+		this.nextToken = nextToken;
+		this.hasMore = hasMore;
+	}
+
+	public List<UserDto> getUsers() {
+		return users;
+	}
+
+	public void setUsers(List<UserDto> users) {
+		this.users = users;
+	}
+
+	public List<UserTombstoneDto> getDeleted() {
+		return deleted;
+	}
+
+	public void setDeleted(List<UserTombstoneDto> deleted) {
+		this.deleted = deleted;
+	}
+
+	public String getNextToken() {
+		return nextToken;
+	}
+
+	public void setNextToken(String nextToken) {
+		this.nextToken = nextToken;
+	}
+
+	public boolean isHasMore() {
+		return hasMore;
+	}
+
+	public void setHasMore(boolean hasMore) {
+		this.hasMore = hasMore;
+	}
+
+}
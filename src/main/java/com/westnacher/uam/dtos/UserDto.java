@@ -3,6 +3,7 @@ package com.westnacher.uam.dtos;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 
+import com.westnacher.uam.forms.UserForm;
 import com.westnacher.uam.models.User;
 
 public class UserDto {
@@ -14,6 +15,7 @@ public class UserDto {
 	private LocalDate dateOfBirth;
 	private LocalDateTime registeredAt;
 	private LocalDateTime modifiedAt;
+	private Long version;
 
 	public Long getId() {
 		return id;
@@ -71,6 +73,14 @@ public class UserDto {
 		this.modifiedAt = modifiedAt;
 	}
 
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+
 	public static UserDto of(User user) {
 		UserDto result = new UserDto();
 
@@ -81,6 +91,26 @@ public class UserDto {
 		result.setDateOfBirth(user.getDateOfBirth());
 		result.setRegisteredAt(user.getRegisteredAt());
 		result.setModifiedAt(user.getModifiedAt());
+		result.setVersion(user.getVersion());
+
+		return result;
+	}
+
+	/**
+	 * The user as written from the form, without reading it back.
+	 */
+	public static UserDto of(Long id, UserForm form, Long version, LocalDateTime modifiedAt,
+			LocalDateTime registeredAt) {
+		UserDto result = new UserDto();
+
+		result.setId(id);
+		result.setFirstName(form.getFirstName());
+		result.setLastName(form.getLastName());
+		result.setEmail(form.getEmail());
+		result.setDateOfBirth(form.getDateOfBirth());
+		result.setRegisteredAt(registeredAt);
+		result.setModifiedAt(modifiedAt);
+		result.setVersion(version);
 
 		return result;
 	}
@@ -0,0 +1,51 @@
+package com.westnacher.uam.dtos;
+
+import org.springframework.http.HttpStatus;
+
+public class UserLookupResultDto {
+
+	private Long id;
+	private HttpStatus status;
+	private UserDto user;
+
+	public UserLookupResultDto() {
+	}
+
+	public UserLookupResultDto(Long id, HttpStatus status, UserDto user) {
+		this.id = id;
+		this.status = status;
+		this.user = user;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public HttpStatus getStatus() {
+		return status;
+	}
+
+	public void setStatus(HttpStatus status) {
+		this.status = status;
+	}
+
+	public UserDto getUser() {
+		return user;
+	}
+
+	public void setUser(UserDto user) {
+		this.user = user;
+	}
+
+	public static UserLookupResultDto found(Long id, UserDto user) {
+		return new UserLookupResultDto(id, HttpStatus.OK, user);
+	}
+
+	public static UserLookupResultDto notFound(Long id) {
+		return new UserLookupResultDto(id, HttpStatus.NOT_FOUND, null);
+	}
+}
@@ -0,0 +1,47 @@
+package com.westnacher.uam.dtos;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+public class UserPageDto {
+
+	private List<UserDto> users;
+	private String nextCursor;
+	private String eTag;
+
+	public UserPageDto() {
+	}
+
+	public UserPageDto(List<UserDto> users, String nextCursor) {
+		this.users = users;
+		this.nextCursor = nextCursor;
+	}
+
+	public List<UserDto> getUsers() {
+		return users;
+	}
+
+	public void setUsers(List<UserDto> users) {
+		this.users = users;
+	}
+
+	@JsonIgnore
+	public String getETag() {
+		return eTag;
+	}
+
+	@JsonIgnore
+	public void setETag(String eTag) {
+		this.eTag = eTag;
+	}
+
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	public void setNextCursor(String nextCursor) {
+		this.nextCursor = nextCursor;
+	}
+
+}
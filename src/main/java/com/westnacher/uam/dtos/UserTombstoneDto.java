@@ -0,0 +1,39 @@
+package com.westnacher.uam.dtos;
+
+import java.time.LocalDateTime;
+
+import com.westnacher.uam.models.UserTombstone;
+
+public class UserTombstoneDto {
+
+	private Long id;
+	private LocalDateTime deletedAt;
+
+	public UserTombstoneDto() {
+	}
+
+	public UserTombstoneDto(Long id, LocalDateTime deletedAt) {
+		this.id = id;
+		this.deletedAt = deletedAt;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public LocalDateTime getDeletedAt() {
+		return deletedAt;
+	}
+
+	public void setDeletedAt(LocalDateTime deletedAt) {
+		this.deletedAt = deletedAt;
+	}
+
+	public static UserTombstoneDto of(UserTombstone tombstone) {
+		return new UserTombstoneDto(tombstone.getId(), tombstone.getDeletedAt());
+	}
+}
@@ -0,0 +1,32 @@
+package com.westnacher.uam.dtos;
+
+import java.time.LocalDateTime;
+
+public class UserValidatorsDto {
+
+	private Long id;
+	private Long version;
+	private LocalDateTime modifiedAt;
+
+	public UserValidatorsDto(Long id, Long version, LocalDateTime modifiedAt) {
+		this.id = id;
+		this.version = version;
+		this.modifiedAt = modifiedAt;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public Long getVersion() {
+		return version;
+	}
+
+	public LocalDateTime getModifiedAt() {
+		return modifiedAt;
+	}
+
+	public static UserValidatorsDto of(UserDto user) {
+		return new UserValidatorsDto(user.getId(), user.getVersion(), user.getModifiedAt());
+	}
+}
@@ -0,0 +1,310 @@
+package com.westnacher.uam.events;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.westnacher.uam.dtos.UserChangeEventDto;
+import com.westnacher.uam.dtos.UserDto;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Fans user changes out to Server-Sent Events subscribers. Subscribers hold an
+ * async servlet response, not a thread. A single dispatcher thread assigns
+ * sequence numbers, owns the ring buffer of recent events and queues every
+ * event for every subscriber, so replays and live events reach each subscriber
+ * in order. A fixed pool of sender threads writes the queues out, a few
+ * events of one subscriber at a time. A subscriber more than maxQueued events
+ * behind, or with a single send blocked for longer than sendTimeout, is
+ * dropped and resumes with Last-Event-ID like after any other disconnect. Its
+ * sender is interrupted, a write that ignores that still ends at the write
+ * timeout of the servlet container, so stalled clients cannot hold on to
+ * every sender.
+ */
+@Component
+public class UserChangeFeed {
+
+	public static final String RESET_EVENT = "reset";
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(UserChangeFeed.class);
+
+	// then the subscriber waits behind the others for a sender again
+	private static final int EVENTS_PER_TURN = 100;
+
+	private final UserChangeEventDto[] buffer;
+	private final int maxQueued;
+	private final long timeoutMillis;
+	private final long sendTimeoutNanos;
+	private final ScheduledExecutorService dispatcher;
+	private final ExecutorService senders;
+	private final Map<SseEmitter, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+	// dispatcher thread only. Starting from the clock keeps ids increasing across restarts,
+	// so a Last-Event-ID from before a restart is older than the buffer and gets a reset
+	private long sequence = System.currentTimeMillis() * 1000;
+	private int size;
+
+	@Autowired
+	public UserChangeFeed(@Value("${uam.stream.buffer-size:10000}") int bufferSize,
+			@Value("${uam.stream.max-queued:10000}") int maxQueued,
+			@Value("${uam.stream.timeout:30m}") Duration timeout,
+			@Value("${uam.stream.heartbeat:30s}") Duration heartbeat,
+			@Value("${uam.stream.sender-threads:4}") int senderThreads,
+			@Value("${uam.stream.send-timeout:10s}") Duration sendTimeout, MeterRegistry meterRegistry) {
+		this(bufferSize, maxQueued, timeout, heartbeat, senderThreads, sendTimeout);
+		Gauge.builder("uam.users.stream.subscribers", subscribers, Map::size).register(meterRegistry);
+	}
+
+	UserChangeFeed(int bufferSize, int maxQueued, Duration timeout, Duration heartbeat, int senderThreads,
+			Duration sendTimeout) {
+		this.buffer = new UserChangeEventDto[bufferSize];
+		this.maxQueued = maxQueued;
+		this.timeoutMillis = timeout.toMillis();
+		this.sendTimeoutNanos = sendTimeout.toNanos();
+		this.dispatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "user-change-feed");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// a subscriber is queued here at most once, so the queue is bounded by the subscribers
+		this.senders = Executors.newFixedThreadPool(senderThreads, runnable -> {
+			Thread thread = new Thread(runnable, "user-change-feed-sender");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long heartbeatMillis = heartbeat.toMillis();
+		if (heartbeatMillis > 0) {
+			// lets proxies keep idle connections open and finds subscribers that went away
+			dispatcher.scheduleWithFixedDelay(this::heartbeat, heartbeatMillis, heartbeatMillis,
+					TimeUnit.MILLISECONDS);
+		}
+		if (sendTimeoutNanos > 0) {
+			long checkMillis = Math.max(1, sendTimeout.toMillis() / 2);
+			dispatcher.scheduleWithFixedDelay(this::dropStalled, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public void publish(UserChangeEventDto.Type type, Long userId, Long version, UserDto user) {
+		dispatcher.execute(() -> {
+			UserChangeEventDto event = new UserChangeEventDto(++sequence, type, userId, version, user);
+			buffer[(int) (event.getSequence() % buffer.length)] = event;
+			size = Math.min(size + 1, buffer.length);
+			for (Subscriber subscriber : subscribers.values()) {
+				subscriber.offer(event(event));
+			}
+		});
+	}
+
+	/**
+	 * Replays the buffered events after lastEventId, or sends a reset event when
+	 * they are no longer buffered and the client has to resync from
+	 * /users/changes, then delivers every new event. An id this feed cannot have
+	 * sent also gets a reset, an error response would only make EventSource
+	 * clients reconnect with the same header.
+	 */
+	public SseEmitter subscribe(String lastEventId) {
+		SseEmitter emitter = new SseEmitter(timeoutMillis);
+		subscribe(parseLastEventId(lastEventId), emitter);
+		return emitter;
+	}
+
+	void subscribe(Long lastEventId, SseEmitter emitter) {
+		emitter.onCompletion(() -> subscribers.remove(emitter));
+		emitter.onTimeout(() -> subscribers.remove(emitter));
+		emitter.onError(ex -> subscribers.remove(emitter));
+		dispatcher.execute(() -> {
+			Subscriber subscriber = new Subscriber(emitter);
+			if (lastEventId != null) {
+				List<UserChangeEventDto> missed = eventsAfter(lastEventId);
+				if (missed == null || missed.size() > maxQueued) {
+					subscriber.offer(reset());
+				} else {
+					missed.forEach(event -> subscriber.offer(event(event)));
+				}
+			}
+			subscribers.put(emitter, subscriber);
+		});
+	}
+
+	public int subscriberCount() {
+		return subscribers.size();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		dispatcher.shutdownNow();
+		senders.shutdownNow();
+		for (SseEmitter subscriber : subscribers.keySet()) {
+			subscriber.complete();
+		}
+		subscribers.clear();
+	}
+
+	private static Long parseLastEventId(String lastEventId) {
+		if (lastEventId == null || lastEventId.trim().isEmpty()) {
+			return null;
+		}
+		try {
+			return Long.valueOf(lastEventId.trim());
+		} catch (NumberFormatException ex) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	// null when events after lastEventId have already been overwritten
+	private List<UserChangeEventDto> eventsAfter(long lastEventId) {
+		long oldest = sequence - size + 1;
+		if (lastEventId < oldest - 1 || lastEventId > sequence) {
+			return null;
+		}
+		List<UserChangeEventDto> events = new ArrayList<>();
+		for (long next = lastEventId + 1; next <= sequence; next++) {
+			events.add(buffer[(int) (next % buffer.length)]);
+		}
+		return events;
+	}
+
+	private static SseEmitter.SseEventBuilder event(UserChangeEventDto event) {
+		return SseEmitter.event()
+				.id(Long.toString(event.getSequence()))
+				.data(event, MediaType.APPLICATION_JSON);
+	}
+
+	private SseEmitter.SseEventBuilder reset() {
+		return SseEmitter.event()
+				.id(Long.toString(sequence))
+				.name(RESET_EVENT)
+				.data("Missed events are no longer buffered, resync from /users/changes");
+	}
+
+	// only for idle subscribers, a queued event keeps the connection alive as well
+	private void heartbeat() {
+		for (Subscriber subscriber : subscribers.values()) {
+			subscriber.offerIfIdle(SseEmitter.event().comment("heartbeat"));
+		}
+	}
+
+	private void dropStalled() {
+		long now = System.nanoTime();
+		for (Subscriber subscriber : subscribers.values()) {
+			subscriber.dropIfSendingSince(now - sendTimeoutNanos);
+		}
+	}
+
+	private final class Subscriber {
+
+		private final SseEmitter emitter;
+		private final BlockingQueue<SseEmitter.SseEventBuilder> queue = new LinkedBlockingQueue<>(maxQueued);
+		private final AtomicBoolean draining = new AtomicBoolean();
+		private volatile boolean dropped;
+		// guarded by this, so that an interrupt only ever hits the send it was meant for
+		private Thread sender;
+		private long sendingSince;
+
+		private Subscriber(SseEmitter emitter) {
+			this.emitter = emitter;
+		}
+
+		// dispatcher thread only, never waits for the client
+		private void offer(SseEmitter.SseEventBuilder event) {
+			if (dropped) {
+				return;
+			}
+			if (!queue.offer(event)) {
+				LOGGER.debug("Dropping user change subscriber more than {} events behind", maxQueued);
+				drop();
+			}
+			drain();
+		}
+
+		private void offerIfIdle(SseEmitter.SseEventBuilder event) {
+			if (queue.isEmpty() && !draining.get()) {
+				offer(event);
+			}
+		}
+
+		private void drop() {
+			dropped = true;
+			subscribers.remove(emitter);
+			queue.clear();
+		}
+
+		// dispatcher thread
+		private void dropIfSendingSince(long stalledSince) {
+			synchronized (this) {
+				if (sender == null || sendingSince - stalledSince > 0) {
+					return;
+				}
+				LOGGER.debug("Dropping user change subscriber that has not taken an event for {} ms",
+						TimeUnit.NANOSECONDS.toMillis(sendTimeoutNanos));
+				drop();
+				sender.interrupt();
+			}
+		}
+
+		private void drain() {
+			if (draining.compareAndSet(false, true)) {
+				try {
+					senders.execute(this::send);
+				} catch (RuntimeException ex) {
+					// rejected on shutdown
+					draining.set(false);
+				}
+			}
+		}
+
+		// sender thread. Completing the emitter waits for a send in progress, so it happens here too
+		private void send() {
+			SseEmitter.SseEventBuilder event;
+			for (int sent = 0; sent < EVENTS_PER_TURN && !dropped && (event = queue.poll()) != null; sent++) {
+				try {
+					sending(Thread.currentThread());
+					emitter.send(event);
+				} catch (IOException | IllegalStateException ex) {
+					LOGGER.debug("Dropping user change subscriber", ex);
+					drop();
+					emitter.completeWithError(ex);
+					return;
+				} finally {
+					sending(null);
+				}
+			}
+			if (dropped) {
+				emitter.complete();
+				return;
+			}
+			draining.set(false);
+			if (!queue.isEmpty()) {
+				drain();
+			}
+		}
+
+		private synchronized void sending(Thread thread) {
+			sender = thread;
+			sendingSince = System.nanoTime();
+		}
+	}
+
+}
@@ -11,6 +11,7 @@ import javax.validation.constraints.Pattern;
 import javax.validation.constraints.Size;
 
 import com.westnacher.uam.InvalidMessages;
+import com.westnacher.uam.models.User;
 
 public class UserForm {
 	
@@ -73,4 +74,15 @@ public class UserForm {
 		this.dateOfBirth = dateOfBirth;
 	}
 
+	public static UserForm of(User user) {
+		UserForm result = new UserForm();
+
+		result.setFirstName(user.getFirstName());
+		result.setLastName(user.getLastName());
+		result.setEmail(user.getEmail());
+		result.setDateOfBirth(user.getDateOfBirth());
+
+		return result;
+	}
+
 }
@@ -0,0 +1,44 @@
+package com.westnacher.uam.generators;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Properties;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.Configurable;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+public class HibernateIdGenerator implements IdentifierGenerator, Configurable {
+
+	public static final String NAME = "uam-id-generator";
+	public static final String NODE_ID_SETTING = "uam.id.node-id";
+	public static final String GENERATOR_CLASS_SETTING = "uam.id.generator-class";
+
+	private IdGenerator idGenerator;
+
+	@Override
+	public void configure(Type type, Properties params, ServiceRegistry serviceRegistry) throws MappingException {
+		Map<?, ?> settings = serviceRegistry.getService(ConfigurationService.class).getSettings();
+		int nodeId = ConfigurationHelper.getInt(NODE_ID_SETTING, settings, 0);
+		String generatorClass = ConfigurationHelper.getString(GENERATOR_CLASS_SETTING, settings,
+				KSortedIdGenerator.class.getName());
+		try {
+			idGenerator = (IdGenerator) Class.forName(generatorClass).getConstructor(int.class).newInstance(nodeId);
+		} catch (ReflectiveOperationException | ClassCastException ex) {
+			throw new MappingException("Cannot create id generator " + generatorClass
+					+ ". It must implement IdGenerator and have a public constructor taking the node id", ex);
+		}
+	}
+
+	@Override
+	public Serializable generate(SharedSessionContractImplementor session, Object object) throws HibernateException {
+		return idGenerator.nextId();
+	}
+
+}
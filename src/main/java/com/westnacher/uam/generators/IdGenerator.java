@@ -0,0 +1,7 @@
+package com.westnacher.uam.generators;
+
+public interface IdGenerator {
+
+	long nextId();
+
+}
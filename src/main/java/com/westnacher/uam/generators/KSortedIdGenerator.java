@@ -0,0 +1,67 @@
+package com.westnacher.uam.generators;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * 64-bit ids made of 41 bits of milliseconds since {@link #EPOCH}, 10 bits of
+ * node id and 12 bits of per-millisecond sequence. Ids are strictly increasing
+ * per node: when the sequence overflows or the clock steps back, the generator
+ * keeps counting from the last timestamp it issued instead of waiting.
+ */
+public class KSortedIdGenerator implements IdGenerator {
+
+	public static final long EPOCH = Instant.parse("2020-01-01T00:00:00Z").toEpochMilli();
+
+	public static final int NODE_ID_BITS = 10;
+	public static final int SEQUENCE_BITS = 12;
+	public static final int MAX_NODE_ID = (1 << NODE_ID_BITS) - 1;
+
+	private static final int TIMESTAMP_BITS = 63 - NODE_ID_BITS - SEQUENCE_BITS;
+	private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+	private final long nodeId;
+	private final LongSupplier clock;
+
+	// timestamp and sequence of the last issued id, packed as (timestamp << SEQUENCE_BITS) | sequence
+	private final AtomicLong state = new AtomicLong();
+
+	public KSortedIdGenerator(int nodeId) {
+		this(nodeId, System::currentTimeMillis);
+	}
+
+	KSortedIdGenerator(int nodeId, LongSupplier clock) {
+		if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+			throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE_ID + " but was " + nodeId);
+		}
+		this.nodeId = nodeId;
+		this.clock = clock;
+	}
+
+	@Override
+	public long nextId() {
+		long now = clock.getAsLong() - EPOCH;
+		long current;
+		long next;
+		do {
+			current = state.get();
+			next = now > (current >>> SEQUENCE_BITS) ? now << SEQUENCE_BITS : current + 1;
+		} while (!state.compareAndSet(current, next));
+
+		long timestamp = next >>> SEQUENCE_BITS;
+		if (timestamp >>> TIMESTAMP_BITS != 0) {
+			throw new IllegalStateException("Timestamp does not fit in " + TIMESTAMP_BITS + " bits");
+		}
+		return timestamp << (NODE_ID_BITS + SEQUENCE_BITS) | nodeId << SEQUENCE_BITS | (next & SEQUENCE_MASK);
+	}
+
+	public static long timestampOf(long id) {
+		return (id >>> (NODE_ID_BITS + SEQUENCE_BITS)) + EPOCH;
+	}
+
+	public static int nodeIdOf(long id) {
+		return (int) ((id >>> SEQUENCE_BITS) & MAX_NODE_ID);
+	}
+
+}
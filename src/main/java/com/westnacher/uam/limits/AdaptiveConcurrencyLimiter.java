@@ -0,0 +1,179 @@
+package com.westnacher.uam.limits;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Limits the requests in flight to what the database keeps up with, and sheds
+ * the rest at once instead of letting them queue until they time out.
+ *
+ * The limit follows a latency gradient, like Netflix's gradient limit: after
+ * every window of completed requests their average latency is compared with
+ * the lowest window average seen, the latency without load. Latency within
+ * rttTolerance times that lets the limit grow by a few requests, latency
+ * beyond it shrinks the limit in proportion, by at most half. Both moves are
+ * smoothed. Windows in which less than half of the limit was used leave it as
+ * it is. Every PROBE_WINDOWS windows the latency without load is replaced by
+ * the lowest average of those windows, so the limit follows a database that
+ * stayed slower for that long but not a brief brownout.
+ */
+@Component
+public class AdaptiveConcurrencyLimiter {
+
+	private static final double SMOOTHING = 0.2;
+	private static final int QUEUE_SIZE = 4;
+	private static final int PROBE_WINDOWS = 1000;
+
+	private final boolean enabled;
+	private final int minLimit;
+	private final int maxLimit;
+	private final double rttTolerance;
+	private final int windowSize;
+	private final Ticker ticker;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final Counter dropped;
+	private volatile int limit;
+
+	// guarded by this
+	private double estimatedLimit;
+	private double noLoadRtt = Double.MAX_VALUE;
+	private double probeRtt = Double.MAX_VALUE;
+	private int probeWindows;
+	private long windowRttSum;
+	private int windowSamples;
+	private int windowMaxInFlight;
+
+	@Autowired
+	public AdaptiveConcurrencyLimiter(@Value("${uam.limiter.enabled:true}") boolean enabled,
+			@Value("${uam.limiter.initial-limit:20}") int initialLimit,
+			@Value("${uam.limiter.min-limit:5}") int minLimit,
+			@Value("${uam.limiter.max-limit:200}") int maxLimit,
+			@Value("${uam.limiter.rtt-tolerance:1.5}") double rttTolerance,
+			@Value("${uam.limiter.window-size:20}") int windowSize, MeterRegistry meterRegistry) {
+		this(enabled, initialLimit, minLimit, maxLimit, rttTolerance, windowSize, meterRegistry,
+				Ticker.systemTicker());
+	}
+
+	AdaptiveConcurrencyLimiter(boolean enabled, int initialLimit, int minLimit, int maxLimit, double rttTolerance,
+			int windowSize, MeterRegistry meterRegistry, Ticker ticker) {
+		if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+			throw new IllegalArgumentException("The limiter needs 1 <= min-limit <= initial-limit <= max-limit");
+		}
+		if (rttTolerance < 1 || windowSize < 1) {
+			throw new IllegalArgumentException("The limiter needs an rtt-tolerance and a window-size of at least 1");
+		}
+		this.enabled = enabled;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.rttTolerance = rttTolerance;
+		this.windowSize = windowSize;
+		this.ticker = ticker;
+		this.estimatedLimit = initialLimit;
+		this.limit = initialLimit;
+		this.dropped = meterRegistry.counter("uam.limiter.dropped");
+		Gauge.builder("uam.limiter.limit", this, AdaptiveConcurrencyLimiter::getLimit).register(meterRegistry);
+		Gauge.builder("uam.limiter.inflight", inFlight, AtomicInteger::get).register(meterRegistry);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * A permit to release once the request completed, null when the limit is
+	 * reached and the request has to be shed.
+	 */
+	public Permit tryAcquire() {
+		int current = inFlight.incrementAndGet();
+		if (current > limit) {
+			inFlight.decrementAndGet();
+			dropped.increment();
+			return null;
+		}
+		return new Permit(ticker.read(), current);
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public long getDropped() {
+		return (long) dropped.count();
+	}
+
+	private synchronized void onSample(long rttNanos, int inFlightAtStart) {
+		windowRttSum += rttNanos;
+		windowMaxInFlight = Math.max(windowMaxInFlight, inFlightAtStart);
+		if (++windowSamples < windowSize) {
+			return;
+		}
+		double shortRtt = Math.max(1, (double) windowRttSum / windowSamples);
+		int maxInFlight = windowMaxInFlight;
+		windowRttSum = 0;
+		windowSamples = 0;
+		windowMaxInFlight = 0;
+
+		noLoadRtt = Math.min(noLoadRtt, shortRtt);
+		probeRtt = Math.min(probeRtt, shortRtt);
+		if (++probeWindows == PROBE_WINDOWS) {
+			noLoadRtt = probeRtt;
+			probeRtt = Double.MAX_VALUE;
+			probeWindows = 0;
+		}
+		if (maxInFlight < estimatedLimit / 2) {
+			return;
+		}
+		double gradient = Math.max(0.5, Math.min(1.0, rttTolerance * noLoadRtt / shortRtt));
+		double newLimit = estimatedLimit * gradient + QUEUE_SIZE;
+		estimatedLimit = Math.max(minLimit,
+				Math.min(maxLimit, estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+		limit = (int) estimatedLimit;
+	}
+
+	public class Permit {
+
+		private final long startNanos;
+		private final int inFlightAtStart;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private Permit(long startNanos, int inFlightAtStart) {
+			this.startNanos = startNanos;
+			this.inFlightAtStart = inFlightAtStart;
+		}
+
+		/**
+		 * Releases the permit and feeds the latency of the request to the limit.
+		 */
+		public void release() {
+			if (released.compareAndSet(false, true)) {
+				inFlight.decrementAndGet();
+				onSample(ticker.read() - startNanos, inFlightAtStart);
+			}
+		}
+
+		/**
+		 * Releases the permit of a request whose latency says nothing about the
+		 * database, such as a long lived streaming response.
+		 */
+		public void releaseWithoutSample() {
+			if (released.compareAndSet(false, true)) {
+				inFlight.decrementAndGet();
+			}
+		}
+	}
+
+}
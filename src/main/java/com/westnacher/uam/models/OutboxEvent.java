@@ -0,0 +1,105 @@
+package com.westnacher.uam.models;
+
+import java.time.LocalDateTime;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+import org.hibernate.annotations.GenericGenerator;
+
+import com.westnacher.uam.dtos.UserChangeEventDto;
+import com.westnacher.uam.generators.HibernateIdGenerator;
+
+@Entity(name = "user_outbox")
+@Table(name = "user_outbox")
+public class OutboxEvent {
+
+	// k-sorted ids, so draining in id order publishes events roughly in the order they were written
+	@Id
+	@GeneratedValue(generator = HibernateIdGenerator.NAME)
+	@GenericGenerator(name = HibernateIdGenerator.NAME, strategy = "com.westnacher.uam.generators.HibernateIdGenerator")
+	private Long id;
+
+	@Enumerated(EnumType.STRING)
+	@Column(name = "type", length = 10, nullable = false)
+	private UserChangeEventDto.Type type;
+
+	@Column(name = "user_id", nullable = false)
+	private Long userId;
+
+	@Column(name = "version")
+	private Long version;
+
+	@Lob
+	@Column(name = "payload")
+	private String payload;
+
+	@Column(name = "created_at", nullable = false)
+	private LocalDateTime createdAt;
+
+	public OutboxEvent() {
+	}
+
+	public OutboxEvent(UserChangeEventDto.Type type, Long userId, Long version, String payload) {
+		this.type = type;
+		this.userId = userId;
+		this.version = version;
+		this.payload = payload;
+		this.createdAt = LocalDateTime.now();
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public UserChangeEventDto.Type getType() {
+		return type;
+	}
+
+	public void setType(UserChangeEventDto.Type type) {
+		this.type = type;
+	}
+
+	public Long getUserId() {
+		return userId;
+	}
+
+	public void setUserId(Long userId) {
+		this.userId = userId;
+	}
+
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+
+	public String getPayload() {
+		return payload;
+	}
+
+	public void setPayload(String payload) {
+		this.payload = payload;
+	}
+
+	public LocalDateTime getCreatedAt() {
+		return createdAt;
+	}
+
+	public void setCreatedAt(LocalDateTime createdAt) {
+		this.createdAt = createdAt;
+	}
+
+}
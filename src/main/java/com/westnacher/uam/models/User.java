@@ -6,21 +6,33 @@ import java.time.LocalDateTime;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.PrePersist;
 import javax.persistence.PreUpdate;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import javax.persistence.Version;
 import javax.validation.constraints.PastOrPresent;
 
+import org.hibernate.annotations.DynamicUpdate;
+import org.hibernate.annotations.GenericGenerator;
+
 import com.westnacher.uam.forms.UserForm;
+import com.westnacher.uam.generators.HibernateIdGenerator;
 
+// updates only set the columns that changed
+@DynamicUpdate
 @Entity(name = "user")
-@Table(name = "\"USER\"")
+@Table(name = "\"USER\"", uniqueConstraints = @UniqueConstraint(name = User.UNIQUE_EMAIL_CONSTRAINT, columnNames = "email"),
+		indexes = @Index(name = "idx_user_modified_at", columnList = "modified_at, id"))
 public class User {
 
+	public static final String UNIQUE_EMAIL_CONSTRAINT = "uk_user_email";
+
 	@Id
-	@GeneratedValue(strategy = GenerationType.AUTO)
+	@GeneratedValue(generator = HibernateIdGenerator.NAME)
+	@GenericGenerator(name = HibernateIdGenerator.NAME, strategy = "com.westnacher.uam.generators.HibernateIdGenerator")
 	private Long id;
 
 	@Column(name = "first_name", length = 30, nullable = false)
@@ -43,6 +55,10 @@ public class User {
 	@Column(name = "modified_at", nullable = false)
 	private LocalDateTime modifiedAt;
 
+	@Version
+	@Column(name = "version", nullable = false)
+	private Long version;
+
 	public User() {
 	}
 
@@ -113,6 +129,14 @@ public class User {
 		this.modifiedAt = modifiedAt;
 	}
 
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
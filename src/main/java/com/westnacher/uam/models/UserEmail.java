@@ -0,0 +1,88 @@
+package com.westnacher.uam.models;
+
+import java.time.LocalDateTime;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.PostLoad;
+import javax.persistence.PostPersist;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+
+import org.springframework.data.domain.Persistable;
+
+/**
+ * Claim of an email by a user, kept on the directory shard only. The primary
+ * key makes emails unique across all shards, and the user id leads to the
+ * shard that holds the user.
+ */
+@Entity(name = "user_email")
+@Table(name = "user_email", indexes = @Index(name = "idx_user_email_user_id", columnList = "user_id"))
+public class UserEmail implements Persistable<String> {
+
+	@Id
+	@Column(name = "email", length = 30)
+	private String email;
+
+	@Column(name = "user_id", nullable = false)
+	private Long userId;
+
+	@Column(name = "claimed_at", nullable = false)
+	private LocalDateTime claimedAt;
+
+	@Transient
+	private boolean isNew = true;
+
+	public UserEmail() {
+	}
+
+	public UserEmail(String email, Long userId, LocalDateTime claimedAt) {
+		this.email = email;
+		this.userId = userId;
+		this.claimedAt = claimedAt;
+	}
+
+	@Override
+	public String getId() {
+		return email;
+	}
+
+	public String getEmail() {
+		return email;
+	}
+
+	public void setEmail(String email) {
+		this.email = email;
+	}
+
+	public Long getUserId() {
+		return userId;
+	}
+
+	public void setUserId(Long userId) {
+		this.userId = userId;
+	}
+
+	public LocalDateTime getClaimedAt() {
+		return claimedAt;
+	}
+
+	public void setClaimedAt(LocalDateTime claimedAt) {
+		this.claimedAt = claimedAt;
+	}
+
+	// a claim is inserted without a lookup first, a taken email fails on the primary key instead
+	@Override
+	public boolean isNew() {
+		return isNew;
+	}
+
+	@PostLoad
+	@PostPersist
+	void markNotNew() {
+		this.isNew = false;
+	}
+
+}
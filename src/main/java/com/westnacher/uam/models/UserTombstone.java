@@ -0,0 +1,67 @@
+package com.westnacher.uam.models;
+
+import java.time.LocalDateTime;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.PostLoad;
+import javax.persistence.PostPersist;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+
+import org.springframework.data.domain.Persistable;
+
+@Entity(name = "user_tombstone")
+@Table(name = "user_tombstone", indexes = @Index(name = "idx_user_tombstone_deleted_at", columnList = "deleted_at, user_id"))
+public class UserTombstone implements Persistable<Long> {
+
+	@Id
+	@Column(name = "user_id")
+	private Long id;
+
+	@Column(name = "deleted_at", nullable = false)
+	private LocalDateTime deletedAt;
+
+	@Transient
+	private boolean isNew = true;
+
+	public UserTombstone() {
+	}
+
+	public UserTombstone(Long id, LocalDateTime deletedAt) {
+		this.id = id;
+		this.deletedAt = deletedAt;
+	}
+
+	@Override
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public LocalDateTime getDeletedAt() {
+		return deletedAt;
+	}
+
+	public void setDeletedAt(LocalDateTime deletedAt) {
+		this.deletedAt = deletedAt;
+	}
+
+	// user ids are never reused, so a new tombstone is inserted without a lookup first
+	@Override
+	public boolean isNew() {
+		return isNew;
+	}
+
+	@PostLoad
+	@PostPersist
+	void markNotNew() {
+		this.isNew = false;
+	}
+
+}
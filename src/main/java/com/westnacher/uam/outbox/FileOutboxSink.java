@@ -0,0 +1,62 @@
+package com.westnacher.uam.outbox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.westnacher.uam.dtos.OutboxMessageDto;
+
+/**
+ * Appends every message to a file as one line of JSON. A batch counts as
+ * published only once it has been forced to disk.
+ */
+@Component
+@ConditionalOnProperty(name = "uam.outbox.sink", havingValue = "file")
+public class FileOutboxSink implements OutboxSink {
+
+	private final ObjectMapper objectMapper;
+	private final FileChannel channel;
+
+	@Autowired
+	public FileOutboxSink(@Value("${uam.outbox.file.path:user-outbox.ndjson}") String path, ObjectMapper objectMapper)
+			throws IOException {
+		this(Paths.get(path), objectMapper);
+	}
+
+	FileOutboxSink(Path path, ObjectMapper objectMapper) throws IOException {
+		this.objectMapper = objectMapper;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+	}
+
+	@Override
+	public synchronized void publish(List<OutboxMessageDto> messages) throws IOException {
+		for (OutboxMessageDto message : messages) {
+			byte[] json = objectMapper.writeValueAsBytes(message);
+			ByteBuffer line = ByteBuffer.allocate(json.length + 1).put(json).put((byte) '\n');
+			line.flip();
+			while (line.hasRemaining()) {
+				channel.write(line);
+			}
+		}
+		channel.force(false);
+	}
+
+	@PreDestroy
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
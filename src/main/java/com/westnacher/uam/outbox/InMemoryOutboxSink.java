@@ -0,0 +1,48 @@
+package com.westnacher.uam.outbox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.westnacher.uam.dtos.OutboxMessageDto;
+
+/**
+ * Keeps the most recently published messages in memory, for local runs and
+ * tests.
+ */
+@Component
+@ConditionalOnProperty(name = "uam.outbox.sink", havingValue = "memory", matchIfMissing = true)
+public class InMemoryOutboxSink implements OutboxSink {
+
+	private final int capacity;
+	private final ArrayDeque<OutboxMessageDto> messages = new ArrayDeque<>();
+
+	@Autowired
+	public InMemoryOutboxSink(@Value("${uam.outbox.memory.capacity:10000}") int capacity) {
+		this.capacity = capacity;
+	}
+
+	@Override
+	public synchronized void publish(List<OutboxMessageDto> batch) {
+		for (OutboxMessageDto message : batch) {
+			if (messages.size() == capacity) {
+				messages.removeFirst();
+			}
+			messages.addLast(message);
+		}
+	}
+
+	public synchronized List<OutboxMessageDto> getMessages() {
+		return new ArrayList<>(messages);
+	}
+
+	public synchronized void clear() {
+		messages.clear();
+	}
+
+}
@@ -0,0 +1,150 @@
+package com.westnacher.uam.outbox;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.westnacher.uam.dtos.OutboxMessageDto;
+import com.westnacher.uam.models.OutboxEvent;
+import com.westnacher.uam.repositories.OutboxEventRepository;
+import com.westnacher.uam.shards.ShardRouting;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Drains the user outbox into the {@link OutboxSink} in batches. Each batch is
+ * read, published and deleted in one transaction, so a failed publish leaves
+ * the batch in place for the next poll. With sharded storage every shard has
+ * an outbox of its own, drained one after the other.
+ */
+@Component
+public class OutboxRelay {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(OutboxRelay.class);
+
+	private final boolean enabled;
+	private final int batchSize;
+	private final long pollIntervalMillis;
+	private final OutboxEventRepository outboxEventRepository;
+	private final OutboxSink sink;
+	private final ShardRouting shardRouting;
+	private final TransactionTemplate transaction;
+	private final ScheduledExecutorService executor;
+
+	private final Counter published;
+	private final Counter failures;
+	private final Timer drainTime;
+	private final Timer lag;
+
+	// creation time of the oldest event known to be waiting, null once the outbox was drained
+	private volatile LocalDateTime oldestPending;
+
+	@Autowired
+	public OutboxRelay(@Value("${uam.outbox.relay.enabled:true}") boolean enabled,
+			@Value("${uam.outbox.relay.batch-size:500}") int batchSize,
+			@Value("${uam.outbox.relay.poll-interval:1s}") Duration pollInterval,
+			OutboxEventRepository outboxEventRepository, OutboxSink sink, ShardRouting shardRouting,
+			PlatformTransactionManager transactionManager, MeterRegistry meterRegistry) {
+		this.enabled = enabled;
+		this.batchSize = batchSize;
+		this.pollIntervalMillis = pollInterval.toMillis();
+		this.outboxEventRepository = outboxEventRepository;
+		this.sink = sink;
+		this.shardRouting = shardRouting;
+		this.transaction = new TransactionTemplate(transactionManager);
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "user-outbox-relay");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.published = meterRegistry.counter("uam.outbox.published");
+		this.failures = meterRegistry.counter("uam.outbox.failures");
+		this.drainTime = meterRegistry.timer("uam.outbox.drain");
+		this.lag = meterRegistry.timer("uam.outbox.lag");
+		Gauge.builder("uam.outbox.pending.age", this, OutboxRelay::pendingAgeSeconds)
+				.baseUnit("seconds")
+				.register(meterRegistry);
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void start() {
+		if (enabled) {
+			executor.scheduleWithFixedDelay(this::drainAll, 0, pollIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		executor.shutdownNow();
+	}
+
+	void drainAll() {
+		boolean drained = true;
+		for (int shard = 0; shard < shardRouting.shardCount(); shard++) {
+			try (ShardRouting.Scope scope = shardRouting.enter(shard)) {
+				// keep going without waiting for the next poll while there is a backlog
+				while (drainBatch() == batchSize) {
+				}
+			} catch (RuntimeException ex) {
+				drained = false;
+				failures.increment();
+				LOGGER.warn("Publishing user outbox batch of shard {} failed, retrying in {} ms", shard,
+						pollIntervalMillis, ex);
+			}
+		}
+		if (drained) {
+			oldestPending = null;
+		}
+	}
+
+	int drainBatch() {
+		return drainTime.record(() -> transaction.execute(status -> {
+			List<OutboxEvent> events = outboxEventRepository.findByOrderByIdAsc(PageRequest.of(0, batchSize));
+			if (events.isEmpty()) {
+				return 0;
+			}
+			oldestPending = events.get(0).getCreatedAt();
+			try {
+				sink.publish(events.stream().map(OutboxMessageDto::of).collect(Collectors.toList()));
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+			outboxEventRepository.deleteInBatch(events);
+
+			LocalDateTime now = LocalDateTime.now();
+			for (OutboxEvent event : events) {
+				lag.record(Duration.between(event.getCreatedAt(), now));
+			}
+			published.increment(events.size());
+			return events.size();
+		}));
+	}
+
+	double pendingAgeSeconds() {
+		LocalDateTime oldest = oldestPending;
+		return oldest == null ? 0 : Duration.between(oldest, LocalDateTime.now()).toMillis() / 1000.0;
+	}
+
+}
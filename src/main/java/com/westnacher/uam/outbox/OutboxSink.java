@@ -0,0 +1,17 @@
+package com.westnacher.uam.outbox;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.westnacher.uam.dtos.OutboxMessageDto;
+
+/**
+ * Destination of the outbox relay. Delivery is at least once: when publish
+ * fails or the relay dies before the batch is removed from the outbox, the
+ * same messages are published again, so consumers should deduplicate by id.
+ */
+public interface OutboxSink {
+
+	public void publish(List<OutboxMessageDto> messages) throws IOException;
+
+}
@@ -0,0 +1,21 @@
+package com.westnacher.uam.repositories;
+
+import java.util.List;
+
+import javax.persistence.LockModeType;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.stereotype.Repository;
+
+import com.westnacher.uam.models.OutboxEvent;
+
+@Repository
+public interface OutboxEventRepository extends JpaRepository<OutboxEvent, Long> {
+
+	// locked so that relays on several instances never publish the same batch concurrently
+	@Lock(LockModeType.PESSIMISTIC_WRITE)
+	public List<OutboxEvent> findByOrderByIdAsc(Pageable pageable);
+
+}
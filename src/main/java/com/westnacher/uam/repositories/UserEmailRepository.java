@@ -0,0 +1,31 @@
+package com.westnacher.uam.repositories;
+
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import com.westnacher.uam.models.UserEmail;
+
+@Repository
+public interface UserEmailRepository extends JpaRepository<UserEmail, String> {
+
+	@Modifying
+	@Query("DELETE FROM user_email e WHERE e.email = :email AND e.userId = :userId")
+	public int deleteClaim(@Param("email") String email, @Param("userId") Long userId);
+
+	@Modifying
+	@Query("DELETE FROM user_email e WHERE e.userId = :userId AND e.email <> :email")
+	public int deleteOtherClaims(@Param("userId") Long userId, @Param("email") String email);
+
+	@Modifying
+	@Query("DELETE FROM user_email e WHERE e.userId = :userId")
+	public int deleteClaims(@Param("userId") Long userId);
+
+	public List<UserEmail> findByEmailGreaterThanOrderByEmailAsc(String email, Pageable pageable);
+
+}
@@ -1,15 +1,76 @@
 package com.westnacher.uam.repositories;
 
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import javax.persistence.QueryHint;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import com.westnacher.uam.dtos.UserValidatorsDto;
 import com.westnacher.uam.models.User;
 
 @Repository
-public interface UserRepository extends JpaRepository<User, Long> {
+public interface UserRepository extends JpaRepository<User, Long>, UserUpsertRepository {
+
+	public static final String STREAM_FETCH_SIZE = "1000";
 
 	public Optional<User> findByEmail(String email);
 
+	public List<User> findByEmailIn(Collection<String> emails);
+
+	@Query("SELECT u.email FROM user u WHERE u.email IN :emails")
+	public Set<String> findRegisteredEmails(@Param("emails") Collection<String> emails);
+
+	@Query("SELECT u.email FROM user u WHERE u.id = :id")
+	public Optional<String> findEmailById(@Param("id") Long id);
+
+	@Modifying
+	@Query("DELETE FROM user u WHERE u.id = :id")
+	public int deleteUserById(@Param("id") Long id);
+
+	@Modifying
+	@Query("UPDATE user u SET u.firstName = :firstName, u.lastName = :lastName, u.email = :email, "
+			+ "u.dateOfBirth = :dateOfBirth, u.modifiedAt = :modifiedAt, u.version = u.version + 1 "
+			+ "WHERE u.id = :id AND u.version = :version")
+	public int updateUserIfVersionMatches(@Param("id") Long id, @Param("version") Long version,
+			@Param("firstName") String firstName, @Param("lastName") String lastName, @Param("email") String email,
+			@Param("dateOfBirth") LocalDate dateOfBirth, @Param("modifiedAt") LocalDateTime modifiedAt);
+
+	public List<User> findByIdGreaterThanOrderByIdAsc(Long id, Pageable pageable);
+
+	@Query("SELECT u FROM user u WHERE u.modifiedAt >= :since AND (u.modifiedAt > :since OR u.id > :id) "
+			+ "AND u.modifiedAt < :until ORDER BY u.modifiedAt, u.id")
+	public List<User> findModifiedAfter(@Param("since") LocalDateTime since, @Param("id") Long id,
+			@Param("until") LocalDateTime until, Pageable pageable);
+
+	@Query("SELECT new com.westnacher.uam.dtos.UserValidatorsDto(u.id, u.version, u.modifiedAt) FROM user u WHERE u.id = :id")
+	public Optional<UserValidatorsDto> findValidatorsById(@Param("id") Long id);
+
+	@Query("SELECT new com.westnacher.uam.dtos.UserValidatorsDto(u.id, u.version, u.modifiedAt) FROM user u WHERE u.id > :id ORDER BY u.id")
+	public List<UserValidatorsDto> findValidatorsByIdGreaterThan(@Param("id") Long id, Pageable pageable);
+
+	@Query("SELECT new com.westnacher.uam.dtos.UserValidatorsDto(u.id, u.version, u.modifiedAt) FROM user u WHERE u.modifiedAt >= :since")
+	public List<UserValidatorsDto> findValidatorsModifiedSince(@Param("since") LocalDateTime since);
+
+	@QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE))
+	public Stream<User> streamAllByOrderByIdAsc();
+
+	@QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE))
+	@Query("SELECT u.email FROM user u")
+	public Stream<String> streamAllEmails();
+
 }
@@ -0,0 +1,27 @@
+package com.westnacher.uam.repositories;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import com.westnacher.uam.models.UserTombstone;
+
+@Repository
+public interface UserTombstoneRepository extends JpaRepository<UserTombstone, Long> {
+
+	@Query("SELECT t FROM user_tombstone t WHERE t.deletedAt >= :since AND (t.deletedAt > :since OR t.id > :id) "
+			+ "AND t.deletedAt < :until ORDER BY t.deletedAt, t.id")
+	public List<UserTombstone> findDeletedAfter(@Param("since") LocalDateTime since, @Param("id") Long id,
+			@Param("until") LocalDateTime until, Pageable pageable);
+
+	public List<UserTombstone> findByIdGreaterThanOrderByIdAsc(Long id, Pageable pageable);
+
+	@Query("SELECT t.id FROM user_tombstone t WHERE t.deletedAt >= :since")
+	public List<Long> findIdsDeletedSince(@Param("since") LocalDateTime since);
+
+}
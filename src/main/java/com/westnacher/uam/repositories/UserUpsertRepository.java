@@ -0,0 +1,19 @@
+package com.westnacher.uam.repositories;
+
+import java.util.List;
+
+import com.westnacher.uam.models.User;
+
+public interface UserUpsertRepository {
+
+	public Long nextId();
+
+	/**
+	 * Inserts every user whose email is not registered yet and overwrites the
+	 * names and date of birth of those that are, in one JDBC batch. Users
+	 * without an id get a new one. Whether a row was inserted shows in its id:
+	 * an updated row keeps the id it already had.
+	 */
+	public void upsertByEmail(List<User> users);
+
+}
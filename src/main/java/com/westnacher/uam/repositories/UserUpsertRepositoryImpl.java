@@ -0,0 +1,94 @@
+package com.westnacher.uam.repositories;
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.engine.jdbc.spi.JdbcCoordinator;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.westnacher.uam.models.User;
+
+public class UserUpsertRepositoryImpl implements UserUpsertRepository {
+
+	private static final String COLUMNS = "id, first_name, last_name, email, date_of_birth, registered_at, modified_at, version";
+
+	private final EntityManager entityManager;
+	private volatile String upsertSql;
+
+	@Autowired
+	public UserUpsertRepositoryImpl(EntityManager entityManager) {
+		this.entityManager = entityManager;
+	}
+
+	// the generator of the entity, so ids stay unique together with those assigned on persist
+	@Override
+	public Long nextId() {
+		SessionImplementor session = entityManager.unwrap(SessionImplementor.class);
+		return (Long) persister(session).getIdentifierGenerator().generate(session, null);
+	}
+
+	@Override
+	public void upsertByEmail(List<User> users) {
+		SessionImplementor session = entityManager.unwrap(SessionImplementor.class);
+		String sql = upsertSql(session);
+		LocalDateTime now = LocalDateTime.now();
+		// prepared through the session so it shares its connection, statement logging and inspection
+		JdbcCoordinator jdbcCoordinator = session.getJdbcCoordinator();
+		PreparedStatement statement = jdbcCoordinator.getStatementPreparer().prepareStatement(sql);
+		try {
+			for (User user : users) {
+				if (user.getId() == null) {
+					user.setId(nextId());
+				}
+				statement.setLong(1, user.getId());
+				statement.setString(2, user.getFirstName());
+				statement.setString(3, user.getLastName());
+				statement.setString(4, user.getEmail());
+				statement.setDate(5, Date.valueOf(user.getDateOfBirth()));
+				statement.setTimestamp(6, Timestamp.valueOf(now));
+				statement.setTimestamp(7, Timestamp.valueOf(now));
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		} catch (SQLException ex) {
+			throw session.getJdbcServices().getSqlExceptionHelper().convert(ex, "Could not upsert users", sql);
+		} finally {
+			jdbcCoordinator.getLogicalConnection().getResourceRegistry().release(statement);
+			jdbcCoordinator.afterStatementExecution();
+		}
+	}
+
+	private String upsertSql(SessionImplementor session) {
+		if (upsertSql == null) {
+			String table = persister(session).getTableName();
+			Dialect dialect = session.getJdbcServices().getDialect();
+			String insert = "INSERT INTO " + table + " (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, 0)";
+			if (dialect instanceof PostgreSQL81Dialect) {
+				upsertSql = insert + " ON CONFLICT (email) DO UPDATE SET first_name = EXCLUDED.first_name, "
+						+ "last_name = EXCLUDED.last_name, date_of_birth = EXCLUDED.date_of_birth, "
+						+ "modified_at = EXCLUDED.modified_at, version = " + table + ".version + 1";
+			} else {
+				// MySQL, and H2 in MySQL mode
+				upsertSql = insert + " ON DUPLICATE KEY UPDATE first_name = VALUES(first_name), "
+						+ "last_name = VALUES(last_name), date_of_birth = VALUES(date_of_birth), "
+						+ "modified_at = VALUES(modified_at), version = version + 1";
+			}
+		}
+		return upsertSql;
+	}
+
+	private static AbstractEntityPersister persister(SessionImplementor session) {
+		return (AbstractEntityPersister) session.getFactory().getMetamodel().entityPersister(User.class);
+	}
+
+}
@@ -1,73 +1,955 @@
 package com.westnacher.uam.services;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import javax.persistence.EntityManager;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+
+import org.hibernate.exception.ConstraintViolationException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.DigestUtils;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.westnacher.uam.bulkheads.Bulkheads;
+import com.westnacher.uam.caches.EmailBloomFilter;
+import com.westnacher.uam.caches.SingleFlight;
+import com.westnacher.uam.caches.UserCache;
+import com.westnacher.uam.datasources.ReadConsistency;
+import com.westnacher.uam.deadlines.DeadlineJpaTransactionManager;
+import com.westnacher.uam.deadlines.RequestDeadline;
+import com.westnacher.uam.dtos.UserBatchResultDto;
+import com.westnacher.uam.dtos.UserChangeEventDto;
+import com.westnacher.uam.dtos.UserChangesDto;
 import com.westnacher.uam.dtos.UserDto;
+import com.westnacher.uam.dtos.UserLookupResultDto;
+import com.westnacher.uam.dtos.UserPageDto;
+import com.westnacher.uam.dtos.UserTombstoneDto;
+import com.westnacher.uam.dtos.UserValidatorsDto;
+import com.westnacher.uam.events.UserChangeFeed;
 import com.westnacher.uam.exceptions.AccountsManagerException;
 import com.westnacher.uam.forms.UserForm;
+import com.westnacher.uam.models.OutboxEvent;
 import com.westnacher.uam.models.User;
+import com.westnacher.uam.models.UserTombstone;
+import com.westnacher.uam.repositories.OutboxEventRepository;
 import com.westnacher.uam.repositories.UserRepository;
+import com.westnacher.uam.repositories.UserTombstoneRepository;
+import com.westnacher.uam.shards.EmailDirectory;
+import com.westnacher.uam.shards.ShardRouting;
 
 @Service
 public class UserService {
 
+	public static final int DEFAULT_PAGE_SIZE = 50;
+	public static final int MAX_PAGE_SIZE = 1000;
+	public static final int MAX_BATCH_SIZE = 1000;
+	public static final int MAX_LOOKUP_SIZE = 1000;
+
+	// keeps the IN lists short enough for every driver and, with parameter padding, the number of query plans small
+	private static final int LOOKUP_CHUNK_SIZE = 250;
+
+	private static final int EXPORT_FLUSH_INTERVAL = 1000;
+
+	private static final Set<String> PATCHABLE_FIELDS = new HashSet<>(
+			Arrays.asList("firstName", "lastName", "email", "dateOfBirth"));
+
+	private static final Comparator<User> CHANGE_ORDER = Comparator.comparing(User::getModifiedAt)
+			.thenComparing(User::getId);
+	private static final Comparator<UserTombstone> DELETION_ORDER = Comparator.comparing(UserTombstone::getDeletedAt)
+			.thenComparing(UserTombstone::getId);
+
 	private final UserRepository userRepository;
+	private final UserTombstoneRepository userTombstoneRepository;
+	private final OutboxEventRepository outboxEventRepository;
+	private final EntityManager entityManager;
+	private final ObjectMapper objectMapper;
+	private final Validator validator;
+	private final UserCache userCache;
+	private final EmailBloomFilter emailBloomFilter;
+	private final UserChangeFeed userChangeFeed;
+	private final ReadConsistency readConsistency;
+	private final ShardRouting shardRouting;
+	private final EmailDirectory emailDirectory;
+	private final TransactionTemplate readOnlyTransaction;
+	private final TransactionTemplate separateTransaction;
+	private final Duration changesSettleTime;
+	private final Clock clock;
+	private final SingleFlight<Long, UserDto> userLookups = new SingleFlight<>();
 
 	@Autowired
-	public UserService(UserRepository userRepository) {
+	public UserService(UserRepository userRepository, UserTombstoneRepository userTombstoneRepository,
+			OutboxEventRepository outboxEventRepository, EntityManager entityManager, ObjectMapper objectMapper, Validator validator, UserCache userCache,
+			EmailBloomFilter emailBloomFilter, UserChangeFeed userChangeFeed, ReadConsistency readConsistency,
+			ShardRouting shardRouting, EmailDirectory emailDirectory, PlatformTransactionManager transactionManager,
+			RequestDeadline requestDeadline, @Value("${uam.changes.max-clock-skew:1s}") Duration maxClockSkew,
+			Clock clock) {
 		this.userRepository = userRepository;
+		this.userTombstoneRepository = userTombstoneRepository;
+		this.outboxEventRepository = outboxEventRepository;
+		this.entityManager = entityManager;
+		this.objectMapper = objectMapper;
+		this.validator = validator;
+		this.userCache = userCache;
+		this.emailBloomFilter = emailBloomFilter;
+		this.userChangeFeed = userChangeFeed;
+		this.readConsistency = readConsistency;
+		this.shardRouting = shardRouting;
+		this.emailDirectory = emailDirectory;
+		this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+		this.readOnlyTransaction.setReadOnly(true);
+		this.separateTransaction = new TransactionTemplate(transactionManager);
+		this.separateTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		// a write stamps its rows after its deadline started and cannot commit once it passed, so together with
+		// the skew between the clocks of the instances this is the longest a row can commit after its stamp
+		if (!(transactionManager instanceof DeadlineJpaTransactionManager) || maxClockSkew.isNegative()) {
+			throw new IllegalStateException("/users/changes needs write transactions bounded by their deadline "
+					+ "and a uam.changes.max-clock-skew that is not negative");
+		}
+		this.changesSettleTime = requestDeadline.defaultTimeout(Bulkheads.Type.WRITES).plus(maxClockSkew);
+		this.clock = clock;
+	}
+
+	public UserPageDto getAllUsers(String after, Integer limit) throws AccountsManagerException {
+		int pageSize = pageSize(limit);
+		Long afterId = after == null ? Long.MIN_VALUE : decodeCursor(after);
+
+		// one extra row tells us whether another page exists without a count query,
+		// query methods are not read-only on their own and would not be routed to a replica
+		List<User> users = mergeSorted(shardRouting.scatter(shard -> readOnlyTransaction.execute(status -> userRepository
+				.findByIdGreaterThanOrderByIdAsc(afterId, PageRequest.of(0, pageSize + 1)))),
+				Comparator.comparing(User::getId), pageSize + 1);
+		String eTag = pageETag(users.stream()
+				.map(user -> new UserValidatorsDto(user.getId(), user.getVersion(), user.getModifiedAt()))
+				.collect(Collectors.toList()));
+		String nextCursor = null;
+		if (users.size() > pageSize) {
+			users = users.subList(0, pageSize);
+			nextCursor = encodeCursor(users.get(pageSize - 1).getId());
+		}
+		UserPageDto page = new UserPageDto(users.stream().map(UserDto::of).collect(Collectors.toList()), nextCursor);
+		page.setETag(eTag);
+		return page;
+	}
+
+	public String getAllUsersETag(String after, Integer limit) throws AccountsManagerException {
+		int pageSize = pageSize(limit);
+		Long afterId = after == null ? Long.MIN_VALUE : decodeCursor(after);
+		return pageETag(mergeSorted(shardRouting.scatter(shard -> readOnlyTransaction.execute(status -> userRepository
+				.findValidatorsByIdGreaterThan(afterId, PageRequest.of(0, pageSize + 1)))),
+				Comparator.comparing(UserValidatorsDto::getId), pageSize + 1));
+	}
+
+	public UserChangesDto getChanges(String since, Integer limit) throws AccountsManagerException {
+		// a lagging replica could expose rows older than the settle time after the token moved past them
+		return readConsistency.onPrimary(() -> readChanges(since, limit));
 	}
 
-	public List<UserDto> getAllUsers() {
-		return userRepository.findAll().stream().map(UserDto::of).collect(Collectors.toList());
+	private UserChangesDto readChanges(String since, Integer limit) throws AccountsManagerException {
+		int pageSize = pageSize(limit);
+		List<ChangesToken> tokens = since == null ? ChangesToken.start(shardRouting.shardCount())
+				: ChangesToken.decode(since, shardRouting.shardCount());
+		// rows stamped just before now may belong to transactions that have not committed yet,
+		// so they are left for the next sync instead of being skipped forever
+		LocalDateTime until = LocalDateTime.now(clock).minus(changesSettleTime);
+
+		// in a transaction, so the queries get what is left of the request deadline as their timeout
+		List<List<User>> shardUsers = shardRouting.scatter(shard -> readOnlyTransaction.execute(status -> userRepository
+				.findModifiedAfter(tokens.get(shard).modifiedAt, tokens.get(shard).userId, until,
+						PageRequest.of(0, pageSize + 1))));
+		List<List<UserTombstone>> shardTombstones = shardRouting.scatter(shard -> readOnlyTransaction
+				.execute(status -> userTombstoneRepository.findDeletedAfter(tokens.get(shard).deletedAt,
+						tokens.get(shard).tombstoneId, until, PageRequest.of(0, pageSize + 1))));
+		List<User> users = mergeSorted(shardUsers, CHANGE_ORDER, pageSize);
+		List<UserTombstone> tombstones = mergeSorted(shardTombstones, DELETION_ORDER, pageSize);
+		boolean hasMore = rowCount(shardUsers) > pageSize || rowCount(shardTombstones) > pageSize;
+
+		// every shard keeps its own position, it only moves past the rows of that shard that made the page
+		List<ChangesToken> next = new ArrayList<>(tokens);
+		for (int shard = 0; shard < next.size(); shard++) {
+			ChangesToken token = next.get(shard);
+			User lastUser = lastUpTo(shardUsers.get(shard), users, CHANGE_ORDER);
+			if (lastUser != null) {
+				token = new ChangesToken(lastUser.getModifiedAt(), lastUser.getId(), token.deletedAt, token.tombstoneId);
+			}
+			UserTombstone lastTombstone = lastUpTo(shardTombstones.get(shard), tombstones, DELETION_ORDER);
+			if (lastTombstone != null) {
+				token = new ChangesToken(token.modifiedAt, token.userId, lastTombstone.getDeletedAt(),
+						lastTombstone.getId());
+			}
+			next.set(shard, token);
+		}
+		return new UserChangesDto(users.stream().map(UserDto::of).collect(Collectors.toList()),
+				tombstones.stream().map(UserTombstoneDto::of).collect(Collectors.toList()), ChangesToken.encode(next),
+				hasMore);
+	}
+
+	public UserValidatorsDto getUserValidators(Long id) throws AccountsManagerException {
+		UserDto cached = userCache.get(id);
+		if (cached != null) {
+			return UserValidatorsDto.of(cached);
+		}
+		// a replica may still serve the previous version, which would answer 304 to a stale tag
+		try (ShardRouting.Scope scope = shardRouting.enterShardOf(id)) {
+			return readConsistency.onPrimaryIf(readConsistency.isRecentlyWritten(id),
+					() -> readOnlyTransaction.execute(status -> userRepository.findValidatorsById(id)))
+					.orElseThrow(() -> new AccountsManagerException(
+							"Attempting to get User with id :" + id.toString() + " failed. User was not found.",
+							HttpStatus.BAD_REQUEST));
+		}
+	}
+
+	// ordered by id within each shard, the shards follow one another since each stream holds a transaction open
+	public void exportUsers(OutputStream out) throws IOException {
+		for (int shard = 0; shard < shardRouting.shardCount(); shard++) {
+			try (ShardRouting.Scope scope = shardRouting.enter(shard)) {
+				readOnlyTransaction.execute(status -> {
+					exportShard(out);
+					return null;
+				});
+			} catch (UncheckedIOException ex) {
+				throw ex.getCause();
+			}
+		}
+		out.flush();
+	}
+
+	private void exportShard(OutputStream out) {
+		try (Stream<User> users = userRepository.streamAllByOrderByIdAsc()) {
+			Iterator<User> iterator = users.iterator();
+			int written = 0;
+			while (iterator.hasNext()) {
+				User user = iterator.next();
+				// detach every row so the persistence context does not grow with the table
+				entityManager.detach(user);
+				out.write(objectMapper.writeValueAsBytes(UserDto.of(user)));
+				out.write('\n');
+				if (++written % EXPORT_FLUSH_INTERVAL == 0) {
+					out.flush();
+				}
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
 	}
 
 	public UserDto getUserById(Long id) throws AccountsManagerException {
-		return UserDto.of(userRepository.findById(id)
-				.orElseThrow(() -> new AccountsManagerException(
-						"Attempting to get User with id :" + id.toString() + " failed. User was not found.",
-						HttpStatus.BAD_REQUEST)));
+		UserDto cached = userCache.get(id);
+		if (cached != null) {
+			return cached;
+		}
+		return userLookups.execute(id, () -> {
+			long readToken = userCache.readToken(id);
+			// a replica may still serve the previous state, which would then stay cached
+			UserDto user;
+			try (ShardRouting.Scope scope = shardRouting.enterShardOf(id)) {
+				user = UserDto.of(readConsistency.onPrimaryIf(readConsistency.isRecentlyWritten(id),
+						() -> userRepository.findById(id))
+						.orElseThrow(() -> new AccountsManagerException(
+								"Attempting to get User with id :" + id.toString() + " failed. User was not found.",
+								HttpStatus.BAD_REQUEST)));
+			}
+			userCache.put(id, user, readToken);
+			return user;
+		});
 	}
 
-	public UserDto createUser(UserForm form) throws AccountsManagerException {
-		if (userRepository.findByEmail(form.getEmail()).isPresent()) {
-			throw new AccountsManagerException("This email (" + form.getEmail() + ") is already registered",
+	public List<UserLookupResultDto> getUsersByIds(List<Long> ids) throws AccountsManagerException {
+		if (ids.isEmpty() || ids.size() > MAX_LOOKUP_SIZE) {
+			throw new AccountsManagerException(
+					"Lookup must contain between 1 and " + MAX_LOOKUP_SIZE + " ids but contained " + ids.size(),
 					HttpStatus.BAD_REQUEST);
 		}
+		Map<Long, UserDto> found = new HashMap<>();
+		Map<Long, Long> readTokens = new LinkedHashMap<>();
+		for (Long id : ids) {
+			if (id == null) {
+				throw new AccountsManagerException("Lookup ids must not be null", HttpStatus.BAD_REQUEST);
+			}
+			if (found.containsKey(id) || readTokens.containsKey(id)) {
+				continue;
+			}
+			UserDto cached = userCache.get(id);
+			if (cached != null) {
+				found.put(id, cached);
+			} else {
+				readTokens.put(id, userCache.readToken(id));
+			}
+		}
+		if (!readTokens.isEmpty()) {
+			for (User user : findAllById(new ArrayList<>(readTokens.keySet()))) {
+				UserDto loaded = UserDto.of(user);
+				found.put(user.getId(), loaded);
+				userCache.put(user.getId(), loaded, readTokens.get(user.getId()));
+			}
+		}
+		return ids.stream()
+				.map(id -> found.containsKey(id) ? UserLookupResultDto.found(id, found.get(id))
+						: UserLookupResultDto.notFound(id))
+				.collect(Collectors.toList());
+	}
+
+	private List<User> findAllById(List<Long> ids) {
+		Map<Integer, List<Long>> idsByShard = ids.stream().collect(Collectors.groupingBy(shardRouting::shardOf));
+		// a replica may still serve the previous state, which would then stay cached
+		boolean recentlyWritten = ids.stream().anyMatch(readConsistency::isRecentlyWritten);
+		return shardRouting.scatter(shard -> readConsistency.onPrimaryIf(recentlyWritten,
+				() -> findChunked(idsByShard.getOrDefault(shard, Collections.emptyList()))))
+				.stream().flatMap(List::stream).collect(Collectors.toList());
+	}
+
+	// one IN query per chunk, all chunks in the same read-only transaction
+	private List<User> findChunked(List<Long> ids) {
+		if (ids.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return readOnlyTransaction.execute(status -> {
+			List<User> users = new ArrayList<>(ids.size());
+			for (int from = 0; from < ids.size(); from += LOOKUP_CHUNK_SIZE) {
+				List<Long> chunk = ids.subList(from, Math.min(ids.size(), from + LOOKUP_CHUNK_SIZE));
+				users.addAll(userRepository.findAllById(chunk));
+			}
+			return users;
+		});
+	}
+
+	@Transactional
+	public UserDto createUser(UserForm form) throws AccountsManagerException {
+		emailBloomFilter.add(form.getEmail());
 		User newUser = User.of(form);
-		User savedUser = userRepository.save(newUser);
-		return UserDto.of(savedUser);
+		if (shardRouting.isSharded()) {
+			return createShardedUser(newUser);
+		}
+		UserDto savedUser = UserDto.of(
+				saveAndFlush(newUser, "This email (" + form.getEmail() + ") is already registered"));
+		recordChange(UserChangeEventDto.Type.CREATED, savedUser);
+		return savedUser;
+	}
+
+	// persisting only assigns the id, the insert waits for the flush and so for the shard the id hashes to
+	private UserDto createShardedUser(User newUser) throws AccountsManagerException {
+		String duplicateEmailMessage = "This email (" + newUser.getEmail() + ") is already registered";
+		userRepository.save(newUser);
+		claimEmail(newUser.getEmail(), newUser.getId(), duplicateEmailMessage);
+		try (ShardRouting.Scope scope = shardRouting.enterShardOf(newUser.getId())) {
+			UserDto savedUser = UserDto.of(saveAndFlush(newUser, duplicateEmailMessage));
+			recordChange(UserChangeEventDto.Type.CREATED, savedUser);
+			return savedUser;
+		}
+	}
+
+	public List<UserBatchResultDto> createUsers(List<UserForm> forms) throws AccountsManagerException {
+		if (forms.size() > MAX_BATCH_SIZE) {
+			throw new AccountsManagerException(
+					"Batch must contain at most " + MAX_BATCH_SIZE + " users but contained " + forms.size(),
+					HttpStatus.BAD_REQUEST);
+		}
+		UserBatchResultDto[] results = new UserBatchResultDto[forms.size()];
+		for (int i = 0; i < forms.size(); i++) {
+			List<String> errors = validate(forms.get(i));
+			if (!errors.isEmpty()) {
+				results[i] = UserBatchResultDto.failed(i, HttpStatus.UNPROCESSABLE_ENTITY, errors);
+			}
+		}
+		if (shardRouting.isSharded()) {
+			return createShardedUsers(forms, results);
+		}
+		// the filter only knows the emails this instance has seen, one registered through another instance fails
+		// the insert, the batch is then written again with every email looked up
+		List<UserBatchResultDto> created = separateTransaction
+				.execute(status -> createUsers(forms, results.clone(), false, status));
+		return created != null ? created
+				: separateTransaction.execute(status -> createUsers(forms, results.clone(), true, status));
+	}
+
+	// null when an email the filter missed was already registered, the transaction is then rolled back
+	private List<UserBatchResultDto> createUsers(List<UserForm> forms, UserBatchResultDto[] results,
+			boolean lookUpAll, TransactionStatus status) throws AccountsManagerException {
+		Set<String> emails = new HashSet<>();
+		for (int i = 0; i < forms.size(); i++) {
+			if (results[i] == null && (lookUpAll || emailBloomFilter.mightBeRegistered(forms.get(i).getEmail()))) {
+				emails.add(forms.get(i).getEmail().toLowerCase(Locale.ROOT));
+			}
+		}
+		// the unique key compares emails ignoring case, a case variant missed here would fail the whole batch at flush
+		Set<String> registeredEmails = emails.isEmpty() ? emails
+				: userRepository.findRegisteredEmails(emails).stream().map(email -> email.toLowerCase(Locale.ROOT))
+						.collect(Collectors.toSet());
+
+		List<User> newUsers = new ArrayList<>();
+		List<Integer> newUserIndexes = new ArrayList<>();
+		Set<String> batchEmails = new HashSet<>();
+		for (int i = 0; i < forms.size(); i++) {
+			if (results[i] != null) {
+				continue;
+			}
+			UserForm form = forms.get(i);
+			String email = form.getEmail().toLowerCase(Locale.ROOT);
+			if (registeredEmails.contains(email) || !batchEmails.add(email)) {
+				results[i] = UserBatchResultDto.failed(i, HttpStatus.BAD_REQUEST,
+						"This email (" + form.getEmail() + ") is already registered");
+				continue;
+			}
+			emailBloomFilter.add(form.getEmail());
+			newUsers.add(User.of(form));
+			newUserIndexes.add(i);
+		}
+
+		List<User> savedUsers = userRepository.saveAll(newUsers);
+		try {
+			userRepository.flush();
+		} catch (DataIntegrityViolationException ex) {
+			if (isDuplicateEmail(ex) && !lookUpAll) {
+				status.setRollbackOnly();
+				return null;
+			}
+			if (isDuplicateEmail(ex)) {
+				throw new AccountsManagerException(
+						"An email in this batch was registered concurrently, no users were created",
+						HttpStatus.BAD_REQUEST);
+			}
+			throw ex;
+		}
+		for (int i = 0; i < savedUsers.size(); i++) {
+			int index = newUserIndexes.get(i);
+			UserDto savedUser = UserDto.of(savedUsers.get(i));
+			results[index] = UserBatchResultDto.created(index, savedUser);
+			recordChange(UserChangeEventDto.Type.CREATED, savedUser);
+		}
+		return Arrays.asList(results);
+	}
+
+	// the users of a batch land on different shards, so each one is created in a transaction of its own
+	private List<UserBatchResultDto> createShardedUsers(List<UserForm> forms, UserBatchResultDto[] results) {
+		for (int i = 0; i < forms.size(); i++) {
+			if (results[i] != null) {
+				continue;
+			}
+			UserForm form = forms.get(i);
+			emailBloomFilter.add(form.getEmail());
+			try {
+				results[i] = UserBatchResultDto.created(i,
+						separateTransaction.execute(status -> createShardedUser(User.of(form))));
+			} catch (AccountsManagerException ex) {
+				results[i] = UserBatchResultDto.failed(i, ex.getStatus(), ex.getMessage());
+			}
+		}
+		return Arrays.asList(results);
+	}
+
+	@Transactional
+	public UserBatchResultDto upsertUserByEmail(String email, UserForm form) throws AccountsManagerException {
+		if (!email.equalsIgnoreCase(form.getEmail())) {
+			throw new AccountsManagerException(
+					"The form email (" + form.getEmail() + ") does not match the email " + email, HttpStatus.BAD_REQUEST);
+		}
+		UserBatchResultDto result = upsertUsersByEmail(Collections.singletonList(form)).get(0);
+		if (result.getUser() == null) {
+			throw new AccountsManagerException(String.join(System.lineSeparator(), result.getErrors()),
+					result.getStatus());
+		}
+		return result;
+	}
+
+	@Transactional
+	public List<UserBatchResultDto> upsertUsersByEmail(List<UserForm> forms) throws AccountsManagerException {
+		if (forms.size() > MAX_BATCH_SIZE) {
+			throw new AccountsManagerException(
+					"Batch must contain at most " + MAX_BATCH_SIZE + " users but contained " + forms.size(),
+					HttpStatus.BAD_REQUEST);
+		}
+		UserBatchResultDto[] results = new UserBatchResultDto[forms.size()];
+
+		Map<Integer, User> users = new LinkedHashMap<>();
+		Set<String> batchEmails = new HashSet<>();
+		for (int i = 0; i < forms.size(); i++) {
+			UserForm form = forms.get(i);
+			List<String> errors = validate(form);
+			if (!errors.isEmpty()) {
+				results[i] = UserBatchResultDto.failed(i, HttpStatus.UNPROCESSABLE_ENTITY, errors);
+			} else if (!batchEmails.add(form.getEmail().toLowerCase(Locale.ROOT))) {
+				results[i] = UserBatchResultDto.failed(i, HttpStatus.BAD_REQUEST,
+						"This email (" + form.getEmail() + ") appears more than once in this batch");
+			} else {
+				emailBloomFilter.add(form.getEmail());
+				users.put(i, User.of(form));
+			}
+		}
+		if (shardRouting.isSharded()) {
+			users.forEach((index, user) -> results[index] = upsertShardedUser(index, user));
+		} else if (!users.isEmpty()) {
+			upsert(users).forEach(result -> results[result.getIndex()] = result);
+		}
+		return Arrays.asList(results);
+	}
+
+	// one statement writes the whole batch, reading the rows back tells inserted from updated ones by their id
+	private List<UserBatchResultDto> upsert(Map<Integer, User> users) {
+		// every batch locks its rows in the same order, so concurrent batches cannot deadlock each other
+		userRepository.upsertByEmail(users.values().stream()
+				.sorted(Comparator.comparing(User::getEmail))
+				.collect(Collectors.toList()));
+		List<String> emails = users.values().stream().map(User::getEmail).collect(Collectors.toList());
+		// the database may compare emails ignoring case, an updated row then keeps the case it was stored with
+		Map<String, User> rows = new HashMap<>();
+		for (int from = 0; from < emails.size(); from += LOOKUP_CHUNK_SIZE) {
+			userRepository.findByEmailIn(emails.subList(from, Math.min(emails.size(), from + LOOKUP_CHUNK_SIZE)))
+					.forEach(row -> rows.put(row.getEmail().toLowerCase(Locale.ROOT), row));
+		}
+		List<UserBatchResultDto> results = new ArrayList<>(users.size());
+		users.forEach((index, user) -> {
+			User row = rows.get(user.getEmail().toLowerCase(Locale.ROOT));
+			UserDto savedUser = UserDto.of(row);
+			if (row.getId().equals(user.getId())) {
+				results.add(UserBatchResultDto.created(index, savedUser));
+				recordChange(UserChangeEventDto.Type.CREATED, savedUser);
+			} else {
+				invalidateAfterCommit(row.getId());
+				results.add(UserBatchResultDto.updated(index, savedUser));
+				recordChange(UserChangeEventDto.Type.UPDATED, savedUser);
+			}
+		});
+		return results;
+	}
+
+	// the directory tells which shard already holds the email, a new email is claimed for a new id first
+	private UserBatchResultDto upsertShardedUser(int index, User user) {
+		try {
+			return separateTransaction.execute(status -> {
+				user.setId(userRepository.nextId());
+				Long ownerId = emailDirectory.lookup(user.getEmail()).orElse(null);
+				if (ownerId == null) {
+					claimEmail(user.getEmail(), user.getId(),
+							"This email (" + user.getEmail() + ") was registered concurrently, try again");
+					ownerId = user.getId();
+				}
+				try (ShardRouting.Scope scope = shardRouting.enterShardOf(ownerId)) {
+					return upsert(Collections.singletonMap(index, user)).get(0);
+				}
+			});
+		} catch (AccountsManagerException ex) {
+			return UserBatchResultDto.failed(index, ex.getStatus(), ex.getMessage());
+		}
 	}
 
+	@Transactional
 	public UserDto editUser(Long id, UserForm form) throws AccountsManagerException {
-		User foundUser = userRepository.findById(id)
+		try (ShardRouting.Scope scope = shardRouting.enterShardOf(id)) {
+			return edit(findForEdit(id), form);
+		}
+	}
+
+	/**
+	 * Applies a JSON merge patch (RFC 7396) to the user. Only the fields in the
+	 * patch are validated and only the columns that change are updated. A patch
+	 * that changes nothing writes nothing.
+	 */
+	@Transactional
+	public UserDto patchUser(Long id, JsonNode patch, Long expectedVersion) throws AccountsManagerException {
+		if (!patch.isObject()) {
+			throw new AccountsManagerException("A merge patch must be a JSON object", HttpStatus.BAD_REQUEST);
+		}
+		for (Iterator<String> fields = patch.fieldNames(); fields.hasNext();) {
+			String field = fields.next();
+			if (!PATCHABLE_FIELDS.contains(field)) {
+				throw new AccountsManagerException("Field " + field + " cannot be patched", HttpStatus.BAD_REQUEST);
+			}
+		}
+		try (ShardRouting.Scope scope = shardRouting.enterShardOf(id)) {
+			User foundUser = findForEdit(id);
+			if (expectedVersion != null && !expectedVersion.equals(foundUser.getVersion())) {
+				throw new AccountsManagerException("Attempting to edit User with id :" + id.toString()
+						+ " failed. User is no longer at version " + expectedVersion + ".",
+						HttpStatus.PRECONDITION_FAILED);
+			}
+			UserForm form = UserForm.of(foundUser);
+			try {
+				objectMapper.readerForUpdating(form).readValue(patch);
+			} catch (JsonProcessingException ex) {
+				throw new AccountsManagerException("Invalid merge patch : " + ex.getOriginalMessage(),
+						HttpStatus.BAD_REQUEST);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+			List<String> errors = new ArrayList<>();
+			patch.fieldNames().forEachRemaining(field -> {
+				for (ConstraintViolation<UserForm> violation : validator.validateProperty(form, field)) {
+					errors.add(field.toUpperCase() + " : " + violation.getMessage());
+				}
+			});
+			if (!errors.isEmpty()) {
+				errors.sort(null);
+				throw new AccountsManagerException(String.join(System.lineSeparator(), errors),
+						HttpStatus.UNPROCESSABLE_ENTITY);
+			}
+			if (Objects.equals(form.getFirstName(), foundUser.getFirstName())
+					&& Objects.equals(form.getLastName(), foundUser.getLastName())
+					&& Objects.equals(form.getEmail(), foundUser.getEmail())
+					&& Objects.equals(form.getDateOfBirth(), foundUser.getDateOfBirth())) {
+				return UserDto.of(foundUser);
+			}
+			return edit(foundUser, form);
+		}
+	}
+
+	private User findForEdit(Long id) throws AccountsManagerException {
+		return userRepository.findById(id)
 				.orElseThrow(() -> new AccountsManagerException(
 						"Attempting to edit User with id :" + id.toString() + " failed. User was not found.",
 						HttpStatus.BAD_REQUEST));
-		if (userRepository.findByEmail(form.getEmail()).isPresent()
-				&& !userRepository.findByEmail(form.getEmail()).get().equals(foundUser)) {
-			throw new AccountsManagerException("User with email " + form.getEmail() + " is already registered",
-					HttpStatus.BAD_REQUEST);
+	}
+
+	private UserDto edit(User foundUser, UserForm form) throws AccountsManagerException {
+		Long id = foundUser.getId();
+		invalidateAfterCommit(id);
+		String previousEmail = foundUser.getEmail();
+		if (!form.getEmail().equals(previousEmail)) {
+			emailBloomFilter.add(form.getEmail());
+			runAfterCommit(() -> emailBloomFilter.remove(previousEmail));
+			if (shardRouting.isSharded()) {
+				claimEmail(form.getEmail(), id, "User with email " + form.getEmail() + " is already registered");
+				runAfterCommit(() -> emailDirectory.release(previousEmail, id));
+			}
 		}
 		foundUser.setFirstName(form.getFirstName());
 		foundUser.setLastName(form.getLastName());
 		foundUser.setEmail(form.getEmail());
 		foundUser.setDateOfBirth(form.getDateOfBirth());
 
-		return UserDto.of(userRepository.saveAndFlush(foundUser));
+		UserDto savedUser = UserDto.of(
+				saveAndFlush(foundUser, "User with email " + form.getEmail() + " is already registered"));
+		recordChange(UserChangeEventDto.Type.UPDATED, savedUser);
+		return savedUser;
+	}
+
+	@Transactional
+	public UserDto editUser(Long id, UserForm form, Long expectedVersion) throws AccountsManagerException {
+		try (ShardRouting.Scope scope = shardRouting.enterShardOf(id)) {
+			emailBloomFilter.add(form.getEmail());
+			if (shardRouting.isSharded()) {
+				// the previous email is not loaded, every other email of the user is given back after the commit
+				claimEmail(form.getEmail(), id, "User with email " + form.getEmail() + " is already registered");
+				runAfterCommit(() -> emailDirectory.releaseAllExcept(id, form.getEmail()));
+			}
+			// the registration time is the only column the update does not write, a cached user still knows it
+			UserDto previous = userCache.get(id);
+			// the replaced email leaves the filter again, without a cached user it is read while the filter is in use
+			String previousEmail = previous != null ? previous.getEmail()
+					: emailBloomFilter.isLoaded() ? userRepository.findEmailById(id).orElse(null) : null;
+			LocalDateTime modifiedAt = LocalDateTime.now();
+			int updated;
+			try {
+				updated = userRepository.updateUserIfVersionMatches(id, expectedVersion, form.getFirstName(),
+						form.getLastName(), form.getEmail(), form.getDateOfBirth(), modifiedAt);
+			} catch (DataIntegrityViolationException ex) {
+				if (isDuplicateEmail(ex)) {
+					throw new AccountsManagerException(
+							"User with email " + form.getEmail() + " is already registered", HttpStatus.BAD_REQUEST);
+				}
+				throw ex;
+			}
+			if (updated == 0) {
+				// only the failure path pays for a second statement, to tell a missing user from a stale version
+				if (!userRepository.existsById(id)) {
+					throw new AccountsManagerException(
+							"Attempting to edit User with id :" + id.toString() + " failed. User was not found.",
+							HttpStatus.BAD_REQUEST);
+				}
+				throw new AccountsManagerException("Attempting to edit User with id :" + id.toString()
+						+ " failed. User is no longer at version " + expectedVersion + ".",
+						HttpStatus.PRECONDITION_FAILED);
+			}
+			// the update wrote exactly these values, so the written user is known without reading it back
+			UserDto savedUser = UserDto.of(id, form, expectedVersion + 1, modifiedAt,
+					previous == null ? null : previous.getRegisteredAt());
+			if (previous == null) {
+				invalidateAfterCommit(id);
+			} else {
+				// a cached user is read often, so it is cached again in its written state
+				runAfterCommit(() -> {
+					invalidate(id);
+					userCache.put(id, savedUser, userCache.readToken(id));
+				});
+			}
+			if (previousEmail != null) {
+				runAfterCommit(() -> emailBloomFilter.remove(previousEmail));
+			}
+			recordChange(UserChangeEventDto.Type.UPDATED, savedUser);
+			return savedUser;
+		}
 	}
 
+	@Transactional
 	public void deleteUserById(Long id) throws AccountsManagerException {
-		userRepository.findById(id)
-				.orElseThrow(() -> new AccountsManagerException(
+		try (ShardRouting.Scope scope = shardRouting.enterShardOf(id)) {
+			// the email leaves the filter again, a cached user knows it and otherwise it is read while the filter
+			// is in use, a user that read does not find is not there to delete either
+			UserDto cached = userCache.get(id);
+			String email = cached == null ? null : cached.getEmail();
+			boolean emailRead = cached == null && emailBloomFilter.isLoaded();
+			if (emailRead) {
+				email = userRepository.findEmailById(id).orElse(null);
+			}
+			if ((emailRead && email == null) || userRepository.deleteUserById(id) == 0) {
+				throw new AccountsManagerException(
 						"Attempting to delete User with id :" + id.toString() + " failed. User was not found.",
-						HttpStatus.BAD_REQUEST));
-		userRepository.deleteById(id);
+						HttpStatus.BAD_REQUEST);
+			}
+			userTombstoneRepository.save(new UserTombstone(id, LocalDateTime.now()));
+			invalidateAfterCommit(id);
+			if (email != null) {
+				String deletedEmail = email;
+				runAfterCommit(() -> emailBloomFilter.remove(deletedEmail));
+			}
+			recordChange(UserChangeEventDto.Type.DELETED, id, null, null);
+			if (shardRouting.isSharded()) {
+				runAfterCommit(() -> emailDirectory.releaseAll(id));
+			}
+		}
+	}
+
+	// the claim commits on the directory shard right away, so it is given back if the user's transaction does not
+	private void claimEmail(String email, Long userId, String duplicateEmailMessage) throws AccountsManagerException {
+		EmailDirectory.Claim claim = emailDirectory.claim(email, userId);
+		if (claim == EmailDirectory.Claim.TAKEN) {
+			throw new AccountsManagerException(duplicateEmailMessage, HttpStatus.BAD_REQUEST);
+		}
+		if (claim == EmailDirectory.Claim.CLAIMED) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int status) {
+					if (status == STATUS_ROLLED_BACK) {
+						emailDirectory.release(email, userId);
+					}
+				}
+			});
+		}
+	}
+
+	private User saveAndFlush(User user, String duplicateEmailMessage) throws AccountsManagerException {
+		try {
+			return userRepository.saveAndFlush(user);
+		} catch (DataIntegrityViolationException ex) {
+			if (isDuplicateEmail(ex)) {
+				throw new AccountsManagerException(duplicateEmailMessage, HttpStatus.BAD_REQUEST);
+			}
+			throw ex;
+		} catch (ObjectOptimisticLockingFailureException ex) {
+			throw new AccountsManagerException("User with id :" + user.getId().toString()
+					+ " was modified concurrently. Reload it and try again.", HttpStatus.CONFLICT);
+		}
+	}
+
+	private static boolean isDuplicateEmail(DataIntegrityViolationException ex) {
+		if (!(ex.getCause() instanceof ConstraintViolationException)) {
+			return false;
+		}
+		String constraintName = ((ConstraintViolationException) ex.getCause()).getConstraintName();
+		return constraintName != null && constraintName.toLowerCase().contains(User.UNIQUE_EMAIL_CONSTRAINT);
+	}
+
+	private void invalidateAfterCommit(Long id) {
+		runAfterCommit(() -> invalidate(id));
+	}
+
+	private void recordChange(UserChangeEventDto.Type type, UserDto user) {
+		recordChange(type, user.getId(), user.getVersion(), user);
+	}
+
+	// the outbox row commits or rolls back together with the change, the live feed only hears about commits
+	private void recordChange(UserChangeEventDto.Type type, Long id, Long version, UserDto user) {
+		outboxEventRepository.save(new OutboxEvent(type, id, version, user == null ? null : toJson(user)));
+		runAfterCommit(() -> userChangeFeed.publish(type, id, version, user));
+	}
+
+	private String toJson(UserDto user) {
+		try {
+			return objectMapper.writeValueAsString(user);
+		} catch (JsonProcessingException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	private static void runAfterCommit(Runnable action) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			action.run();
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+			@Override
+			public void afterCommit() {
+				action.run();
+			}
+		});
+	}
+
+	private void invalidate(Long id) {
+		readConsistency.recordWrite(id);
+		userLookups.forget(id);
+		userCache.invalidate(id);
+	}
+
+	private List<String> validate(UserForm form) {
+		List<String> errors = new ArrayList<>();
+		for (ConstraintViolation<UserForm> violation : validator.validate(form)) {
+			errors.add(violation.getPropertyPath().toString().toUpperCase() + " : " + violation.getMessage());
+		}
+		errors.sort(null);
+		return errors;
+	}
+
+	private static int pageSize(Integer limit) throws AccountsManagerException {
+		int pageSize = limit == null ? DEFAULT_PAGE_SIZE : limit;
+		if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+			throw new AccountsManagerException(
+					"Page limit must be between 1 and " + MAX_PAGE_SIZE + " but was " + pageSize,
+					HttpStatus.BAD_REQUEST);
+		}
+		return pageSize;
+	}
+
+	// each shard returns its own first rows in order, the page is made of the first rows among all of them
+	private static <T> List<T> mergeSorted(List<List<T>> shards, Comparator<T> order, int limit) {
+		if (shards.size() == 1) {
+			List<T> rows = shards.get(0);
+			return rows.subList(0, Math.min(limit, rows.size()));
+		}
+		return shards.stream().flatMap(List::stream).sorted(order).limit(limit).collect(Collectors.toList());
+	}
+
+	private static int rowCount(List<? extends List<?>> shards) {
+		return shards.stream().mapToInt(List::size).sum();
+	}
+
+	// the last row of a shard that is not past the last row of the page
+	private static <T> T lastUpTo(List<T> shardRows, List<T> page, Comparator<T> order) {
+		if (page.isEmpty()) {
+			return null;
+		}
+		T bound = page.get(page.size() - 1);
+		T last = null;
+		for (T row : shardRows) {
+			if (order.compare(row, bound) > 0) {
+				break;
+			}
+			last = row;
+		}
+		return last;
+	}
+
+	// covers the look-ahead row too, so the tag changes when a next page appears or disappears
+	private static String pageETag(List<UserValidatorsDto> validators) {
+		StringBuilder ids = new StringBuilder();
+		for (UserValidatorsDto user : validators) {
+			ids.append(user.getId()).append(':').append(user.getVersion()).append(',');
+		}
+		return DigestUtils.md5DigestAsHex(ids.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String encodeCursor(Long id) {
+		return Base64.getUrlEncoder().withoutPadding()
+				.encodeToString(id.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static Long decodeCursor(String cursor) throws AccountsManagerException {
+		try {
+			return Long.valueOf(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+		} catch (IllegalArgumentException ex) {
+			throw new AccountsManagerException("Invalid page cursor : " + cursor, HttpStatus.BAD_REQUEST);
+		}
+	}
+
+	// position in the users and the tombstones streams of one shard, each ordered by (timestamp, id)
+	private static class ChangesToken {
+
+		private static final String SHARD_SEPARATOR = ";";
+		private static final LocalDateTime BEGINNING = LocalDateTime.of(1970, 1, 1, 0, 0);
+		private static final ChangesToken START = new ChangesToken(BEGINNING, Long.MIN_VALUE, BEGINNING,
+				Long.MIN_VALUE);
+
+		private final LocalDateTime modifiedAt;
+		private final Long userId;
+		private final LocalDateTime deletedAt;
+		private final Long tombstoneId;
+
+		private ChangesToken(LocalDateTime modifiedAt, Long userId, LocalDateTime deletedAt, Long tombstoneId) {
+			this.modifiedAt = modifiedAt;
+			this.userId = userId;
+			this.deletedAt = deletedAt;
+			this.tombstoneId = tombstoneId;
+		}
+
+		private static List<ChangesToken> start(int shards) {
+			return new ArrayList<>(Collections.nCopies(shards, START));
+		}
+
+		private static String encode(List<ChangesToken> tokens) {
+			String token = tokens.stream()
+					.map(t -> t.modifiedAt + "|" + t.userId + "|" + t.deletedAt + "|" + t.tombstoneId)
+					.collect(Collectors.joining(SHARD_SEPARATOR));
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+		}
+
+		// a token from before shards were added or removed is rejected, the client has to sync from the start
+		private static List<ChangesToken> decode(String token, int shards) throws AccountsManagerException {
+			try {
+				String[] positions = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8)
+						.split(SHARD_SEPARATOR);
+				if (positions.length != shards) {
+					throw new IllegalArgumentException(token);
+				}
+				List<ChangesToken> tokens = new ArrayList<>(shards);
+				for (String position : positions) {
+					String[] parts = position.split("\\|");
+					if (parts.length != 4) {
+						throw new IllegalArgumentException(token);
+					}
+					tokens.add(new ChangesToken(LocalDateTime.parse(parts[0]), Long.valueOf(parts[1]),
+							LocalDateTime.parse(parts[2]), Long.valueOf(parts[3])));
+				}
+				return tokens;
+			} catch (IllegalArgumentException | DateTimeParseException ex) {
+				throw new AccountsManagerException("Invalid changes token : " + token, HttpStatus.BAD_REQUEST);
+			}
+		}
 	}
 
 }
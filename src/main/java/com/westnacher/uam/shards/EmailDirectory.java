@@ -0,0 +1,77 @@
+package com.westnacher.uam.shards;
+
+import java.time.LocalDateTime;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.westnacher.uam.models.UserEmail;
+import com.westnacher.uam.repositories.UserEmailRepository;
+
+/**
+ * Global email to user lookup for sharded storage, the unique constraint of
+ * each shard only covers the users on that shard. An email is claimed here
+ * before the user's shard is written, in a transaction of its own on the
+ * directory shard. A claim that outlives its user, because the process died
+ * between the two transactions, blocks that email until the
+ * {@link ShardRebalancer} removes it.
+ */
+@Component
+public class EmailDirectory {
+
+	public enum Claim {
+		CLAIMED, ALREADY_HELD, TAKEN
+	}
+
+	private final UserEmailRepository userEmailRepository;
+	private final ShardRouting shardRouting;
+	private final TransactionTemplate separateTransaction;
+
+	@Autowired
+	public EmailDirectory(UserEmailRepository userEmailRepository, ShardRouting shardRouting,
+			PlatformTransactionManager transactionManager) {
+		this.userEmailRepository = userEmailRepository;
+		this.shardRouting = shardRouting;
+		// never joins the caller's transaction, which is bound to the connection of another shard
+		this.separateTransaction = new TransactionTemplate(transactionManager);
+		this.separateTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+	}
+
+	public Claim claim(String email, Long userId) {
+		try {
+			inDirectory(() -> userEmailRepository.saveAndFlush(new UserEmail(email, userId, LocalDateTime.now())));
+			return Claim.CLAIMED;
+		} catch (DataIntegrityViolationException ex) {
+			return userId.equals(lookup(email).orElse(null)) ? Claim.ALREADY_HELD : Claim.TAKEN;
+		}
+	}
+
+	public Optional<Long> lookup(String email) {
+		return inDirectory(() -> userEmailRepository.findById(email).map(UserEmail::getUserId));
+	}
+
+	public void release(String email, Long userId) {
+		inDirectory(() -> userEmailRepository.deleteClaim(email, userId));
+	}
+
+	public void releaseAllExcept(Long userId, String keptEmail) {
+		inDirectory(() -> userEmailRepository.deleteOtherClaims(userId, keptEmail));
+	}
+
+	public void releaseAll(Long userId) {
+		inDirectory(() -> userEmailRepository.deleteClaims(userId));
+	}
+
+	private <T> T inDirectory(Supplier<T> action) {
+		try (ShardRouting.Scope scope = shardRouting.enter(ShardRouting.DIRECTORY_SHARD)) {
+			return separateTransaction.execute(status -> action.get());
+		}
+	}
+
+}
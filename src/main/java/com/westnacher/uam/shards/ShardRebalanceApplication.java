@@ -0,0 +1,40 @@
+package com.westnacher.uam.shards;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.westnacher.uam.UamApplication;
+
+/**
+ * Runs the {@link ShardRebalancer} once without serving requests and exits
+ * with 0 when it completed, 1 when it failed. Start it in place of
+ * {@link UamApplication}, from the packaged jar with java
+ * -Dloader.main=com.westnacher.uam.shards.ShardRebalanceApplication -cp
+ * &lt;jar&gt; org.springframework.boot.loader.PropertiesLauncher
+ */
+public class ShardRebalanceApplication {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ShardRebalanceApplication.class);
+
+	public static void main(String[] args) {
+		SpringApplication application = new SpringApplication(UamApplication.class);
+		application.setWebApplicationType(WebApplicationType.NONE);
+		ConfigurableApplicationContext context = application.run(args);
+		int exitCode = rebalance(context.getBean(ShardRebalancer.class));
+		System.exit(SpringApplication.exit(context, () -> exitCode));
+	}
+
+	static int rebalance(ShardRebalancer shardRebalancer) {
+		try {
+			shardRebalancer.rebalance();
+			return 0;
+		} catch (RuntimeException ex) {
+			LOGGER.error("Rebalancing the shards failed, run it again to resume", ex);
+			return 1;
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+package com.westnacher.uam.shards;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.ReplicationMode;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.westnacher.uam.models.User;
+import com.westnacher.uam.models.UserEmail;
+import com.westnacher.uam.models.UserTombstone;
+import com.westnacher.uam.repositories.UserEmailRepository;
+import com.westnacher.uam.repositories.UserRepository;
+import com.westnacher.uam.repositories.UserTombstoneRepository;
+
+/**
+ * Moves users and tombstones to the shard their id hashes to under the current
+ * shard map, after shards were added to uam.shards.urls. Until a user is moved
+ * lookups go to its new shard and miss it, so run this before the new map
+ * serves traffic, see {@link ShardRebalanceApplication}.
+ *
+ * Rows are copied to their new shard before they are deleted from the old
+ * one, an interrupted run leaves duplicates that the next run cleans up. The
+ * run also removes email claims whose user is gone or uses another email.
+ * Outbox rows stay where they are, the relay drains every shard.
+ */
+@Component
+public class ShardRebalancer {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ShardRebalancer.class);
+
+	private final UserRepository userRepository;
+	private final UserTombstoneRepository userTombstoneRepository;
+	private final UserEmailRepository userEmailRepository;
+	private final EntityManager entityManager;
+	private final ShardRouting shardRouting;
+	private final TransactionTemplate transaction;
+	private final int batchSize;
+	private final Duration claimGraceTime;
+
+	@Autowired
+	public ShardRebalancer(UserRepository userRepository, UserTombstoneRepository userTombstoneRepository,
+			UserEmailRepository userEmailRepository, EntityManager entityManager, ShardRouting shardRouting,
+			PlatformTransactionManager transactionManager,
+			@Value("${uam.shards.rebalance.batch-size:500}") int batchSize,
+			@Value("${uam.shards.rebalance.claim-grace-time:10m}") Duration claimGraceTime) {
+		this.userRepository = userRepository;
+		this.userTombstoneRepository = userTombstoneRepository;
+		this.userEmailRepository = userEmailRepository;
+		this.entityManager = entityManager;
+		this.shardRouting = shardRouting;
+		this.transaction = new TransactionTemplate(transactionManager);
+		this.batchSize = batchSize;
+		this.claimGraceTime = claimGraceTime;
+	}
+
+	public Report rebalance() {
+		// younger claims may belong to a create or an edit that is still running
+		LocalDateTime claimedBefore = LocalDateTime.now().minus(claimGraceTime);
+		Report report = new Report();
+		for (int shard = 0; shard < shardRouting.shardCount(); shard++) {
+			report.usersMoved += move(shard, userRepository::findByIdGreaterThanOrderByIdAsc, User::getId,
+					userRepository::deleteInBatch);
+			report.tombstonesMoved += move(shard, userTombstoneRepository::findByIdGreaterThanOrderByIdAsc,
+					UserTombstone::getId, userTombstoneRepository::deleteInBatch);
+		}
+		report.claimsReleased = releaseStaleClaims(claimedBefore);
+		LOGGER.info("Rebalanced {} shards: {}", shardRouting.shardCount(), report);
+		return report;
+	}
+
+	private <T> long move(int source, BiFunction<Long, Pageable, List<T>> findAfter, Function<T, Long> id,
+			Consumer<List<T>> delete) {
+		long moved = 0;
+		Long after = Long.MIN_VALUE;
+		while (true) {
+			Long cursor = after;
+			List<T> rows = inShard(source, () -> findAfter.apply(cursor, PageRequest.of(0, batchSize)));
+			Map<Integer, List<T>> misplaced = rows.stream()
+					.filter(row -> shardRouting.shardOf(id.apply(row)) != source)
+					.collect(Collectors.groupingBy(row -> shardRouting.shardOf(id.apply(row))));
+			for (Map.Entry<Integer, List<T>> target : misplaced.entrySet()) {
+				inShard(target.getKey(), () -> {
+					// keeps id, version and timestamps, and skips rows an interrupted run already copied
+					Session session = entityManager.unwrap(Session.class);
+					target.getValue().forEach(row -> session.replicate(row, ReplicationMode.IGNORE));
+					return null;
+				});
+				inShard(source, () -> {
+					delete.accept(target.getValue());
+					return null;
+				});
+				moved += target.getValue().size();
+			}
+			if (rows.size() < batchSize) {
+				return moved;
+			}
+			after = id.apply(rows.get(rows.size() - 1));
+		}
+	}
+
+	private long releaseStaleClaims(LocalDateTime claimedBefore) {
+		long released = 0;
+		String after = "";
+		while (true) {
+			String cursor = after;
+			List<UserEmail> claims = inShard(ShardRouting.DIRECTORY_SHARD,
+					() -> userEmailRepository.findByEmailGreaterThanOrderByEmailAsc(cursor, PageRequest.of(0, batchSize)));
+			Map<Integer, List<UserEmail>> byShard = claims.stream()
+					.filter(claim -> claim.getClaimedAt().isBefore(claimedBefore))
+					.collect(Collectors.groupingBy(claim -> shardRouting.shardOf(claim.getUserId())));
+			for (Map.Entry<Integer, List<UserEmail>> shard : byShard.entrySet()) {
+				List<Long> userIds = shard.getValue().stream().map(UserEmail::getUserId).collect(Collectors.toList());
+				Map<Long, String> emails = new HashMap<>();
+				inShard(shard.getKey(), () -> userRepository.findAllById(userIds))
+						.forEach(user -> emails.put(user.getId(), user.getEmail()));
+				for (UserEmail claim : shard.getValue()) {
+					if (!claim.getEmail().equals(emails.get(claim.getUserId()))) {
+						released += inShard(ShardRouting.DIRECTORY_SHARD,
+								() -> userEmailRepository.deleteClaim(claim.getEmail(), claim.getUserId()));
+					}
+				}
+			}
+			if (claims.size() < batchSize) {
+				return released;
+			}
+			after = claims.get(claims.size() - 1).getEmail();
+		}
+	}
+
+	private <T> T inShard(int shard, Supplier<T> action) {
+		try (ShardRouting.Scope scope = shardRouting.enter(shard)) {
+			return transaction.execute(status -> action.get());
+		}
+	}
+
+	public static class Report {
+
+		private long usersMoved;
+		private long tombstonesMoved;
+		private long claimsReleased;
+
+		public long getUsersMoved() {
+			return usersMoved;
+		}
+
+		public long getTombstonesMoved() {
+			return tombstonesMoved;
+		}
+
+		public long getClaimsReleased() {
+			return claimsReleased;
+		}
+
+		@Override
+		public String toString() {
+			return usersMoved + " users moved, " + tombstonesMoved + " tombstones moved, " + claimsReleased
+					+ " email claims released";
+		}
+	}
+
+}
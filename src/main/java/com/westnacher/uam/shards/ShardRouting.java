@@ -0,0 +1,215 @@
+package com.westnacher.uam.shards;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.westnacher.uam.bulkheads.Bulkheads;
+import com.westnacher.uam.configurations.VirtualThreads;
+import com.westnacher.uam.deadlines.RequestDeadline;
+
+/**
+ * The shard map: users live on the shard their id hashes to, out of the shards
+ * listed in uam.shards.urls. Without that setting there is a single shard and
+ * every method here is a no-op around the caller's code.
+ *
+ * Code that touches a shard runs inside a {@link Scope}, which the
+ * {@link ShardRoutingDataSource} reads when a transaction fetches its
+ * connection. The scope therefore has to be entered before the first
+ * statement of the transaction.
+ */
+@Component
+public class ShardRouting {
+
+	/** Holds the email directory and everything that is not partitioned. */
+	public static final int DIRECTORY_SHARD = 0;
+
+	private static final ThreadLocal<Integer> CURRENT_SHARD = new ThreadLocal<>();
+	private static final Scope NO_SCOPE = () -> {
+	};
+
+	private final int shardCount;
+	private final ExecutorService scatterExecutor;
+
+	@Autowired
+	public ShardRouting(@Value("${uam.shards.urls:}") List<String> shardUrls,
+			@Value("${uam.shards.scatter-threads:16}") int scatterThreads,
+			@Value("${uam.threads.virtual:false}") boolean virtualThreads) {
+		this.shardCount = Math.max(1, shardUrls.size());
+		if (shardCount == 1) {
+			this.scatterExecutor = null;
+			return;
+		}
+		if (virtualThreads) {
+			// a bounded pool would cap concurrent shard queries below the connection pools
+			this.scatterExecutor = VirtualThreads.newExecutor("shard-scatter-");
+			return;
+		}
+		AtomicInteger threads = new AtomicInteger();
+		this.scatterExecutor = Executors.newFixedThreadPool(scatterThreads, runnable -> {
+			Thread thread = new Thread(runnable, "shard-scatter-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * The shard entered on this thread, the directory shard outside of any scope.
+	 */
+	public static int currentShard() {
+		Integer shard = CURRENT_SHARD.get();
+		return shard == null ? DIRECTORY_SHARD : shard;
+	}
+
+	public int shardCount() {
+		return shardCount;
+	}
+
+	public boolean isSharded() {
+		return shardCount > 1;
+	}
+
+	public int shardOf(long userId) {
+		return shardOf(userId, shardCount);
+	}
+
+	// jump consistent hash (Lamping and Veach): growing from n to n + 1 shards moves only 1 / (n + 1) of the users
+	static int shardOf(long userId, int shardCount) {
+		long key = mix(userId);
+		long bucket = -1;
+		long next = 0;
+		while (next < shardCount) {
+			bucket = next;
+			key = key * 2862933555777941757L + 1;
+			next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+		}
+		return (int) bucket;
+	}
+
+	public Scope enter(int shard) {
+		if (shard < 0 || shard >= shardCount) {
+			throw new IllegalArgumentException("Shard must be between 0 and " + (shardCount - 1) + " but was " + shard);
+		}
+		if (!isSharded()) {
+			return NO_SCOPE;
+		}
+		Integer previous = CURRENT_SHARD.get();
+		CURRENT_SHARD.set(shard);
+		return () -> {
+			if (previous == null) {
+				CURRENT_SHARD.remove();
+			} else {
+				CURRENT_SHARD.set(previous);
+			}
+		};
+	}
+
+	public Scope enterShardOf(Long userId) {
+		return isSharded() ? enter(shardOf(userId)) : NO_SCOPE;
+	}
+
+	/**
+	 * Runs the query once per shard, in parallel when there are several, and
+	 * returns the results indexed by shard. Each query runs in its own
+	 * transaction, if any, since it runs on another thread. The queries run
+	 * under the caller's request deadline, which also bounds the wait for them,
+	 * and with the connections of the caller's bulkhead.
+	 */
+	public <T> List<T> scatter(IntFunction<T> query) {
+		List<T> results = new ArrayList<>(shardCount);
+		if (!isSharded()) {
+			results.add(query.apply(DIRECTORY_SHARD));
+			return results;
+		}
+		Long deadline = RequestDeadline.current();
+		Bulkheads.Type bulkhead = Bulkheads.current();
+		List<CompletableFuture<T>> futures = new ArrayList<>(shardCount);
+		for (int shard = 0; shard < shardCount; shard++) {
+			int target = shard;
+			futures.add(CompletableFuture.supplyAsync(() -> RequestDeadline.callWithin(deadline,
+					() -> Bulkheads.callWithin(bulkhead, () -> {
+						try (Scope scope = enter(target)) {
+							return query.apply(target);
+						}
+					})), scatterExecutor));
+		}
+		for (CompletableFuture<T> future : futures) {
+			results.add(deadline == null ? join(future) : join(future, deadline));
+		}
+		return results;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (scatterExecutor != null) {
+			scatterExecutor.shutdownNow();
+		}
+	}
+
+	private static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException ex) {
+			throw rethrow(ex.getCause(), ex);
+		}
+	}
+
+	// queries still running past the deadline fail on their own with their statement timeout
+	private static <T> T join(CompletableFuture<T> future, long deadline) {
+		try {
+			return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException ex) {
+			throw RequestDeadline.expired();
+		} catch (ExecutionException ex) {
+			throw rethrow(ex.getCause(), new CompletionException(ex.getCause()));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new CompletionException(ex);
+		}
+	}
+
+	private static RuntimeException rethrow(Throwable cause, RuntimeException otherwise) {
+		if (cause instanceof RuntimeException) {
+			return (RuntimeException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return otherwise;
+	}
+
+	// k-sorted ids differ mostly in their timestamp bits, spread them over the whole key first
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Restores the shard that was entered before, closing never throws.
+	 */
+	@FunctionalInterface
+	public interface Scope extends AutoCloseable {
+
+		@Override
+		void close();
+	}
+
+}
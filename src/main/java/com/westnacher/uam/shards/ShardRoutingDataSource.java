@@ -0,0 +1,56 @@
+package com.westnacher.uam.shards;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+/**
+ * Hands out connections of the shard entered through {@link ShardRouting}, or
+ * of the directory shard outside of any scope.
+ *
+ * Must be wrapped in a LazyConnectionDataSourceProxy, so a transaction only
+ * fetches its connection at the first statement, after the scope was entered.
+ */
+public class ShardRoutingDataSource extends AbstractRoutingDataSource implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ShardRoutingDataSource.class);
+
+	private final List<DataSource> shards;
+
+	public ShardRoutingDataSource(List<DataSource> shards) {
+		this.shards = shards;
+		Map<Object, Object> targets = new HashMap<>();
+		for (int shard = 0; shard < shards.size(); shard++) {
+			targets.put(shard, shards.get(shard));
+		}
+		setTargetDataSources(targets);
+		setLenientFallback(false);
+		afterPropertiesSet();
+	}
+
+	@Override
+	protected Object determineCurrentLookupKey() {
+		return ShardRouting.currentShard();
+	}
+
+	@Override
+	public void close() {
+		for (DataSource shard : shards) {
+			if (shard instanceof Closeable) {
+				try {
+					((Closeable) shard).close();
+				} catch (Exception ex) {
+					LOGGER.warn("Closing data source failed", ex);
+				}
+			}
+		}
+	}
+
+}
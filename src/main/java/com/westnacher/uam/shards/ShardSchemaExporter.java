@@ -0,0 +1,62 @@
+package com.westnacher.uam.shards;
+
+import java.util.EnumSet;
+
+import org.hibernate.boot.Metadata;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+import org.hibernate.tool.hbm2ddl.SchemaExport;
+import org.hibernate.tool.hbm2ddl.SchemaExport.Action;
+import org.hibernate.tool.schema.TargetType;
+
+/**
+ * Hibernate's hbm2ddl only sees the connection of the directory shard. With
+ * ddl-auto create or create-drop this repeats the schema export on every other
+ * shard, any other setting leaves the shards to the migrations that also
+ * manage the first one.
+ */
+public class ShardSchemaExporter implements Integrator {
+
+	private final ShardRouting shardRouting;
+	private Metadata metadata;
+	private boolean dropOnClose;
+
+	public ShardSchemaExporter(ShardRouting shardRouting) {
+		this.shardRouting = shardRouting;
+	}
+
+	@Override
+	public void integrate(Metadata metadata, SessionFactoryImplementor sessionFactory,
+			SessionFactoryServiceRegistry serviceRegistry) {
+		Object ddlAuto = serviceRegistry.getService(ConfigurationService.class).getSettings()
+				.get(AvailableSettings.HBM2DDL_AUTO);
+		if (!"create".equals(ddlAuto) && !"create-drop".equals(ddlAuto)) {
+			return;
+		}
+		this.metadata = metadata;
+		this.dropOnClose = "create-drop".equals(ddlAuto);
+		export(Action.BOTH);
+	}
+
+	@Override
+	public void disintegrate(SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+		if (dropOnClose) {
+			export(Action.DROP);
+		}
+	}
+
+	private void export(Action action) {
+		for (int shard = 0; shard < shardRouting.shardCount(); shard++) {
+			if (shard == ShardRouting.DIRECTORY_SHARD) {
+				continue;
+			}
+			try (ShardRouting.Scope scope = shardRouting.enter(shard)) {
+				new SchemaExport().execute(EnumSet.of(TargetType.DATABASE), action, metadata);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.westnacher.uam.bulkheads;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class BulkheadDataSourceTest {
+
+	private Map<Bulkheads.Type, DataSource> pools = new EnumMap<>(Bulkheads.Type.class);
+	private DataSource shared = Mockito.mock(DataSource.class);
+
+	@Test
+	public void testPool_ByCurrentBulkhead() {
+		for (Bulkheads.Type type : Bulkheads.Type.values()) {
+			pools.put(type, Mockito.mock(DataSource.class));
+		}
+		BulkheadDataSource dataSource = new BulkheadDataSource(pools, shared);
+
+		for (Bulkheads.Type type : Bulkheads.Type.values()) {
+			assertThat(Bulkheads.callWithin(type, dataSource::pool)).isSameAs(pools.get(type));
+		}
+	}
+
+	@Test
+	public void testPool_OutsideBulkhead_Shared() {
+		pools.put(Bulkheads.Type.POINT_READS, Mockito.mock(DataSource.class));
+		BulkheadDataSource dataSource = new BulkheadDataSource(pools, shared);
+
+		assertThat(dataSource.pool()).isSameAs(shared);
+		assertThat(Bulkheads.callWithin(Bulkheads.Type.BULK, dataSource::pool)).isSameAs(shared);
+	}
+
+}
@@ -0,0 +1,115 @@
+package com.westnacher.uam.bulkheads;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class BulkheadTest {
+
+	private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testTryEnter_UpToMaxConcurrent() {
+		Bulkhead bulkhead = bulkhead(2, 0, Duration.ZERO);
+
+		assertThat(bulkhead.tryEnter()).isTrue();
+		assertThat(bulkhead.tryEnter()).isTrue();
+		assertThat(bulkhead.tryEnter()).isFalse();
+		assertThat(bulkhead.active()).isEqualTo(2);
+
+		bulkhead.exit();
+		assertThat(bulkhead.tryEnter()).isTrue();
+		assertThat(rejected()).isEqualTo(1);
+	}
+
+	@Test
+	public void testTryEnter_Queued_EntersOnExit() throws Exception {
+		Bulkhead bulkhead = bulkhead(1, 1, Duration.ofMinutes(1));
+		assertThat(bulkhead.tryEnter()).isTrue();
+
+		Future<Boolean> waiting = executor.submit(bulkhead::tryEnter);
+		awaitQueued(bulkhead, 1);
+		bulkhead.exit();
+
+		assertThat(waiting.get(1, TimeUnit.MINUTES)).isTrue();
+		assertThat(bulkhead.queued()).isZero();
+		assertThat(bulkhead.active()).isEqualTo(1);
+		assertThat(rejected()).isZero();
+	}
+
+	@Test
+	public void testTryEnter_QueueFull_RejectedAtOnce() throws Exception {
+		Bulkhead bulkhead = bulkhead(1, 1, Duration.ofMinutes(1));
+		assertThat(bulkhead.tryEnter()).isTrue();
+		Future<Boolean> waiting = executor.submit(bulkhead::tryEnter);
+		awaitQueued(bulkhead, 1);
+
+		long start = System.nanoTime();
+		assertThat(bulkhead.tryEnter()).isFalse();
+
+		assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(10));
+		assertThat(rejected()).isEqualTo(1);
+		bulkhead.exit();
+		assertThat(waiting.get(1, TimeUnit.MINUTES)).isTrue();
+	}
+
+	@Test
+	public void testTryEnter_WaitedMaxWait_Rejected() {
+		Bulkhead bulkhead = bulkhead(1, 1, Duration.ofMillis(50));
+		assertThat(bulkhead.tryEnter()).isTrue();
+
+		assertThat(bulkhead.tryEnter()).isFalse();
+
+		assertThat(bulkhead.queued()).isZero();
+		assertThat(rejected()).isEqualTo(1);
+	}
+
+	@Test
+	public void testMetrics_TaggedWithName() {
+		Bulkhead bulkhead = bulkhead(3, 0, Duration.ZERO);
+		bulkhead.tryEnter();
+
+		assertThat(meterRegistry.get("uam.bulkhead.active").tag("bulkhead", "test").gauge().value()).isEqualTo(1);
+		assertThat(meterRegistry.get("uam.bulkhead.queued").tag("bulkhead", "test").gauge().value()).isZero();
+	}
+
+	@Test
+	public void testNew_InvalidLimits_Fail() {
+		assertThatThrownBy(() -> bulkhead(0, 0, Duration.ZERO)).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> bulkhead(1, -1, Duration.ZERO)).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	private Bulkhead bulkhead(int maxConcurrent, int maxQueue, Duration maxWait) {
+		return new Bulkhead("test", maxConcurrent, maxQueue, maxWait, Duration.ofSeconds(1), meterRegistry);
+	}
+
+	private double rejected() {
+		return meterRegistry.get("uam.bulkhead.rejected").tag("bulkhead", "test").counter().count();
+	}
+
+	private static void awaitQueued(Bulkhead bulkhead, int queued) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+		while (bulkhead.queued() < queued && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		assertThat(bulkhead.queued()).isEqualTo(queued);
+	}
+
+}
@@ -0,0 +1,62 @@
+package com.westnacher.uam.bulkheads;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class BulkheadsTest {
+
+	@Test
+	public void testBulkheads_Defaults_LeaveRequestThreads() {
+		Bulkheads bulkheads = bulkheads(new MockEnvironment(), 200, false);
+
+		int admitted = 0;
+		for (Bulkheads.Type type : Bulkheads.Type.values()) {
+			admitted += bulkheads.get(type).getMaxConcurrent() + bulkheads.get(type).getMaxQueue();
+		}
+		assertThat(admitted).isLessThan(200);
+		assertThat(bulkheads.poolSize(Bulkheads.Type.BULK)).isEqualTo(2);
+	}
+
+	@Test
+	public void testBulkheads_QueuesTakeAllRequestThreads_Rejected() {
+		MockEnvironment environment = new MockEnvironment()
+				.withProperty("uam.bulkheads.point-reads.max-queue", "200");
+
+		assertThatThrownBy(() -> bulkheads(environment, 200, false))
+				.isInstanceOf(IllegalStateException.class)
+				.hasMessageContaining("server.tomcat.threads.max");
+	}
+
+	@Test
+	public void testBulkheads_VirtualThreads_NoThreadLimit() {
+		MockEnvironment environment = new MockEnvironment()
+				.withProperty("uam.bulkheads.point-reads.max-queue", "200");
+
+		assertThat(bulkheads(environment, 200, true).get(Bulkheads.Type.POINT_READS).getMaxQueue()).isEqualTo(200);
+	}
+
+	@Test
+	public void testCallWithin_RestoresPrevious() {
+		Bulkheads.enter(Bulkheads.Type.WRITES);
+		try {
+			assertThat(Bulkheads.callWithin(Bulkheads.Type.BULK, Bulkheads::current)).isEqualTo(Bulkheads.Type.BULK);
+			assertThat(Bulkheads.callWithin(null, Bulkheads::current)).isNull();
+			assertThat(Bulkheads.current()).isEqualTo(Bulkheads.Type.WRITES);
+		} finally {
+			Bulkheads.enter(null);
+		}
+	}
+
+	private static Bulkheads bulkheads(MockEnvironment environment, int requestThreads, boolean virtualThreads) {
+		return new Bulkheads(true, Duration.ofSeconds(1), 2, requestThreads, virtualThreads, environment,
+				new SimpleMeterRegistry());
+	}
+
+}
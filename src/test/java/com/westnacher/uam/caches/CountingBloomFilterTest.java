@@ -0,0 +1,68 @@
+package com.westnacher.uam.caches;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.junit.Test;
+
+public class CountingBloomFilterTest {
+
+	@Test
+	public void testAdd_ThenMightContain_NoFalseNegatives() {
+		CountingBloomFilter filter = new CountingBloomFilter(10_000, 0.01);
+		for (int i = 0; i < 10_000; i++) {
+			filter.add("user" + i + "@test.com");
+		}
+		for (int i = 0; i < 10_000; i++) {
+			assertThat(filter.mightContain("user" + i + "@test.com")).isTrue();
+		}
+	}
+
+	@Test
+	public void testMightContain_FalsePositiveRateWithinBound() {
+		CountingBloomFilter filter = new CountingBloomFilter(10_000, 0.01);
+		for (int i = 0; i < 10_000; i++) {
+			filter.add("user" + i + "@test.com");
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 100_000; i++) {
+			if (filter.mightContain("other" + i + "@test.com")) {
+				falsePositives++;
+			}
+		}
+		assertThat(falsePositives / 100_000.0).isLessThan(0.02);
+	}
+
+	@Test
+	public void testRemove_OnlyRemovesThatValue() {
+		CountingBloomFilter filter = new CountingBloomFilter(1_000, 0.01);
+		for (int i = 0; i < 1_000; i++) {
+			filter.add("user" + i + "@test.com");
+		}
+		for (int i = 0; i < 1_000; i += 2) {
+			filter.remove("user" + i + "@test.com");
+		}
+		for (int i = 1; i < 1_000; i += 2) {
+			assertThat(filter.mightContain("user" + i + "@test.com")).isTrue();
+		}
+	}
+
+	@Test
+	public void testFillRatio_TracksNonZeroCounters() {
+		CountingBloomFilter filter = new CountingBloomFilter(1_000, 0.01);
+		assertThat(filter.fillRatio()).isZero();
+
+		filter.add("user@test.com");
+		assertThat(filter.fillRatio() * filter.getCounters()).isEqualTo(filter.getHashFunctions());
+
+		filter.remove("user@test.com");
+		assertThat(filter.fillRatio()).isZero();
+		assertThat(filter.mightContain("user@test.com")).isFalse();
+	}
+
+	@Test
+	public void testConstructor_InvalidFalsePositiveRate_Fail() {
+		assertThatThrownBy(() -> new CountingBloomFilter(1_000, 1.5)).isInstanceOf(IllegalArgumentException.class);
+	}
+
+}
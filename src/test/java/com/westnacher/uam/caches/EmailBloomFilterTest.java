@@ -0,0 +1,54 @@
+package com.westnacher.uam.caches;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.westnacher.uam.repositories.UserRepository;
+import com.westnacher.uam.shards.ShardRouting;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class EmailBloomFilterTest {
+
+	private UserRepository userRepository = Mockito.mock(UserRepository.class);
+	private ShardRouting shardRouting = Mockito.mock(ShardRouting.class);
+	private EmailBloomFilter emailBloomFilter;
+
+	@Before
+	public void setup() {
+		Mockito.when(shardRouting.shardCount()).thenReturn(1);
+		Mockito.when(shardRouting.enter(0)).thenReturn(() -> {
+		});
+		emailBloomFilter = new EmailBloomFilter(true, 1000, 0.01, userRepository, shardRouting,
+				Mockito.mock(PlatformTransactionManager.class), new SimpleMeterRegistry());
+	}
+
+	@Test
+	public void testMightBeRegistered_CaseVariantOfLoadedEmail_Hit() {
+		Mockito.when(userRepository.streamAllEmails()).thenReturn(Stream.of("Mixed.Case@Test.com"));
+		emailBloomFilter.load();
+
+		assertThat(emailBloomFilter.isLoaded()).isTrue();
+		assertThat(emailBloomFilter.mightBeRegistered("mixed.case@test.com")).isTrue();
+		assertThat(emailBloomFilter.mightBeRegistered(" MIXED.CASE@TEST.COM")).isTrue();
+	}
+
+	@Test
+	public void testAddAndRemove_CaseVariants_SameEntry() {
+		Mockito.when(userRepository.streamAllEmails()).thenReturn(Stream.empty());
+		emailBloomFilter.load();
+
+		emailBloomFilter.add("New.User@Test.com");
+		assertThat(emailBloomFilter.mightBeRegistered("new.user@test.com")).isTrue();
+
+		emailBloomFilter.remove("NEW.USER@test.com");
+		assertThat(emailBloomFilter.mightBeRegistered("New.User@Test.com")).isFalse();
+	}
+
+}
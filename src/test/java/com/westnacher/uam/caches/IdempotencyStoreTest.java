@@ -0,0 +1,158 @@
+package com.westnacher.uam.caches;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.westnacher.uam.exceptions.AccountsManagerException;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class IdempotencyStoreTest {
+
+	private final AtomicLong ticker = new AtomicLong();
+	private final AtomicInteger runs = new AtomicInteger();
+
+	@Test
+	public void testExecute_SameKey_ReplaysWithoutRunning() {
+		IdempotencyStore store = store();
+
+		String first = store.execute("POST /users", "key", "request", () -> "created " + runs.incrementAndGet());
+		String retry = store.execute("POST /users", "key", "request", () -> "created " + runs.incrementAndGet());
+
+		assertThat(retry).isEqualTo(first);
+		assertThat(runs).hasValue(1);
+	}
+
+	@Test
+	public void testExecute_KeyReusedForOtherRequest_Fail() {
+		IdempotencyStore store = store();
+		store.execute("POST /users", "key", "request", runs::incrementAndGet);
+
+		assertThatThrownBy(() -> store.execute("POST /users", "key", "other request", runs::incrementAndGet))
+				.isInstanceOfSatisfying(AccountsManagerException.class,
+						ex -> assertThat(ex.getStatus()).isEqualTo(HttpStatus.UNPROCESSABLE_ENTITY));
+		assertThat(runs).hasValue(1);
+	}
+
+	@Test
+	public void testExecute_SameKeyOtherOperation_Runs() {
+		IdempotencyStore store = store();
+
+		store.execute("POST /users", "key", "request", runs::incrementAndGet);
+		store.execute("POST /users/batch", "key", "request", runs::incrementAndGet);
+
+		assertThat(runs).hasValue(2);
+	}
+
+	@Test
+	public void testExecute_ConcurrentDuplicates_RunOnce() throws Exception {
+		IdempotencyStore store = store();
+		CountDownLatch running = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Future<Integer> first = executor.submit(() -> store.execute("POST /users", "key", "request", () -> {
+				running.countDown();
+				await(release);
+				return runs.incrementAndGet();
+			}));
+			running.await(5, TimeUnit.SECONDS);
+			Future<Integer> retry1 = executor.submit(() -> store.execute("POST /users", "key", "request", runs::incrementAndGet));
+			Future<Integer> retry2 = executor.submit(() -> store.execute("POST /users", "key", "request", runs::incrementAndGet));
+			release.countDown();
+
+			assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+			assertThat(retry1.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+			assertThat(retry2.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+			assertThat(runs).hasValue(1);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testExecute_ClientError_Replayed() {
+		IdempotencyStore store = store();
+		AccountsManagerException conflict = new AccountsManagerException("taken", HttpStatus.CONFLICT);
+
+		assertThatThrownBy(() -> store.execute("POST /users", "key", "request", () -> {
+			runs.incrementAndGet();
+			throw conflict;
+		})).isSameAs(conflict);
+		assertThatThrownBy(() -> store.execute("POST /users", "key", "request", runs::incrementAndGet))
+				.isSameAs(conflict);
+		assertThat(runs).hasValue(1);
+	}
+
+	@Test
+	public void testExecute_ServerError_RunsAgain() {
+		IdempotencyStore store = store();
+
+		assertThatThrownBy(() -> store.execute("POST /users", "key", "request", () -> {
+			runs.incrementAndGet();
+			throw new IllegalStateException("database down");
+		})).isInstanceOf(IllegalStateException.class);
+		assertThat(store.execute("POST /users", "key", "request", runs::incrementAndGet)).isEqualTo(2);
+	}
+
+	@Test
+	public void testExecute_NoKey_AlwaysRuns() {
+		IdempotencyStore store = store();
+
+		store.execute("POST /users", null, "request", runs::incrementAndGet);
+		store.execute("POST /users", null, "request", runs::incrementAndGet);
+
+		assertThat(runs).hasValue(2);
+		assertThat(store.estimatedSize()).isZero();
+	}
+
+	@Test
+	public void testExecute_KeyTooLong_Fail() {
+		IdempotencyStore store = store();
+		String key = new String(new char[256]).replace('\0', 'k');
+
+		assertThatThrownBy(() -> store.execute("POST /users", key, "request", runs::incrementAndGet))
+				.isInstanceOfSatisfying(AccountsManagerException.class,
+						ex -> assertThat(ex.getStatus()).isEqualTo(HttpStatus.BAD_REQUEST));
+		assertThat(runs).hasValue(0);
+	}
+
+	@Test
+	public void testExecute_AfterTtl_RunsAgain() {
+		IdempotencyStore store = store();
+		store.execute("POST /users", "key", "request", runs::incrementAndGet);
+
+		ticker.addAndGet(TimeUnit.HOURS.toNanos(25));
+		store.cleanUp();
+
+		assertThat(store.estimatedSize()).isZero();
+		assertThat(store.execute("POST /users", "key", "request", runs::incrementAndGet)).isEqualTo(2);
+	}
+
+	private IdempotencyStore store() {
+		return new IdempotencyStore(true, 100, Duration.ofHours(24), new ObjectMapper(), new SimpleMeterRegistry(),
+				ticker::get);
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+package com.westnacher.uam.caches;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+
+import com.westnacher.uam.exceptions.AccountsManagerException;
+
+public class SingleFlightTest {
+
+	private static final int CALLERS = 1000;
+
+	@Test
+	public void testExecute_ConcurrentSameKey_LoadsOnce() throws Exception {
+		SingleFlight<Long, String> singleFlight = new SingleFlight<>();
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch arrived = new CountDownLatch(CALLERS);
+
+		List<Future<String>> results = runConcurrently(arrived, () -> singleFlight.execute(1L, () -> {
+			loads.incrementAndGet();
+			awaitQuietly(arrived);
+			sleepQuietly(200);
+			return "user-1";
+		}));
+
+		for (Future<String> result : results) {
+			assertThat(result.get(1, TimeUnit.MINUTES)).isEqualTo("user-1");
+		}
+		assertThat(loads.get()).isEqualTo(1);
+		assertThat(singleFlight.inFlightCount()).isZero();
+	}
+
+	@Test
+	public void testExecute_ConcurrentSameKey_SameException() throws Exception {
+		SingleFlight<Long, String> singleFlight = new SingleFlight<>();
+		AccountsManagerException notFound = new AccountsManagerException("not found", HttpStatus.BAD_REQUEST);
+		CountDownLatch arrived = new CountDownLatch(CALLERS);
+
+		List<Future<Object>> results = runConcurrently(arrived, () -> {
+			try {
+				return singleFlight.execute(1L, () -> {
+					awaitQuietly(arrived);
+					sleepQuietly(200);
+					throw notFound;
+				});
+			} catch (AccountsManagerException ex) {
+				return ex;
+			}
+		});
+
+		for (Future<Object> result : results) {
+			assertThat(result.get(1, TimeUnit.MINUTES)).isSameAs(notFound);
+		}
+	}
+
+	@Test
+	public void testForget_NextCallerLoadsAgain() throws Exception {
+		SingleFlight<Long, String> singleFlight = new SingleFlight<>();
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<String> stale = executor.submit(() -> singleFlight.execute(1L, () -> {
+			loading.countDown();
+			awaitQuietly(release);
+			return "stale";
+		}));
+		loading.await();
+
+		singleFlight.forget(1L);
+		assertThat(singleFlight.execute(1L, () -> "fresh")).isEqualTo("fresh");
+
+		release.countDown();
+		assertThat(stale.get(1, TimeUnit.MINUTES)).isEqualTo("stale");
+		executor.shutdown();
+	}
+
+	private <T> List<Future<T>> runConcurrently(CountDownLatch arrived, Callable<T> call) {
+		ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+		List<Future<T>> results = new ArrayList<>();
+		for (int i = 0; i < CALLERS; i++) {
+			results.add(executor.submit(() -> {
+				arrived.countDown();
+				return call.call();
+			}));
+		}
+		executor.shutdown();
+		return results;
+	}
+
+	private static void awaitQuietly(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void sleepQuietly(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package com.westnacher.uam.caches;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.westnacher.uam.dtos.UserDto;
+import com.westnacher.uam.forms.UserForm;
+import com.westnacher.uam.models.UserTombstone;
+import com.westnacher.uam.repositories.UserRepository;
+import com.westnacher.uam.repositories.UserTombstoneRepository;
+import com.westnacher.uam.services.UserService;
+
+// polled by hand, the writes "of another instance" go around UserService and its local invalidation
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = { "uam.outbox.relay.enabled=false", "uam.cache.users.invalidation.enabled=false" })
+public class UserCacheInvalidatorTest {
+
+	@Autowired
+	private UserCacheInvalidator userCacheInvalidator;
+
+	@Autowired
+	private UserCache userCache;
+
+	@Autowired
+	private UserService userService;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private UserTombstoneRepository userTombstoneRepository;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Test
+	public void testPoll_EditedElsewhere_Invalidated() {
+		UserDto created = userService.createUser(createValidUserForm());
+		userCacheInvalidator.poll();
+		userService.getUserById(created.getId());
+
+		String email = randomEmail();
+		new TransactionTemplate(transactionManager).execute(status -> userRepository.updateUserIfVersionMatches(
+				created.getId(), created.getVersion(), "Other", "Instance", email, LocalDate.of(1990, 1, 1),
+				LocalDateTime.now()));
+		assertThat(userService.getUserById(created.getId()).getEmail()).isEqualTo(created.getEmail());
+
+		userCacheInvalidator.poll();
+
+		assertThat(userCache.get(created.getId())).isNull();
+		assertThat(userService.getUserById(created.getId()).getEmail()).isEqualTo(email);
+	}
+
+	@Test
+	public void testPoll_SeenVersion_StaysCached() {
+		UserDto created = userService.createUser(createValidUserForm());
+		userCacheInvalidator.poll();
+		userService.getUserById(created.getId());
+
+		userCacheInvalidator.poll();
+
+		assertThat(userCache.get(created.getId())).isNotNull();
+	}
+
+	@Test
+	public void testPoll_DeletedElsewhere_Invalidated() {
+		UserDto created = userService.createUser(createValidUserForm());
+		userCacheInvalidator.poll();
+		userService.getUserById(created.getId());
+
+		new TransactionTemplate(transactionManager).execute(status -> {
+			userRepository.deleteUserById(created.getId());
+			return userTombstoneRepository.save(new UserTombstone(created.getId(), LocalDateTime.now()));
+		});
+		assertThat(userCache.get(created.getId())).isNotNull();
+
+		userCacheInvalidator.poll();
+
+		assertThat(userCache.get(created.getId())).isNull();
+	}
+
+	private static String randomEmail() {
+		return RandomStringUtils.random(8, true, true) + "@test.com";
+	}
+
+	private static UserForm createValidUserForm() {
+		UserForm form = new UserForm();
+		form.setFirstName("Cached");
+		form.setLastName("Elsewhere");
+		form.setEmail(randomEmail());
+		form.setDateOfBirth(LocalDate.of(1990, 1, 1));
+		return form;
+	}
+
+}
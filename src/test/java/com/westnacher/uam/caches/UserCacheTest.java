@@ -0,0 +1,85 @@
+package com.westnacher.uam.caches;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.westnacher.uam.dtos.UserDto;
+
+public class UserCacheTest {
+
+	@Test
+	public void testPut_ThenGet_Hit() {
+		UserCache cache = new UserCache(true, 10, Duration.ofMinutes(1), System::nanoTime);
+		UserDto user = userWithId(1L);
+
+		cache.put(1L, user, cache.readToken(1L));
+
+		assertThat(cache.get(1L)).isSameAs(user);
+	}
+
+	@Test
+	public void testPut_AfterConcurrentInvalidate_NotCached() {
+		UserCache cache = new UserCache(true, 10, Duration.ofMinutes(1), System::nanoTime);
+
+		long readToken = cache.readToken(1L);
+		// an edit commits while the stale row is being loaded
+		cache.invalidate(1L);
+		cache.put(1L, userWithId(1L), readToken);
+
+		assertThat(cache.get(1L)).isNull();
+	}
+
+	@Test
+	public void testInvalidate_RemovesEntry() {
+		UserCache cache = new UserCache(true, 10, Duration.ofMinutes(1), System::nanoTime);
+		cache.put(1L, userWithId(1L), cache.readToken(1L));
+
+		cache.invalidate(1L);
+
+		assertThat(cache.get(1L)).isNull();
+	}
+
+	@Test
+	public void testGet_AfterTtl_Expired() {
+		AtomicLong ticker = new AtomicLong();
+		UserCache cache = new UserCache(true, 10, Duration.ofSeconds(30), ticker::get);
+		cache.put(1L, userWithId(1L), cache.readToken(1L));
+
+		ticker.addAndGet(TimeUnit.SECONDS.toNanos(31));
+
+		assertThat(cache.get(1L)).isNull();
+	}
+
+	@Test
+	public void testPut_OverMaxSize_Evicts() {
+		UserCache cache = new UserCache(true, 100, Duration.ofMinutes(1), System::nanoTime);
+		for (long id = 0; id < 1000; id++) {
+			cache.put(id, userWithId(id), cache.readToken(id));
+		}
+
+		cache.cleanUp();
+
+		assertThat(cache.estimatedSize()).isLessThanOrEqualTo(100);
+	}
+
+	@Test
+	public void testDisabled_NeverCaches() {
+		UserCache cache = new UserCache(false, 10, Duration.ofMinutes(1), System::nanoTime);
+
+		cache.put(1L, userWithId(1L), cache.readToken(1L));
+
+		assertThat(cache.get(1L)).isNull();
+	}
+
+	private UserDto userWithId(Long id) {
+		UserDto user = new UserDto();
+		user.setId(id);
+		return user;
+	}
+
+}
@@ -0,0 +1,40 @@
+package com.westnacher.uam.configurations;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class VirtualThreadsTest {
+
+	@Test
+	public void testNewExecutor_Java21_NamedVirtualThreads() throws Exception {
+		Assume.assumeTrue(javaVersion() >= 21);
+		ExecutorService executor = VirtualThreads.newExecutor("test-");
+
+		Thread thread = executor.submit(Thread::currentThread).get(5, TimeUnit.SECONDS);
+
+		assertThat(thread.getName()).startsWith("test-");
+		assertThat(Thread.class.getMethod("isVirtual").invoke(thread)).isEqualTo(true);
+		executor.shutdown();
+	}
+
+	@Test
+	public void testNewExecutor_BeforeJava21_Fail() {
+		Assume.assumeTrue(javaVersion() < 21);
+
+		assertThatThrownBy(() -> VirtualThreads.newExecutor("test-")).isInstanceOf(IllegalStateException.class)
+				.hasMessageContaining("Java 21");
+		assertThat(VirtualThreads.isSupported()).isFalse();
+	}
+
+	private static int javaVersion() {
+		String version = System.getProperty("java.specification.version");
+		return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+	}
+
+}
@@ -0,0 +1,68 @@
+package com.westnacher.uam.controllers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.method.HandlerMethod;
+
+import com.westnacher.uam.limits.AdaptiveConcurrencyLimiter;
+
+public class ConcurrencyLimitInterceptorTest {
+
+	private AdaptiveConcurrencyLimiter limiter = Mockito.mock(AdaptiveConcurrencyLimiter.class);
+	private AdaptiveConcurrencyLimiter.Permit permit = Mockito.mock(AdaptiveConcurrencyLimiter.Permit.class);
+	private ConcurrencyLimitInterceptor interceptor = new ConcurrencyLimitInterceptor(limiter);
+	private MockHttpServletRequest request = new MockHttpServletRequest();
+	private MockHttpServletResponse response = new MockHttpServletResponse();
+	private HandlerMethod handler = Mockito.mock(HandlerMethod.class);
+
+	@Before
+	public void setup() {
+		Mockito.when(limiter.isEnabled()).thenReturn(true);
+		Mockito.when(limiter.tryAcquire()).thenReturn(permit);
+		assertThat(interceptor.preHandle(request, response, handler)).isTrue();
+	}
+
+	@Test
+	public void testAfterCompletion_Success_Sampled() {
+		interceptor.afterCompletion(request, response, handler, null);
+
+		Mockito.verify(permit).release();
+		Mockito.verify(permit, Mockito.never()).releaseWithoutSample();
+	}
+
+	@Test
+	public void testAfterCompletion_ErrorStatus_NotSampled() {
+		response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+
+		interceptor.afterCompletion(request, response, handler, null);
+
+		Mockito.verify(permit).releaseWithoutSample();
+		Mockito.verify(permit, Mockito.never()).release();
+	}
+
+	@Test
+	public void testAfterCompletion_Exception_NotSampled() {
+		interceptor.afterCompletion(request, response, handler, new IllegalStateException("failed"));
+
+		Mockito.verify(permit).releaseWithoutSample();
+		Mockito.verify(permit, Mockito.never()).release();
+	}
+
+	@Test
+	public void testAfterCompletion_ClientError_NotSampled() {
+		response.setStatus(HttpStatus.NOT_FOUND.value());
+
+		interceptor.afterCompletion(request, response, handler, null);
+		interceptor.afterCompletion(request, response, handler, null);
+
+		Mockito.verify(permit, Mockito.times(1)).releaseWithoutSample();
+		Mockito.verify(permit, Mockito.never()).release();
+	}
+
+}
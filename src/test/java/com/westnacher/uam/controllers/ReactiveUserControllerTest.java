@@ -0,0 +1,160 @@
+package com.westnacher.uam.controllers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.westnacher.uam.dtos.UserDto;
+import com.westnacher.uam.forms.UserForm;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = { "uam.outbox.relay.enabled=false", "uam.reactive.stream-page-size=2" })
+@ActiveProfiles("reactive")
+@AutoConfigureMockMvc
+public class ReactiveUserControllerTest {
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Autowired
+	private ApplicationContext applicationContext;
+
+	@Test
+	public void testProfile_ReplacesUserController() {
+		assertThat(applicationContext.getBeanNamesForType(UserController.class)).isEmpty();
+		assertThat(applicationContext.getBeanNamesForType(ReactiveUserController.class)).hasSize(1);
+	}
+
+	@Test
+	public void testCreateThenGet_ETagAndNotModified() throws Exception {
+		UserDto created = create(createValidUserForm());
+
+		String eTag = async(MockMvcRequestBuilders.get("/users/" + created.getId()))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.email").value(created.getEmail()))
+				.andExpect(header().string(HttpHeaders.ETAG, "\"" + created.getVersion() + "\""))
+				.andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+		async(MockMvcRequestBuilders.get("/users/" + created.getId()).header(HttpHeaders.IF_NONE_MATCH, eTag))
+				.andExpect(status().isNotModified());
+	}
+
+	@Test
+	public void testCreate_InvalidForm_UnprocessableEntity() throws Exception {
+		UserForm form = createValidUserForm();
+		form.setFirstName(null);
+
+		async(post(form)).andExpect(status().isUnprocessableEntity())
+				.andExpect(content().string("FIRSTNAME : '' must not be null or blank"));
+	}
+
+	@Test
+	public void testCreate_RegisteredEmail_ErrorResponse() throws Exception {
+		UserForm form = createValidUserForm();
+		create(form);
+
+		async(post(form)).andExpect(status().isBadRequest())
+				.andExpect(jsonPath("$.status").value("BAD_REQUEST"))
+				.andExpect(jsonPath("$.message").value("This email (" + form.getEmail() + ") is already registered"));
+	}
+
+	@Test
+	public void testEdit_IfMatch_AppliesOnceThenPreconditionFailed() throws Exception {
+		UserDto created = create(createValidUserForm());
+		UserForm form = createValidUserForm();
+		MockHttpServletRequestBuilder edit = MockMvcRequestBuilders.put("/users/" + created.getId())
+				.contentType(MediaType.APPLICATION_JSON).content(objectMapper.writeValueAsString(form))
+				.header(HttpHeaders.IF_MATCH, "\"" + created.getVersion() + "\"");
+
+		async(edit).andExpect(status().isOk())
+				.andExpect(jsonPath("$.email").value(form.getEmail()))
+				.andExpect(header().string(HttpHeaders.ETAG, "\"" + (created.getVersion() + 1) + "\""));
+		async(edit).andExpect(status().isPreconditionFailed())
+				.andExpect(jsonPath("$.status").value("PRECONDITION_FAILED"));
+	}
+
+	@Test
+	public void testDelete_ThenGetFails() throws Exception {
+		UserDto created = create(createValidUserForm());
+
+		async(MockMvcRequestBuilders.delete("/users/" + created.getId())).andExpect(status().isNoContent());
+		async(MockMvcRequestBuilders.get("/users/" + created.getId())).andExpect(status().isBadRequest());
+	}
+
+	@Test
+	public void testGetAllUsers_StreamsEveryPageInIdOrder() throws Exception {
+		List<Long> ids = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			ids.add(create(createValidUserForm()).getId());
+		}
+
+		String body = async(MockMvcRequestBuilders.get("/users").accept(MediaType.APPLICATION_STREAM_JSON))
+				.andExpect(status().isOk())
+				.andExpect(content().contentType(MediaType.APPLICATION_STREAM_JSON))
+				.andReturn().getResponse().getContentAsString();
+
+		List<Long> streamed = new ArrayList<>();
+		for (String line : body.split("\n")) {
+			streamed.add(objectMapper.readValue(line, UserDto.class).getId());
+		}
+		// pages of two, so the users of this test span several of them
+		assertThat(streamed).isSorted().containsSubsequence(ids);
+	}
+
+	private UserDto create(UserForm form) throws Exception {
+		String body = async(post(form)).andExpect(status().isCreated()).andReturn().getResponse()
+				.getContentAsString();
+		return objectMapper.readValue(body, UserDto.class);
+	}
+
+	private MockHttpServletRequestBuilder post(UserForm form) throws Exception {
+		return MockMvcRequestBuilders.post("/users").contentType(MediaType.APPLICATION_JSON)
+				.content(objectMapper.writeValueAsString(form));
+	}
+
+	// every handler completes on another thread
+	private ResultActions async(MockHttpServletRequestBuilder builder) throws Exception {
+		MvcResult result = mockMvc.perform(builder).andExpect(request().asyncStarted()).andReturn();
+		result.getAsyncResult(10000);
+		return mockMvc.perform(asyncDispatch(result));
+	}
+
+	private UserForm createValidUserForm() {
+		UserForm form = new UserForm();
+		form.setDateOfBirth(LocalDate.of(1990, 1, 1));
+		form.setFirstName("Reactive");
+		form.setLastName("User");
+		form.setEmail(RandomStringUtils.random(8, true, true).toLowerCase() + "@test.com");
+		return form;
+	}
+
+}
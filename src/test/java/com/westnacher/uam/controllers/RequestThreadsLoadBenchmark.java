@@ -0,0 +1,231 @@
+package com.westnacher.uam.controllers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.westnacher.uam.UamApplication;
+import com.westnacher.uam.configurations.VirtualThreads;
+import com.westnacher.uam.forms.UserForm;
+import com.westnacher.uam.services.UserService;
+
+/**
+ * Load test of GET /users/{id} with platform request threads (Tomcat's pool of
+ * 200) and with virtual request threads. Every statement takes an extra
+ * latency, standing in for a slow database, and the user cache is off so every
+ * request holds a connection. Prints throughput, p50 and p99 per mode; the
+ * virtual mode needs Java 21.
+ *
+ * Run with
+ * {@code mvn -Pjdk21 test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.westnacher.uam.controllers.RequestThreadsLoadBenchmark -Dexec.args="5000 30 20"}
+ * where the arguments are clients, measured seconds and statement latency in
+ * milliseconds.
+ */
+public class RequestThreadsLoadBenchmark {
+
+	private static final int USERS = 1000;
+	private static final int POOL_SIZE = 50;
+	private static final int WARMUP_SECONDS = 5;
+	private static final int CLIENT_STACK_SIZE = 256 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+		SlowStatements.latencyMillis = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		// keeps one connection per client alive instead of the default five
+		System.setProperty("http.maxConnections", String.valueOf(clients));
+
+		List<Result> results = new ArrayList<>();
+		results.add(run(false, clients, seconds));
+		if (VirtualThreads.isSupported()) {
+			results.add(run(true, clients, seconds));
+		} else {
+			System.out.println("Virtual threads need Java 21, only the platform mode was measured");
+		}
+		System.out.printf("%n%-10s %8s %12s %10s %10s %8s%n", "threads", "clients", "requests/s", "p50 ms",
+				"p99 ms", "errors");
+		for (Result result : results) {
+			System.out.println(result);
+		}
+		System.exit(0);
+	}
+
+	private static Result run(boolean virtual, int clients, int seconds) throws InterruptedException {
+		String mode = virtual ? "virtual" : "platform";
+		// as arguments, default properties would lose against application.properties
+		ConfigurableApplicationContext context = new SpringApplicationBuilder(UamApplication.class).run(
+				"--server.port=0",
+				"--uam.threads.virtual=" + virtual,
+				"--uam.cache.users.enabled=false",
+				"--uam.outbox.relay.enabled=false",
+				// measures the request threads, a bulkhead would turn most of the clients away
+				"--uam.bulkheads.enabled=false",
+				"--spring.jpa.show-sql=false",
+				"--spring.datasource.url=jdbc:h2:mem:load-" + mode + ";MODE=MySQL;DB_CLOSE_DELAY=-1",
+				"--spring.datasource.driverClassName=org.h2.Driver",
+				"--spring.datasource.username=sa",
+				"--spring.datasource.password=",
+				"--spring.datasource.hikari.maximum-pool-size=" + POOL_SIZE,
+				"--spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+				"--spring.jpa.properties.hibernate.session_factory.statement_inspector=" + SlowStatements.class.getName());
+		try {
+			long[] ids = seed(context.getBean(UserService.class));
+			int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+			return load(mode, port, ids, clients, seconds);
+		} finally {
+			context.close();
+		}
+	}
+
+	private static long[] seed(UserService userService) {
+		long[] ids = new long[USERS];
+		SlowStatements.enabled = false;
+		for (int i = 0; i < USERS; i++) {
+			UserForm form = new UserForm();
+			form.setFirstName("Load");
+			form.setLastName("Tester");
+			form.setEmail("load" + i + "@test.com");
+			form.setDateOfBirth(LocalDate.of(1990, 1, 1));
+			ids[i] = userService.createUser(form).getId();
+		}
+		SlowStatements.enabled = true;
+		return ids;
+	}
+
+	private static Result load(String mode, int port, long[] ids, int clients, int seconds)
+			throws InterruptedException {
+		long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+		long measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+		long[][] latencies = new long[clients][];
+		AtomicLong errors = new AtomicLong();
+		CountDownLatch done = new CountDownLatch(clients);
+		for (int i = 0; i < clients; i++) {
+			int client = i;
+			Thread thread = new Thread(null, () -> {
+				try {
+					latencies[client] = requests(port, ids, measureFrom, measureUntil, errors);
+				} finally {
+					done.countDown();
+				}
+			}, "load-client-" + i, CLIENT_STACK_SIZE);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		done.await();
+		long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+		return new Result(mode, clients, all.length / (double) seconds, percentile(all, 0.5),
+				percentile(all, 0.99), errors.get());
+	}
+
+	// latencies of the requests that started within the measured window
+	private static long[] requests(int port, long[] ids, long measureFrom, long measureUntil, AtomicLong errors) {
+		long[] latencies = new long[1024];
+		int count = 0;
+		long start;
+		while ((start = System.nanoTime()) < measureUntil) {
+			long id = ids[ThreadLocalRandom.current().nextInt(ids.length)];
+			boolean ok = get("http://localhost:" + port + "/users/" + id);
+			long latency = System.nanoTime() - start;
+			if (start < measureFrom) {
+				continue;
+			}
+			if (!ok) {
+				errors.incrementAndGet();
+				continue;
+			}
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, count * 2);
+			}
+			latencies[count++] = latency;
+		}
+		return Arrays.copyOf(latencies, count);
+	}
+
+	private static boolean get(String url) {
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) new URL(url).openConnection();
+			connection.setConnectTimeout(10_000);
+			connection.setReadTimeout(60_000);
+			int status = connection.getResponseCode();
+			try (InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+				while (body != null && body.read() != -1) {
+					// drained so the connection is kept alive
+				}
+			}
+			return status == 200;
+		} catch (IOException ex) {
+			if (connection != null) {
+				connection.disconnect();
+			}
+			return false;
+		}
+	}
+
+	private static double percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return Double.NaN;
+		}
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(0, index)] / 1_000_000.0;
+	}
+
+	public static class SlowStatements implements StatementInspector {
+
+		private static final long serialVersionUID = 1L;
+
+		private static volatile boolean enabled;
+		private static volatile int latencyMillis;
+
+		@Override
+		public String inspect(String sql) {
+			if (enabled) {
+				try {
+					Thread.sleep(latencyMillis);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return sql;
+		}
+	}
+
+	private static class Result {
+
+		private final String mode;
+		private final int clients;
+		private final double throughput;
+		private final double p50;
+		private final double p99;
+		private final long errors;
+
+		private Result(String mode, int clients, double throughput, double p50, double p99, long errors) {
+			this.mode = mode;
+			this.clients = clients;
+			this.throughput = throughput;
+			this.p50 = p50;
+			this.p99 = p99;
+			this.errors = errors;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-10s %8d %12.0f %10.1f %10.1f %8d", mode, clients, throughput, p50, p99, errors);
+		}
+	}
+
+}
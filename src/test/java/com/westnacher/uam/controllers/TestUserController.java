@@ -1,19 +1,28 @@
 package com.westnacher.uam.controllers;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.startsWith;
 import static org.hamcrest.Matchers.hasSize;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import java.io.OutputStream;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.Month;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -29,24 +38,37 @@ import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMock
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.westnacher.uam.bulkheads.Bulkhead;
+import com.westnacher.uam.bulkheads.Bulkheads;
+import com.westnacher.uam.deadlines.RequestDeadline;
+import com.westnacher.uam.dtos.UserBatchResultDto;
+import com.westnacher.uam.dtos.UserChangesDto;
 import com.westnacher.uam.dtos.UserDto;
+import com.westnacher.uam.dtos.UserLookupResultDto;
+import com.westnacher.uam.dtos.UserPageDto;
+import com.westnacher.uam.dtos.UserTombstoneDto;
+import com.westnacher.uam.dtos.UserValidatorsDto;
 import com.westnacher.uam.exceptions.AccountsManagerException;
 import com.westnacher.uam.forms.UserForm;
+import com.westnacher.uam.limits.AdaptiveConcurrencyLimiter;
 import com.westnacher.uam.models.User;
 import com.westnacher.uam.services.UserService;
 
 @RunWith(SpringRunner.class)
-@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT)
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, properties = "uam.outbox.relay.enabled=false")
 @AutoConfigureMockMvc
 public class TestUserController {
 	
@@ -56,6 +78,12 @@ public class TestUserController {
 	@MockBean
 	private UserService userService;
 	
+	@Autowired
+	private Bulkheads bulkheads;
+	
+	@Autowired
+	private AdaptiveConcurrencyLimiter limiter;
+	
 	private ObjectMapper mapper;
 	
 	@Before
@@ -74,14 +102,96 @@ public class TestUserController {
 		List<UserDto> users = new ArrayList();
 		Collections.addAll(users, UserDto.of(user1), UserDto.of(user2));
 		
-		given(this.userService.getAllUsers()).willReturn(users);
+		given(this.userService.getAllUsers(null, null)).willReturn(new UserPageDto(users, "Mg"));
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.get("/users")
+				.accept(MediaType.APPLICATION_JSON))
+				.andDo(print())
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.users", hasSize(2)))
+				.andExpect(jsonPath("$.nextCursor", is("Mg")));
+	}
+	
+	@Test
+	public void testGetAllUsers_WithCursor() throws Exception {
+		
+		List<UserDto> users = new ArrayList();
+		Collections.addAll(users, UserDto.of(createRandomUser()));
+		
+		given(this.userService.getAllUsers("Mg", 1)).willReturn(new UserPageDto(users, null));
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.get("/users")
+				.param("after", "Mg")
+				.param("limit", "1")
+				.accept(MediaType.APPLICATION_JSON))
+				.andDo(print())
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.users", hasSize(1)))
+				.andExpect(jsonPath("$.nextCursor").doesNotExist());
+	}
+	
+	@Test
+	public void testGetUsersByIds() throws Exception {
+		
+		UserDto user = UserDto.of(createRandomUser());
+		user.setId(RandomUtils.nextLong());
+		Long missingId = user.getId() + 1;
+		given(this.userService.getUsersByIds(Arrays.asList(user.getId(), missingId))).willReturn(
+				Arrays.asList(UserLookupResultDto.found(user.getId(), user), UserLookupResultDto.notFound(missingId)));
 		
 		mockMvc.perform(MockMvcRequestBuilders
 				.get("/users")
+				.param("ids", user.getId() + "," + missingId)
 				.accept(MediaType.APPLICATION_JSON))
 				.andDo(print())
 				.andExpect(status().isOk())
-				.andExpect(jsonPath("$", hasSize(2)));
+				.andExpect(jsonPath("$", hasSize(2)))
+				.andExpect(jsonPath("$[0].status", is("OK")))
+				.andExpect(jsonPath("$[0].user.email", is(user.getEmail())))
+				.andExpect(jsonPath("$[1].id", is(missingId)))
+				.andExpect(jsonPath("$[1].status", is("NOT_FOUND")));
+	}
+	
+	@Test
+	public void testLookupUsers() throws Exception {
+		
+		UserDto user = UserDto.of(createRandomUser());
+		user.setId(RandomUtils.nextLong());
+		given(this.userService.getUsersByIds(Arrays.asList(user.getId())))
+				.willReturn(Arrays.asList(UserLookupResultDto.found(user.getId(), user)));
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.post("/users/lookup")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(mapper.writeValueAsString(Arrays.asList(user.getId())))
+				.accept(MediaType.APPLICATION_JSON))
+				.andDo(print())
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$[0].id", is(user.getId())))
+				.andExpect(jsonPath("$[0].status", is("OK")));
+	}
+	
+	@Test
+	public void testExportUsers() throws Exception {
+		
+		doAnswer(invocation -> {
+			OutputStream out = invocation.getArgument(0);
+			out.write("{\"id\":1}\n{\"id\":2}\n".getBytes());
+			return null;
+		}).when(userService).exportUsers(Mockito.any());
+		
+		MvcResult result = mockMvc.perform(MockMvcRequestBuilders
+				.get("/users/export"))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+		
+		mockMvc.perform(asyncDispatch(result))
+				.andDo(print())
+				.andExpect(status().isOk())
+				.andExpect(content().contentType("application/x-ndjson"))
+				.andExpect(content().string("{\"id\":1}\n{\"id\":2}\n"));
 	}
 	
 	@Test
@@ -101,6 +211,102 @@ public class TestUserController {
 				.andExpect(MockMvcResultMatchers.jsonPath("$.id", is(userId)));
 	}
 	
+	@Test
+	public void testGetUserById_ETagFromVersion() throws Exception {
+		
+		Long userId = RandomUtils.nextLong();
+		UserDto user = UserDto.of(createRandomUser());
+		user.setId(userId);
+		user.setVersion(3L);
+		
+		given(this.userService.getUserById(userId)).willReturn(user);
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.get("/users/" + userId)
+				.accept(MediaType.APPLICATION_JSON))
+				.andDo(print())
+				.andExpect(status().isOk())
+				.andExpect(header().string(HttpHeaders.ETAG, "\"3\""))
+				.andExpect(jsonPath("$.version", is(3)));
+	}
+	
+	@Test
+	public void testGetUserById_IfNoneMatch_NotModified() throws Exception {
+		
+		Long userId = RandomUtils.nextLong();
+		given(this.userService.getUserValidators(userId))
+				.willReturn(new UserValidatorsDto(userId, 3L, LocalDateTime.now().minusDays(1)));
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.get("/users/" + userId)
+				.header(HttpHeaders.IF_NONE_MATCH, "\"3\"")
+				.accept(MediaType.APPLICATION_JSON))
+				.andDo(print())
+				.andExpect(status().isNotModified())
+				.andExpect(header().string(HttpHeaders.ETAG, "\"3\""))
+				.andExpect(content().string(""));
+		
+		Mockito.verify(userService, Mockito.never()).getUserById(Mockito.anyLong());
+	}
+	
+	@Test
+	public void testGetUserById_IfModifiedSince_NotModified() throws Exception {
+		
+		Long userId = RandomUtils.nextLong();
+		LocalDateTime modifiedAt = LocalDateTime.now().minusDays(1);
+		given(this.userService.getUserValidators(userId)).willReturn(new UserValidatorsDto(userId, 3L, modifiedAt));
+		
+		HttpHeaders headers = new HttpHeaders();
+		headers.setIfModifiedSince(modifiedAt.atZone(ZoneId.systemDefault()).plusSeconds(1).toInstant().toEpochMilli());
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.get("/users/" + userId)
+				.headers(headers)
+				.accept(MediaType.APPLICATION_JSON))
+				.andDo(print())
+				.andExpect(status().isNotModified());
+		
+		Mockito.verify(userService, Mockito.never()).getUserById(Mockito.anyLong());
+	}
+	
+	@Test
+	public void testGetUserById_IfNoneMatchStale_FullBody() throws Exception {
+		
+		Long userId = RandomUtils.nextLong();
+		UserDto user = UserDto.of(createRandomUser());
+		user.setId(userId);
+		user.setVersion(4L);
+		user.setModifiedAt(LocalDateTime.now());
+		given(this.userService.getUserValidators(userId))
+				.willReturn(new UserValidatorsDto(userId, 4L, user.getModifiedAt()));
+		given(this.userService.getUserById(userId)).willReturn(user);
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.get("/users/" + userId)
+				.header(HttpHeaders.IF_NONE_MATCH, "\"3\"")
+				.accept(MediaType.APPLICATION_JSON))
+				.andDo(print())
+				.andExpect(status().isOk())
+				.andExpect(header().string(HttpHeaders.ETAG, "\"4\""))
+				.andExpect(header().exists(HttpHeaders.LAST_MODIFIED))
+				.andExpect(jsonPath("$.version", is(4)));
+	}
+	
+	@Test
+	public void testGetAllUsers_IfNoneMatch_NotModified() throws Exception {
+		
+		given(this.userService.getAllUsersETag(null, null)).willReturn("abc");
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.get("/users")
+				.header(HttpHeaders.IF_NONE_MATCH, "\"abc\"")
+				.accept(MediaType.APPLICATION_JSON))
+				.andDo(print())
+				.andExpect(status().isNotModified());
+		
+		Mockito.verify(userService, Mockito.never()).getAllUsers(Mockito.any(), Mockito.any());
+	}
+	
 	@Test
 	public void testGetUserById_InvalidId_Fail() throws Exception {
 		
@@ -145,6 +351,141 @@ public class TestUserController {
 	}
 	
 	
+	@Test
+	public void testGetUserById_BulkheadFull_ServiceUnavailable() throws Exception {
+		UserDto user = UserDto.of(createRandomUser());
+		user.setId(RandomUtils.nextLong());
+		given(userService.getUserById(user.getId())).willReturn(user);
+		
+		Bulkhead pointReads = bulkheads.get(Bulkheads.Type.POINT_READS);
+		int entered = 0;
+		while (pointReads.tryEnter()) {
+			entered++;
+		}
+		try {
+			mockMvc.perform(MockMvcRequestBuilders
+					.get("/users/" + user.getId())
+					.accept(MediaType.APPLICATION_JSON))
+					.andDo(print())
+					.andExpect(status().isServiceUnavailable())
+					.andExpect(header().string(HttpHeaders.RETRY_AFTER, "1"))
+					.andExpect(jsonPath("$.status", is("SERVICE_UNAVAILABLE")));
+			Mockito.verify(userService, Mockito.never()).getUserById(user.getId());
+		} finally {
+			for (int i = 0; i < entered; i++) {
+				pointReads.exit();
+			}
+		}
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.get("/users/" + user.getId())
+				.accept(MediaType.APPLICATION_JSON))
+				.andExpect(status().isOk());
+		assertThat(pointReads.active()).isZero();
+	}
+	
+	@Test
+	public void testGetUserById_ConcurrencyLimitReached_ShedAtOnce() throws Exception {
+		List<AdaptiveConcurrencyLimiter.Permit> permits = new ArrayList<>();
+		AdaptiveConcurrencyLimiter.Permit permit;
+		while ((permit = limiter.tryAcquire()) != null) {
+			permits.add(permit);
+		}
+		long dropped = limiter.getDropped();
+		try {
+			mockMvc.perform(MockMvcRequestBuilders
+					.get("/users/1")
+					.accept(MediaType.APPLICATION_JSON))
+					.andDo(print())
+					.andExpect(status().isServiceUnavailable())
+					.andExpect(header().string(HttpHeaders.RETRY_AFTER, "1"))
+					.andExpect(jsonPath("$.status", is("SERVICE_UNAVAILABLE")));
+			Mockito.verify(userService, Mockito.never()).getUserById(Mockito.any());
+			assertThat(limiter.getDropped()).isEqualTo(dropped + 1);
+		} finally {
+			permits.forEach(AdaptiveConcurrencyLimiter.Permit::releaseWithoutSample);
+		}
+		assertThat(limiter.getInFlight()).isZero();
+	}
+	
+	@Test
+	public void testEditUser_StatementTimedOut_GatewayTimeout() throws Exception {
+		Long userId = RandomUtils.nextLong();
+		
+		given(userService.editUser(Mockito.eq(userId), Mockito.any()))
+				.willThrow(new QueryTimeoutException("Statement cancelled"));
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.put("/users/{userId}", userId)
+				.header(RequestDeadline.TIMEOUT_HEADER, "2000")
+				.accept(MediaType.APPLICATION_JSON)
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(mapper.writeValueAsString(createValidUserForm())))
+				.andDo(print())
+				.andExpect(status().isGatewayTimeout())
+				.andExpect(jsonPath("$.status", is("GATEWAY_TIMEOUT")));
+		assertThat(RequestDeadline.remainingMillis()).isNull();
+	}
+	
+	@Test
+	public void testGetUserById_DeadlinePassed_NotHandled() throws Exception {
+		mockMvc.perform(MockMvcRequestBuilders
+				.get("/users/1")
+				.header(RequestDeadline.TIMEOUT_HEADER, "0")
+				.accept(MediaType.APPLICATION_JSON))
+				.andDo(print())
+				.andExpect(status().isGatewayTimeout())
+				.andExpect(jsonPath("$.status", is("GATEWAY_TIMEOUT")));
+		Mockito.verify(userService, Mockito.never()).getUserById(Mockito.any());
+	}
+	
+	@Test
+	public void testGetUserById_InvalidDeadline_BadRequest() throws Exception {
+		mockMvc.perform(MockMvcRequestBuilders
+				.get("/users/1")
+				.header(RequestDeadline.TIMEOUT_HEADER, "soon")
+				.accept(MediaType.APPLICATION_JSON))
+				.andDo(print())
+				.andExpect(status().isBadRequest());
+		Mockito.verify(userService, Mockito.never()).getUserById(Mockito.any());
+	}
+	
+	@Test
+	public void testCreateUser_RetryWithIdempotencyKey_CreatedOnce() throws Exception {
+		UserForm form = createValidUserForm();
+		
+		String json = mapper.writeValueAsString(form);
+		
+		UserDto expected = UserDto.of(User.of(form));
+		expected.setId(RandomUtils.nextLong());
+		
+		given(userService.createUser(Mockito.any())).willReturn(expected);
+		
+		String key = RandomStringUtils.randomAlphanumeric(20);
+		for (int i = 0; i < 2; i++) {
+			mockMvc.perform(MockMvcRequestBuilders
+					.post("/users")
+					.header("Idempotency-Key", key)
+					.accept(MediaType.APPLICATION_JSON)
+					.contentType(MediaType.APPLICATION_JSON)
+					.content(json))
+					.andDo(print())
+					.andExpect(status().isCreated())
+					.andExpect(jsonPath("$.id", is(expected.getId())));
+		}
+		Mockito.verify(userService, Mockito.times(1)).createUser(Mockito.any());
+		
+		form.setFirstName(form.getFirstName() + "x");
+		mockMvc.perform(MockMvcRequestBuilders
+				.post("/users")
+				.header("Idempotency-Key", key)
+				.accept(MediaType.APPLICATION_JSON)
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(mapper.writeValueAsString(form)))
+				.andDo(print())
+				.andExpect(status().isUnprocessableEntity());
+	}
+		
 	@Test
 	public void testCreateUser_NullEmail_Fail() throws Exception {
 		UserForm form = createValidUserForm();
@@ -308,6 +649,88 @@ public class TestUserController {
 				.andExpect(jsonPath("$", containsString("DATEOFBIRTH : '' must not be null")));
 	}
 	
+	@Test
+	public void testCreateUsers_Batch() throws Exception {
+		UserForm valid = createValidUserForm();
+		UserForm invalid = createValidUserForm();
+		invalid.setEmail(null);
+		
+		String json = mapper.writeValueAsString(Arrays.asList(valid, invalid));
+		
+		UserDto created = UserDto.of(User.of(valid));
+		created.setId(RandomUtils.nextLong());
+		
+		given(userService.createUsers(Mockito.anyList())).willReturn(Arrays.asList(
+				UserBatchResultDto.created(0, created),
+				UserBatchResultDto.failed(1, HttpStatus.UNPROCESSABLE_ENTITY, "EMAIL : '' must not be null or blank")));
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.post("/users/batch")
+				.accept(MediaType.APPLICATION_JSON)
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(json))
+				.andDo(print())
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$", hasSize(2)))
+				.andExpect(jsonPath("$[0].status", is("CREATED")))
+				.andExpect(jsonPath("$[0].user.email", is(valid.getEmail())))
+				.andExpect(jsonPath("$[1].status", is("UNPROCESSABLE_ENTITY")))
+				.andExpect(jsonPath("$[1].errors[0]", containsString("EMAIL")));
+	}
+	
+	@Test
+	public void testPatchUser_MergePatch() throws Exception {
+		UserDto expected = UserDto.of(createRandomUser());
+		expected.setId(RandomUtils.nextLong());
+		expected.setVersion(3L);
+		
+		given(userService.patchUser(Mockito.eq(expected.getId()), Mockito.any(), Mockito.eq(2L))).willReturn(expected);
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.patch("/users/{userId}", expected.getId())
+				.header(HttpHeaders.IF_MATCH, "\"2\"")
+				.accept(MediaType.APPLICATION_JSON)
+				.contentType("application/merge-patch+json")
+				.content("{\"lastName\": \"" + expected.getLastName() + "\"}"))
+				.andDo(print())
+				.andExpect(status().isOk())
+				.andExpect(header().string(HttpHeaders.ETAG, "\"3\""))
+				.andExpect(jsonPath("$.lastName", is(expected.getLastName())));
+	}
+	
+	@Test
+	public void testUpsertUserByEmail_CreatedOrUpdated() throws Exception {
+		UserForm form = createValidUserForm();
+		
+		String json = mapper.writeValueAsString(form);
+		
+		UserDto expected = UserDto.of(User.of(form));
+		expected.setId(RandomUtils.nextLong());
+		expected.setVersion(0L);
+		
+		given(userService.upsertUserByEmail(Mockito.eq(form.getEmail()), Mockito.any()))
+				.willReturn(UserBatchResultDto.created(0, expected), UserBatchResultDto.updated(0, expected));
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.put("/users/by-email/{email}", form.getEmail())
+				.accept(MediaType.APPLICATION_JSON)
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(json))
+				.andDo(print())
+				.andExpect(status().isCreated())
+				.andExpect(header().string(HttpHeaders.ETAG, "\"0\""))
+				.andExpect(jsonPath("$.email", is(form.getEmail())));
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.put("/users/by-email/{email}", form.getEmail())
+				.accept(MediaType.APPLICATION_JSON)
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(json))
+				.andDo(print())
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.id", is(expected.getId())));
+	}
+	
 	@Test
 	public void testEditUser_Success() throws Exception {
 		UserForm form = createValidUserForm();
@@ -332,6 +755,63 @@ public class TestUserController {
 				.andExpect(MockMvcResultMatchers.jsonPath("$.dateOfBirth", startsWith(form.getDateOfBirth().toString())));				
 	}
 	
+	@Test
+	public void testEditUser_IfMatch_Success() throws Exception {
+		UserForm form = createValidUserForm();
+		Long userId = RandomUtils.nextLong();
+		
+		UserDto expected = UserDto.of(User.of(form));
+		expected.setId(userId);
+		expected.setVersion(4L);
+		
+		given(userService.editUser(Mockito.eq(userId), Mockito.any(), Mockito.eq(3L))).willReturn(expected);
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.put("/users/{userId}", userId)
+				.header(HttpHeaders.IF_MATCH, "\"3\"")
+				.accept(MediaType.APPLICATION_JSON)
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(mapper.writeValueAsString(form)))
+				.andDo(print())
+				.andExpect(status().isOk())
+				.andExpect(header().string(HttpHeaders.ETAG, "\"4\""))
+				.andExpect(jsonPath("$.email", is(form.getEmail())));
+	}
+	
+	@Test
+	public void testEditUser_IfMatchStale_PreconditionFailed() throws Exception {
+		UserForm form = createValidUserForm();
+		Long userId = RandomUtils.nextLong();
+		String message = RandomStringUtils.random(10, true, false);
+		
+		given(userService.editUser(Mockito.eq(userId), Mockito.any(), Mockito.eq(3L)))
+				.willThrow(new AccountsManagerException(message, HttpStatus.PRECONDITION_FAILED));
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.put("/users/{userId}", userId)
+				.header(HttpHeaders.IF_MATCH, "\"3\"")
+				.accept(MediaType.APPLICATION_JSON)
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(mapper.writeValueAsString(form)))
+				.andDo(print())
+				.andExpect(status().isPreconditionFailed())
+				.andExpect(MockMvcResultMatchers.jsonPath("$.message", is(message)));
+	}
+	
+	@Test
+	public void testEditUser_IfMatchWeak_PreconditionFailed() throws Exception {
+		UserForm form = createValidUserForm();
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.put("/users/{userId}", RandomUtils.nextLong())
+				.header(HttpHeaders.IF_MATCH, "W/\"3\"")
+				.accept(MediaType.APPLICATION_JSON)
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(mapper.writeValueAsString(form)))
+				.andDo(print())
+				.andExpect(status().isPreconditionFailed());
+	}
+	
 	@Test
 	public void testEditUser_InvalidEmail_Fail() throws Exception {
 		UserForm form = createValidUserForm();
@@ -468,6 +948,49 @@ public class TestUserController {
 					.andExpect(MockMvcResultMatchers.jsonPath("$.message", is(message)));
 	}
 	
+	@Test
+	public void testGetChanges_Success() throws Exception {
+		
+		UserDto user = UserDto.of(createRandomUser());
+		user.setId(RandomUtils.nextLong());
+		UserTombstoneDto deleted = new UserTombstoneDto(RandomUtils.nextLong(), LocalDateTime.now());
+		given(this.userService.getChanges("token", 10))
+				.willReturn(new UserChangesDto(Arrays.asList(user), Arrays.asList(deleted), "next", false));
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.get("/users/changes")
+				.param("since", "token")
+				.param("limit", "10")
+				.accept(MediaType.APPLICATION_JSON))
+				.andDo(print())
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.users[0].id", is(user.getId())))
+				.andExpect(jsonPath("$.deleted[0].id", is(deleted.getId())))
+				.andExpect(jsonPath("$.nextToken", is("next")))
+				.andExpect(jsonPath("$.hasMore", is(false)));
+	}
+	
+	@Test
+	public void testStreamUsers_StartsAsyncEventStream() throws Exception {
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.get("/users/stream")
+				.accept(MediaType.TEXT_EVENT_STREAM))
+				.andExpect(status().isOk())
+				.andExpect(request().asyncStarted());
+	}
+	
+	@Test
+	public void testStreamUsers_InvalidLastEventId_StillSubscribes() throws Exception {
+		
+		mockMvc.perform(MockMvcRequestBuilders
+				.get("/users/stream")
+				.header("Last-Event-ID", "abc")
+				.accept(MediaType.TEXT_EVENT_STREAM))
+				.andExpect(status().isOk())
+				.andExpect(request().asyncStarted());
+	}
+	
 	@Test
 	public void testDeleteUser_Success() throws Exception {
 		
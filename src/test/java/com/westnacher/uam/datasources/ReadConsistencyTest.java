@@ -0,0 +1,61 @@
+package com.westnacher.uam.datasources;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+
+import com.westnacher.uam.exceptions.AccountsManagerException;
+
+public class ReadConsistencyTest {
+
+	private ReadConsistency readConsistency = new ReadConsistency(Duration.ofSeconds(5), "secret");
+
+	@After
+	public void clear() {
+		readConsistency.clear();
+	}
+
+	@Test
+	public void testRequirePrimaryFor_FreshToken_Primary() {
+		readConsistency.requirePrimaryFor(readConsistency.issueToken());
+
+		assertThat(ReadConsistency.isPrimaryRequired()).isTrue();
+	}
+
+	@Test
+	public void testRequirePrimaryFor_ExpiredToken_Replica() {
+		readConsistency.requirePrimaryFor(readConsistency.issueToken(System.currentTimeMillis() - 60_000));
+
+		assertThat(ReadConsistency.isPrimaryRequired()).isFalse();
+	}
+
+	@Test
+	public void testRequirePrimaryFor_TokenOfOtherInstanceSameSecret_Primary() {
+		ReadConsistency other = new ReadConsistency(Duration.ofSeconds(5), "secret");
+
+		readConsistency.requirePrimaryFor(other.issueToken());
+
+		assertThat(ReadConsistency.isPrimaryRequired()).isTrue();
+	}
+
+	@Test
+	public void testRequirePrimaryFor_UnsignedOrForgedToken_BadRequest() {
+		long farFuture = System.currentTimeMillis() + Duration.ofDays(365).toMillis();
+		String signedNow = readConsistency.issueToken();
+		String forged = farFuture + signedNow.substring(signedNow.indexOf('.'));
+		String otherSecret = new ReadConsistency(Duration.ofSeconds(5), "other").issueToken(farFuture);
+
+		for (String token : new String[] { Long.toString(farFuture), forged, otherSecret, "yesterday", "1.2.3" }) {
+			assertThatThrownBy(() -> readConsistency.requirePrimaryFor(token))
+					.isInstanceOf(AccountsManagerException.class)
+					.extracting(ex -> ((AccountsManagerException) ex).getStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+		}
+		assertThat(ReadConsistency.isPrimaryRequired()).isFalse();
+	}
+
+}
@@ -0,0 +1,123 @@
+package com.westnacher.uam.datasources;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Arrays;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+public class ReplicaRoutingDataSourceTest {
+
+	private DataSource primary = dataSource();
+	private DataSource firstReplica = dataSource();
+	private DataSource secondReplica = dataSource();
+	private ReplicaRoutingDataSource routing = new ReplicaRoutingDataSource(primary,
+			Arrays.asList(firstReplica, secondReplica), Duration.ZERO);
+
+	@Before
+	public void setup() {
+		TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+	}
+
+	@After
+	public void cleanup() {
+		TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+		routing.close();
+	}
+
+	@Test
+	public void testGetConnection_ReadOnly_RoundRobinOverReplicas() throws Exception {
+		for (int i = 0; i < 4; i++) {
+			routing.getConnection();
+		}
+
+		Mockito.verify(firstReplica, Mockito.times(2)).getConnection();
+		Mockito.verify(secondReplica, Mockito.times(2)).getConnection();
+		Mockito.verify(primary, Mockito.never()).getConnection();
+	}
+
+	@Test
+	public void testGetConnection_ReadWrite_Primary() throws Exception {
+		TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+
+		routing.getConnection();
+
+		Mockito.verify(primary).getConnection();
+		Mockito.verifyNoInteractions(firstReplica, secondReplica);
+	}
+
+	@Test
+	public void testGetConnection_PrimaryRequired_Primary() throws Exception {
+		new ReadConsistency(Duration.ofSeconds(5), "").onPrimary(() -> {
+			try {
+				return routing.getConnection();
+			} catch (SQLException ex) {
+				throw new IllegalStateException(ex);
+			}
+		});
+
+		Mockito.verify(primary).getConnection();
+		Mockito.verifyNoInteractions(firstReplica, secondReplica);
+	}
+
+	@Test
+	public void testGetConnection_ReplicaRefuses_FallsBackAndSkipsUntilHealthy() throws Exception {
+		given(firstReplica.getConnection()).willThrow(new SQLException("Connection refused"));
+
+		routing.getConnection();
+		Mockito.verify(primary).getConnection();
+		assertThat(routing.healthyReplicaCount()).isEqualTo(1);
+
+		for (int i = 0; i < 3; i++) {
+			routing.getConnection();
+		}
+		Mockito.verify(firstReplica, Mockito.times(1)).getConnection();
+		Mockito.verify(secondReplica, Mockito.times(3)).getConnection();
+
+		Mockito.reset(firstReplica);
+		Connection connection = validConnection();
+		given(firstReplica.getConnection()).willReturn(connection);
+		routing.checkReplicas();
+		assertThat(routing.healthyReplicaCount()).isEqualTo(2);
+	}
+
+	@Test
+	public void testGetConnection_AllReplicasDown_Primary() throws Exception {
+		given(firstReplica.getConnection()).willThrow(new SQLException("Connection refused"));
+		given(secondReplica.getConnection()).willThrow(new SQLException("Connection refused"));
+		routing.checkReplicas();
+
+		routing.getConnection();
+
+		assertThat(routing.healthyReplicaCount()).isZero();
+		Mockito.verify(primary).getConnection();
+	}
+
+	private static DataSource dataSource() {
+		DataSource dataSource = Mockito.mock(DataSource.class);
+		try {
+			Connection connection = validConnection();
+			given(dataSource.getConnection()).willReturn(connection);
+		} catch (SQLException ex) {
+			throw new IllegalStateException(ex);
+		}
+		return dataSource;
+	}
+
+	private static Connection validConnection() throws SQLException {
+		Connection connection = Mockito.mock(Connection.class);
+		given(connection.isValid(Mockito.anyInt())).willReturn(true);
+		return connection;
+	}
+
+}
@@ -0,0 +1,213 @@
+package com.westnacher.uam.datasources;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.time.LocalDate;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.westnacher.uam.dtos.UserDto;
+import com.westnacher.uam.exceptions.AccountsManagerException;
+import com.westnacher.uam.forms.UserForm;
+import com.westnacher.uam.services.UserService;
+
+/**
+ * Two embedded databases stand in for the primary and a replica. Nothing
+ * replicates between them on its own, so every read served by the replica
+ * sees it as lagging until {@link #replicate()} copies the primary over.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+		"spring.datasource.url=" + ReplicaRoutingIntegrationTest.PRIMARY_URL,
+		"spring.datasource.driverClassName=org.h2.Driver",
+		"spring.datasource.username=sa",
+		"spring.datasource.password=",
+		"spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+		"uam.datasource.replica-urls=" + ReplicaRoutingIntegrationTest.REPLICA_URL,
+		"uam.datasource.replica-health-interval=0s",
+		"uam.bloom.emails.enabled=false",
+		"uam.outbox.relay.enabled=false" })
+@AutoConfigureMockMvc
+public class ReplicaRoutingIntegrationTest {
+
+	static final String PRIMARY_URL = "jdbc:h2:mem:uam-primary;MODE=MySQL;DB_CLOSE_DELAY=-1";
+	static final String REPLICA_URL = "jdbc:h2:mem:uam-replica;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+	private JdbcTemplate primary = new JdbcTemplate(new DriverManagerDataSource(PRIMARY_URL, "sa", ""));
+	private JdbcTemplate replica = new JdbcTemplate(new DriverManagerDataSource(REPLICA_URL, "sa", ""));
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Autowired
+	private UserService userService;
+
+	@Autowired
+	private ReadConsistency readConsistency;
+
+	@Before
+	public void setup() {
+		replicate();
+	}
+
+	@Test
+	public void testGetUserById_LaggingReplica_NotFound() {
+		UserDto created = userService.createUser(createValidUserForm());
+
+		try {
+			userService.getUserById(created.getId());
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+			assertThat(primary.queryForObject("SELECT COUNT(*) FROM \"user\" WHERE id = ?", Long.class,
+					created.getId())).isEqualTo(1);
+			return;
+		}
+		Assertions.fail();
+	}
+
+	@Test
+	public void testGetUserById_ReplicaCaughtUp_Found() {
+		UserDto created = userService.createUser(createValidUserForm());
+		replicate();
+
+		assertThat(userService.getUserById(created.getId()).getEmail()).isEqualTo(created.getEmail());
+	}
+
+	@Test
+	public void testGetUserById_FreshToken_ReadsPrimary() {
+		UserDto created = userService.createUser(createValidUserForm());
+
+		readConsistency.requirePrimaryFor(readConsistency.issueToken());
+		try {
+			assertThat(userService.getUserById(created.getId()).getEmail()).isEqualTo(created.getEmail());
+		} finally {
+			readConsistency.clear();
+		}
+	}
+
+	@Test
+	public void testGetUserById_ExpiredToken_ReadsReplica() {
+		UserDto created = userService.createUser(createValidUserForm());
+
+		readConsistency.requirePrimaryFor(readConsistency.issueToken(System.currentTimeMillis() - 60_000));
+		try {
+			userService.getUserById(created.getId());
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+			return;
+		} finally {
+			readConsistency.clear();
+		}
+		Assertions.fail();
+	}
+
+	@Test
+	public void testGetAllUsers_LaggingReplica_PageMissesNewUser() {
+		UserDto created = userService.createUser(createValidUserForm());
+
+		assertThat(userService.getAllUsers(null, UserService.MAX_PAGE_SIZE).getUsers())
+				.extracting(UserDto::getId).doesNotContain(created.getId());
+		assertThat(userService.getAllUsersETag(null, UserService.MAX_PAGE_SIZE))
+				.isEqualTo(userService.getAllUsers(null, UserService.MAX_PAGE_SIZE).getETag());
+
+		replicate();
+
+		assertThat(userService.getAllUsers(null, UserService.MAX_PAGE_SIZE).getUsers())
+				.extracting(UserDto::getId).contains(created.getId());
+	}
+
+	@Test
+	public void testGetAllUsers_FreshToken_ReadsPrimary() {
+		UserDto created = userService.createUser(createValidUserForm());
+
+		readConsistency.requirePrimaryFor(readConsistency.issueToken());
+		try {
+			assertThat(userService.getAllUsers(null, UserService.MAX_PAGE_SIZE).getUsers())
+					.extracting(UserDto::getId).contains(created.getId());
+		} finally {
+			readConsistency.clear();
+		}
+	}
+
+	@Test
+	public void testGetUserById_AfterEdit_CacheFilledFromPrimary() {
+		UserDto created = userService.createUser(createValidUserForm());
+		replicate();
+		userService.getUserById(created.getId());
+
+		UserDto edited = userService.editUser(created.getId(), createValidUserForm());
+
+		assertThat(userService.getUserById(created.getId()).getEmail()).isEqualTo(edited.getEmail());
+		assertThat(replica.queryForObject("SELECT email FROM \"user\" WHERE id = ?", String.class,
+				created.getId())).isEqualTo(created.getEmail());
+	}
+
+	@Test
+	public void testConsistencyToken_ReadYourWritesOverHttp() throws Exception {
+		String token = mockMvc.perform(MockMvcRequestBuilders
+				.post("/users")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(objectMapper.writeValueAsString(createValidUserForm())))
+				.andExpect(status().isCreated())
+				.andExpect(header().exists(ReadConsistency.TOKEN_HEADER))
+				.andReturn().getResponse().getHeader(ReadConsistency.TOKEN_HEADER);
+		Long userId = primary.queryForObject("SELECT MAX(id) FROM \"user\"", Long.class);
+
+		mockMvc.perform(MockMvcRequestBuilders
+				.get("/users/{userId}", userId))
+				.andExpect(status().isBadRequest());
+
+		mockMvc.perform(MockMvcRequestBuilders
+				.get("/users/{userId}", userId)
+				.header(ReadConsistency.TOKEN_HEADER, token))
+				.andExpect(status().isOk());
+	}
+
+	@Test
+	public void testConsistencyToken_Invalid_BadRequest() throws Exception {
+		mockMvc.perform(MockMvcRequestBuilders
+				.get("/users/{userId}", 1L)
+				.header(ReadConsistency.TOKEN_HEADER, "yesterday"))
+				.andExpect(status().isBadRequest());
+	}
+
+	// copies schema and rows of the primary over whatever the replica had
+	private void replicate() {
+		replica.execute("DROP ALL OBJECTS");
+		for (String statement : primary.queryForList("SCRIPT", String.class)) {
+			if (!statement.startsWith("CREATE USER")) {
+				replica.execute(statement);
+			}
+		}
+	}
+
+	private static UserForm createValidUserForm() {
+		UserForm form = new UserForm();
+		form.setFirstName("Replica");
+		form.setLastName("Reader");
+		form.setEmail(RandomStringUtils.random(8, true, true) + "@test.com");
+		form.setDateOfBirth(LocalDate.of(1990, 1, 1));
+		return form;
+	}
+
+}
@@ -0,0 +1,115 @@
+package com.westnacher.uam.deadlines;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.westnacher.uam.bulkheads.Bulkheads;
+import com.westnacher.uam.dtos.UserChangeEventDto.Type;
+import com.westnacher.uam.exceptions.AccountsManagerException;
+import com.westnacher.uam.models.OutboxEvent;
+import com.westnacher.uam.repositories.OutboxEventRepository;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "uam.outbox.relay.enabled=false")
+public class DeadlineJpaTransactionManagerTest {
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private RequestDeadline requestDeadline;
+
+	@Autowired
+	private OutboxEventRepository outboxEventRepository;
+
+	@After
+	public void clear() {
+		requestDeadline.clear();
+	}
+
+	@Test
+	public void testTransactionManager_AppliesDeadlines() {
+		assertThat(transactionManager).isInstanceOf(DeadlineJpaTransactionManager.class);
+	}
+
+	@Test
+	public void testBegin_Deadline_RemainingSecondsAsTimeout() {
+		requestDeadline.start("2500", Bulkheads.Type.BULK);
+
+		assertThat(timeoutOf(new TransactionTemplate(transactionManager))).isEqualTo(3);
+	}
+
+	@Test
+	public void testBegin_ShorterTransactionTimeout_Kept() {
+		requestDeadline.start("10000", Bulkheads.Type.BULK);
+		TransactionTemplate template = new TransactionTemplate(transactionManager);
+		template.setTimeout(2);
+
+		assertThat(timeoutOf(template)).isEqualTo(2);
+	}
+
+	@Test
+	public void testBegin_NoDeadline_NoTimeout() {
+		assertThat(timeoutOf(new TransactionTemplate(transactionManager))).isEqualTo(-1);
+	}
+
+	@Test
+	public void testBegin_DeadlinePassed_NotBegun() {
+		requestDeadline.start("0", Bulkheads.Type.BULK);
+		try {
+			new TransactionTemplate(transactionManager).execute(status -> Assertions.fail());
+			Assertions.fail();
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.GATEWAY_TIMEOUT);
+		}
+	}
+
+	@Test
+	public void testCommit_DeadlinePassed_RolledBack() {
+		long before = outboxEventRepository.count();
+		requestDeadline.start("1500", Bulkheads.Type.WRITES);
+		try {
+			new TransactionTemplate(transactionManager).execute(status -> {
+				outboxEventRepository.saveAndFlush(new OutboxEvent(Type.CREATED, 1L, 0L, "{\"id\":1}"));
+				sleep(1600);
+				return null;
+			});
+			Assertions.fail();
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.GATEWAY_TIMEOUT);
+		}
+		requestDeadline.clear();
+
+		assertThat(outboxEventRepository.count()).isEqualTo(before);
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Hibernate sets what is left of this timeout as query timeout of every statement
+	private int timeoutOf(TransactionTemplate template) {
+		return template.execute(status -> entityManager.unwrap(Session.class).getTransaction().getTimeout());
+	}
+
+}
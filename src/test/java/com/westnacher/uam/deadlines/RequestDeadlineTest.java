@@ -0,0 +1,102 @@
+package com.westnacher.uam.deadlines;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+
+import com.westnacher.uam.bulkheads.Bulkheads;
+import com.westnacher.uam.exceptions.AccountsManagerException;
+
+public class RequestDeadlineTest {
+
+	private RequestDeadline requestDeadline = new RequestDeadline(Duration.ofSeconds(2), Duration.ofSeconds(5),
+			Duration.ofSeconds(30));
+
+	@After
+	public void clear() {
+		requestDeadline.clear();
+	}
+
+	@Test
+	public void testStart_NoHeader_EndpointDefault() {
+		requestDeadline.start(null, Bulkheads.Type.WRITES);
+
+		assertThat(RequestDeadline.remainingMillis()).isBetween(4_000L, 5_000L);
+		assertThat(RequestDeadline.isExpired()).isFalse();
+	}
+
+	@Test
+	public void testStart_Header_OverridesDefault() {
+		requestDeadline.start("250", Bulkheads.Type.BULK);
+
+		assertThat(RequestDeadline.remainingMillis()).isBetween(0L, 250L);
+	}
+
+	@Test
+	public void testStart_HeaderAboveDefault_Clamped() {
+		requestDeadline.start("60000", Bulkheads.Type.POINT_READS);
+
+		assertThat(RequestDeadline.remainingMillis()).isBetween(0L, 2_000L);
+	}
+
+	@Test
+	public void testStart_HugeHeader_Clamped() {
+		requestDeadline.start(String.valueOf(Long.MAX_VALUE), Bulkheads.Type.BULK);
+
+		assertThat(RequestDeadline.remainingMillis()).isBetween(29_000L, 30_000L);
+	}
+
+	@Test
+	public void testStart_HeaderBeyondLong_BadRequest() {
+		assertThatThrownBy(() -> requestDeadline.start("99999999999999999999", Bulkheads.Type.BULK))
+				.isInstanceOf(AccountsManagerException.class)
+				.extracting(ex -> ((AccountsManagerException) ex).getStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+	}
+
+	@Test
+	public void testStart_HeaderWithoutDefault_NoDeadline() {
+		requestDeadline.start("1000", null);
+
+		assertThat(RequestDeadline.remainingMillis()).isNull();
+	}
+
+	@Test
+	public void testStart_NoHeaderNorDefault_NoDeadline() {
+		requestDeadline.start(null, null);
+
+		assertThat(RequestDeadline.remainingMillis()).isNull();
+		assertThat(RequestDeadline.isExpired()).isFalse();
+	}
+
+	@Test
+	public void testStart_ZeroOrNegative_Expired() {
+		requestDeadline.start("0", Bulkheads.Type.POINT_READS);
+		assertThat(RequestDeadline.isExpired()).isTrue();
+
+		requestDeadline.start("-10", Bulkheads.Type.POINT_READS);
+		assertThat(RequestDeadline.isExpired()).isTrue();
+		assertThat(RequestDeadline.expired().getStatus()).isEqualTo(HttpStatus.GATEWAY_TIMEOUT);
+	}
+
+	@Test
+	public void testStart_InvalidHeader_BadRequest() {
+		assertThatThrownBy(() -> requestDeadline.start("2s", Bulkheads.Type.WRITES))
+				.isInstanceOf(AccountsManagerException.class)
+				.extracting(ex -> ((AccountsManagerException) ex).getStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+		assertThat(RequestDeadline.remainingMillis()).isNull();
+	}
+
+	@Test
+	public void testClear_NoDeadline() {
+		requestDeadline.start("1000", null);
+		requestDeadline.clear();
+
+		assertThat(RequestDeadline.remainingMillis()).isNull();
+	}
+
+}
@@ -0,0 +1,222 @@
+package com.westnacher.uam.events;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.westnacher.uam.dtos.UserChangeEventDto;
+import com.westnacher.uam.dtos.UserChangeEventDto.Type;
+
+public class UserChangeFeedTest {
+
+	private UserChangeFeed feed = new UserChangeFeed(3, 100, Duration.ofMinutes(1), Duration.ZERO, 2,
+			Duration.ZERO);
+
+	@After
+	public void cleanup() {
+		feed.shutdown();
+	}
+
+	@Test
+	public void testSubscribe_ReceivesLiveEventsInOrder() throws Exception {
+		CapturingEmitter subscriber = subscribe(null);
+
+		feed.publish(Type.CREATED, 1L, 0L, null);
+		feed.publish(Type.UPDATED, 1L, 1L, null);
+		feed.publish(Type.DELETED, 1L, null, null);
+
+		List<UserChangeEventDto> events = subscriber.awaitEvents(3);
+		assertThat(events).extracting(UserChangeEventDto::getType).containsExactly(Type.CREATED, Type.UPDATED,
+				Type.DELETED);
+		assertThat(events.get(1).getSequence()).isEqualTo(events.get(0).getSequence() + 1);
+		assertThat(events.get(2).getSequence()).isEqualTo(events.get(1).getSequence() + 1);
+	}
+
+	@Test
+	public void testSubscribe_LastEventId_ReplaysMissedEventsThenLive() throws Exception {
+		CapturingEmitter first = subscribe(null);
+		feed.publish(Type.CREATED, 1L, 0L, null);
+		feed.publish(Type.CREATED, 2L, 0L, null);
+		feed.publish(Type.CREATED, 3L, 0L, null);
+		long lastSeen = first.awaitEvents(3).get(0).getSequence();
+
+		CapturingEmitter resumed = subscribe(lastSeen);
+		feed.publish(Type.CREATED, 4L, 0L, null);
+
+		assertThat(resumed.awaitEvents(3)).extracting(UserChangeEventDto::getUserId).containsExactly(2L, 3L, 4L);
+		assertThat(resumed.resets).isEmpty();
+	}
+
+	@Test
+	public void testSubscribe_LastEventIdNoLongerBuffered_Reset() throws Exception {
+		CapturingEmitter first = subscribe(null);
+		for (long userId = 1; userId <= 5; userId++) {
+			feed.publish(Type.CREATED, userId, 0L, null);
+		}
+		long lastSeen = first.awaitEvents(5).get(0).getSequence();
+
+		CapturingEmitter resumed = subscribe(lastSeen);
+		feed.publish(Type.CREATED, 6L, 0L, null);
+
+		assertThat(resumed.awaitEvents(1)).extracting(UserChangeEventDto::getUserId).containsExactly(6L);
+		assertThat(resumed.resets).hasSize(1);
+	}
+
+	@Test
+	public void testSubscribe_LastEventIdFromBeforeRestart_Reset() throws Exception {
+		CapturingEmitter resumed = subscribe(1L);
+		feed.publish(Type.CREATED, 1L, 0L, null);
+
+		resumed.awaitEvents(1);
+		assertThat(resumed.resets).hasSize(1);
+	}
+
+	@Test
+	public void testSubscribe_InvalidLastEventId_Reset() throws Exception {
+		SseEmitter emitter = feed.subscribe("not-a-sequence");
+		assertThat(emitter.getTimeout()).isEqualTo(Duration.ofMinutes(1).toMillis());
+
+		CapturingEmitter resumed = new CapturingEmitter();
+		feed.subscribe(Long.MIN_VALUE, resumed);
+		feed.publish(Type.CREATED, 1L, 0L, null);
+
+		resumed.awaitEvents(1);
+		assertThat(resumed.resets).hasSize(1);
+	}
+
+	@Test
+	public void testPublish_FailingSubscriberIsDropped() throws Exception {
+		CapturingEmitter failing = subscribe(null);
+		failing.fail = true;
+		CapturingEmitter healthy = subscribe(null);
+
+		feed.publish(Type.CREATED, 1L, 0L, null);
+
+		healthy.awaitEvents(1);
+		// the sender of the failing one may not be done yet
+		awaitSubscribers(1);
+	}
+
+	@Test
+	public void testPublish_SubscriberNotReading_OthersUnaffectedAndItIsDropped() throws Exception {
+		feed.shutdown();
+		feed = new UserChangeFeed(3, 3, Duration.ofMinutes(1), Duration.ZERO, 2, Duration.ZERO);
+		CapturingEmitter stalled = subscribe(null);
+		stalled.stall = new CountDownLatch(1);
+		CapturingEmitter healthy = subscribe(null);
+		try {
+			// one at a time, so that only the queue of the stalled subscriber fills up
+			for (long userId = 1; userId <= 10; userId++) {
+				feed.publish(Type.CREATED, userId, 0L, null);
+				healthy.awaitEvents((int) userId);
+			}
+
+			assertThat(healthy.awaitEvents(10)).extracting(UserChangeEventDto::getUserId).startsWith(1L).endsWith(10L);
+			awaitSubscribers(1);
+		} finally {
+			stalled.stall.countDown();
+		}
+		// the send it was stuck in finishes, then it is completed without the events it fell behind on
+		for (int i = 0; i < 100 && !stalled.completed; i++) {
+			Thread.sleep(10);
+		}
+		assertThat(stalled.completed).isTrue();
+		assertThat(stalled.events).hasSize(1);
+	}
+
+	@Test
+	public void testPublish_SubscriberStuckInSend_DroppedAndSenderFreed() throws Exception {
+		feed.shutdown();
+		feed = new UserChangeFeed(3, 100, Duration.ofMinutes(1), Duration.ZERO, 1, Duration.ofMillis(100));
+		CapturingEmitter stalled = subscribe(null);
+		stalled.stall = new CountDownLatch(1);
+		CapturingEmitter healthy = subscribe(null);
+
+		// the only sender is stuck in the stalled subscriber until the send timeout frees it
+		for (long userId = 1; userId <= 3; userId++) {
+			feed.publish(Type.CREATED, userId, 0L, null);
+		}
+
+		assertThat(healthy.awaitEvents(3)).extracting(UserChangeEventDto::getUserId).containsExactly(1L, 2L, 3L);
+		awaitSubscribers(1);
+		for (int i = 0; i < 100 && !stalled.completed; i++) {
+			Thread.sleep(10);
+		}
+		assertThat(stalled.completed).isTrue();
+		assertThat(stalled.events).hasSize(1);
+	}
+
+	private void awaitSubscribers(int count) throws InterruptedException {
+		for (int i = 0; i < 100 && feed.subscriberCount() != count; i++) {
+			Thread.sleep(10);
+		}
+		assertThat(feed.subscriberCount()).isEqualTo(count);
+	}
+
+	private CapturingEmitter subscribe(Long lastEventId) throws InterruptedException {
+		CapturingEmitter emitter = new CapturingEmitter();
+		int subscribers = feed.subscriberCount();
+		feed.subscribe(lastEventId, emitter);
+		for (int i = 0; i < 100 && feed.subscriberCount() == subscribers; i++) {
+			Thread.sleep(10);
+		}
+		return emitter;
+	}
+
+	private static class CapturingEmitter extends SseEmitter {
+
+		private final List<UserChangeEventDto> events = new CopyOnWriteArrayList<>();
+		private final List<String> resets = new CopyOnWriteArrayList<>();
+		private volatile boolean fail;
+		private volatile CountDownLatch stall;
+		private volatile boolean completed;
+
+		@Override
+		public void send(SseEventBuilder builder) throws IOException {
+			if (fail) {
+				throw new IOException("Broken pipe");
+			}
+			if (stall != null) {
+				try {
+					stall.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			for (DataWithMediaType part : builder.build()) {
+				if (part.getData() instanceof UserChangeEventDto) {
+					events.add((UserChangeEventDto) part.getData());
+				} else if (part.getData().toString().contains("event:" + UserChangeFeed.RESET_EVENT)) {
+					resets.add(part.getData().toString());
+				}
+			}
+		}
+
+		@Override
+		public void complete() {
+			completed = true;
+			super.complete();
+		}
+
+		private List<UserChangeEventDto> awaitEvents(int count) throws InterruptedException {
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (events.size() < count && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertThat(events).hasSize(count);
+			return new ArrayList<>(events);
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+package com.westnacher.uam.generators;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class KSortedIdGeneratorTest {
+
+	private static final int THREADS = 16;
+	private static final int IDS_PER_THREAD = 100_000;
+
+	@Test
+	public void testNextId_ConcurrentThreads_NoDuplicatesAndMonotonicPerThread() throws Exception {
+		KSortedIdGenerator generator = new KSortedIdGenerator(7);
+		Set<Long> ids = ConcurrentHashMap.newKeySet();
+		CountDownLatch start = new CountDownLatch(1);
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<Boolean>> monotonic = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			monotonic.add(executor.submit(() -> {
+				start.await();
+				long previous = Long.MIN_VALUE;
+				boolean increasing = true;
+				for (int i = 0; i < IDS_PER_THREAD; i++) {
+					long id = generator.nextId();
+					increasing &= id > previous;
+					previous = id;
+					ids.add(id);
+				}
+				return increasing;
+			}));
+		}
+		start.countDown();
+		for (Future<Boolean> result : monotonic) {
+			assertThat(result.get(1, TimeUnit.MINUTES)).isTrue();
+		}
+		executor.shutdown();
+
+		assertThat(ids).hasSize(THREADS * IDS_PER_THREAD);
+		assertThat(ids).allMatch(id -> id > 0 && KSortedIdGenerator.nodeIdOf(id) == 7);
+	}
+
+	@Test
+	public void testNextId_EncodesTimestampAndNode() {
+		long now = System.currentTimeMillis();
+		KSortedIdGenerator generator = new KSortedIdGenerator(KSortedIdGenerator.MAX_NODE_ID, () -> now);
+
+		long id = generator.nextId();
+
+		assertThat(KSortedIdGenerator.timestampOf(id)).isEqualTo(now);
+		assertThat(KSortedIdGenerator.nodeIdOf(id)).isEqualTo(KSortedIdGenerator.MAX_NODE_ID);
+	}
+
+	@Test
+	public void testNextId_ClockGoesBackwards_StaysMonotonic() {
+		AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+		KSortedIdGenerator generator = new KSortedIdGenerator(1, clock::get);
+
+		long first = generator.nextId();
+		clock.addAndGet(-10_000);
+		long second = generator.nextId();
+
+		assertThat(second).isGreaterThan(first);
+	}
+
+	@Test
+	public void testNextId_SequenceOverflow_StaysMonotonic() {
+		long now = System.currentTimeMillis();
+		KSortedIdGenerator generator = new KSortedIdGenerator(1, () -> now);
+
+		long previous = generator.nextId();
+		for (int i = 0; i < 3 * (1 << KSortedIdGenerator.SEQUENCE_BITS); i++) {
+			long id = generator.nextId();
+			assertThat(id).isGreaterThan(previous);
+			previous = id;
+		}
+	}
+
+	@Test
+	public void testConstructor_InvalidNodeId_Fail() {
+		assertThatThrownBy(() -> new KSortedIdGenerator(KSortedIdGenerator.MAX_NODE_ID + 1))
+				.isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> new KSortedIdGenerator(-1)).isInstanceOf(IllegalArgumentException.class);
+	}
+
+}
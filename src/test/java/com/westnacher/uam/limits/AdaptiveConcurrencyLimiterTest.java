@@ -0,0 +1,246 @@
+package com.westnacher.uam.limits;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+	private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private long now;
+
+	@Test
+	public void testTryAcquire_BeyondLimit_Shed() {
+		AdaptiveConcurrencyLimiter limiter = limiter(2, 1, 10);
+
+		AdaptiveConcurrencyLimiter.Permit first = limiter.tryAcquire();
+		AdaptiveConcurrencyLimiter.Permit second = limiter.tryAcquire();
+
+		assertThat(first).isNotNull();
+		assertThat(second).isNotNull();
+		assertThat(limiter.tryAcquire()).isNull();
+		assertThat(limiter.getInFlight()).isEqualTo(2);
+		assertThat(limiter.getDropped()).isEqualTo(1);
+		assertThat(meterRegistry.get("uam.limiter.dropped").counter().count()).isEqualTo(1);
+
+		first.release();
+		first.release();
+		assertThat(limiter.getInFlight()).isEqualTo(1);
+		assertThat(limiter.tryAcquire()).isNotNull();
+	}
+
+	@Test
+	public void testRelease_SteadyLatency_LimitGrows() {
+		AdaptiveConcurrencyLimiter limiter = limiter(10, 1, 100);
+
+		for (int window = 0; window < 10; window++) {
+			completeWindow(limiter, 10, 10 * MILLI);
+		}
+
+		assertThat(limiter.getLimit()).isGreaterThan(10);
+		assertThat(meterRegistry.get("uam.limiter.limit").gauge().value()).isEqualTo(limiter.getLimit());
+	}
+
+	@Test
+	public void testRelease_LatencyBeyondTolerance_LimitShrinks() {
+		AdaptiveConcurrencyLimiter limiter = limiter(20, 1, 100);
+		for (int window = 0; window < 10; window++) {
+			completeWindow(limiter, 20, 10 * MILLI);
+		}
+		int settled = limiter.getLimit();
+
+		for (int window = 0; window < 5; window++) {
+			completeWindow(limiter, limiter.getLimit(), 100 * MILLI);
+		}
+
+		assertThat(limiter.getLimit()).isLessThan(settled);
+	}
+
+	@Test
+	public void testRelease_LimitNotUsed_Unchanged() {
+		AdaptiveConcurrencyLimiter limiter = limiter(20, 1, 100);
+
+		for (int window = 0; window < 10; window++) {
+			completeWindow(limiter, 2, 10 * MILLI);
+		}
+
+		assertThat(limiter.getLimit()).isEqualTo(20);
+	}
+
+	@Test
+	public void testReleaseWithoutSample_LimitUnchanged() {
+		AdaptiveConcurrencyLimiter limiter = limiter(10, 1, 100);
+
+		for (int i = 0; i < 100; i++) {
+			AdaptiveConcurrencyLimiter.Permit permit = limiter.tryAcquire();
+			now += 1000 * MILLI;
+			permit.releaseWithoutSample();
+		}
+
+		assertThat(limiter.getLimit()).isEqualTo(10);
+		assertThat(limiter.getInFlight()).isZero();
+	}
+
+	@Test
+	public void testNew_InvalidLimits_Fail() {
+		assertThatThrownBy(() -> limiter(10, 0, 100)).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> limiter(10, 20, 100)).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> limiter(10, 1, 5)).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	// twice the requests the database can serve: unlimited, the latency grows for as long as the overload lasts
+	@Test
+	public void testSimulation_Overload_ExcessShedLatencyBounded() {
+		SlowedRepository repository = new SlowedRepository(10, 10 * MILLI);
+
+		Simulation unlimited = new Simulation(limiter(1_000_000, 1_000_000, 1_000_000), repository);
+		unlimited.run(2, 30_000);
+		Simulation limited = new Simulation(limiter(20, 5, 200), repository);
+		limited.run(2, 30_000);
+
+		assertThat(unlimited.p99Millis()).isGreaterThan(5_000);
+		assertThat(limited.p99Millis()).isLessThan(50);
+		assertThat(limited.limiter.getDropped()).isGreaterThan(0);
+		// still serves about as much as the database can, 1000 requests a second
+		assertThat(limited.completed()).isGreaterThan(30_000 * 8 / 10);
+		assertThat(limited.limiter.getLimit()).isBetween(10, 50);
+	}
+
+	// the database slows down tenfold for 20 seconds while the load stays what it handled before
+	@Test
+	public void testSimulation_Brownout_LimitShrinksAndRecovers() {
+		SlowedRepository repository = new SlowedRepository(10, 10 * MILLI);
+		Simulation simulation = new Simulation(limiter(20, 5, 200), repository);
+
+		simulation.run(1, 20_000);
+		int healthyLimit = simulation.limiter.getLimit();
+		long shedBefore = simulation.limiter.getDropped();
+		simulation.latencies.clear();
+
+		repository.statementNanos = 100 * MILLI;
+		simulation.run(1, 20_000);
+		int brownoutLimit = simulation.limiter.getLimit();
+		double brownoutP99 = simulation.p99Millis();
+		long shedInBrownout = simulation.limiter.getDropped() - shedBefore;
+
+		repository.statementNanos = 10 * MILLI;
+		simulation.run(1, 20_000);
+		simulation.latencies.clear();
+		long shedAfter = simulation.limiter.getDropped();
+		simulation.run(1, 10_000);
+
+		assertThat(brownoutLimit).isLessThan(healthyLimit);
+		assertThat(shedInBrownout).isGreaterThan(10_000);
+		// unlimited, requests would pile up to tens of seconds
+		assertThat(brownoutP99).isLessThan(500);
+		assertThat(simulation.limiter.getLimit()).isGreaterThanOrEqualTo(healthyLimit);
+		assertThat(simulation.limiter.getDropped() - shedAfter).isLessThan(100);
+		assertThat(simulation.p99Millis()).isLessThan(20);
+	}
+
+	private AdaptiveConcurrencyLimiter limiter(int initialLimit, int minLimit, int maxLimit) {
+		return new AdaptiveConcurrencyLimiter(true, initialLimit, minLimit, maxLimit, 1.5, 10, meterRegistry,
+				() -> now);
+	}
+
+	private void completeWindow(AdaptiveConcurrencyLimiter limiter, int concurrency, long latency) {
+		List<AdaptiveConcurrencyLimiter.Permit> permits = new ArrayList<>();
+		for (int i = 0; i < concurrency; i++) {
+			AdaptiveConcurrencyLimiter.Permit permit = limiter.tryAcquire();
+			if (permit != null) {
+				permits.add(permit);
+			}
+		}
+		now += latency;
+		permits.forEach(AdaptiveConcurrencyLimiter.Permit::release);
+	}
+
+	// stands in for UserRepository on a database with a fixed number of connections: a statement takes
+	// statementNanos, and proportionally longer while more statements than connections share them
+	private static class SlowedRepository {
+
+		private final int connections;
+		private long statementNanos;
+
+		private SlowedRepository(int connections, long statementNanos) {
+			this.connections = connections;
+			this.statementNanos = statementNanos;
+		}
+
+		private long latency(int inFlight) {
+			return (long) (statementNanos * Math.max(1.0, (double) inFlight / connections));
+		}
+	}
+
+	private static class Running {
+
+		private final long endNanos;
+		private final AdaptiveConcurrencyLimiter.Permit permit;
+		private final long latency;
+
+		private Running(long endNanos, AdaptiveConcurrencyLimiter.Permit permit, long latency) {
+			this.endNanos = endNanos;
+			this.permit = permit;
+			this.latency = latency;
+		}
+	}
+
+	// requests arrive every millisecond of virtual time, the limiter reads the same clock
+	private class Simulation {
+
+		private final AdaptiveConcurrencyLimiter limiter;
+		private final SlowedRepository repository;
+		private final PriorityQueue<Running> running = new PriorityQueue<>(
+				(a, b) -> Long.compare(a.endNanos, b.endNanos));
+		private final List<Long> latencies = new ArrayList<>();
+		private long completed;
+
+		private Simulation(AdaptiveConcurrencyLimiter limiter, SlowedRepository repository) {
+			this.limiter = limiter;
+			this.repository = repository;
+		}
+
+		private void run(int arrivalsPerMilli, int millis) {
+			for (int milli = 0; milli < millis; milli++) {
+				now += MILLI;
+				while (!running.isEmpty() && running.peek().endNanos <= now) {
+					Running done = running.poll();
+					done.permit.release();
+					latencies.add(done.latency);
+					completed++;
+				}
+				for (int i = 0; i < arrivalsPerMilli; i++) {
+					AdaptiveConcurrencyLimiter.Permit permit = limiter.tryAcquire();
+					if (permit != null) {
+						long latency = repository.latency(running.size() + 1);
+						running.add(new Running(now + latency, permit, latency));
+					}
+				}
+			}
+		}
+
+		private long completed() {
+			return completed;
+		}
+
+		private double p99Millis() {
+			long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+			if (sorted.length == 0) {
+				return 0;
+			}
+			return sorted[(int) Math.ceil(0.99 * sorted.length) - 1] / (double) MILLI;
+		}
+	}
+
+}
@@ -0,0 +1,64 @@
+package com.westnacher.uam.outbox;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.westnacher.uam.dtos.OutboxMessageDto;
+import com.westnacher.uam.dtos.UserChangeEventDto.Type;
+
+public class FileOutboxSinkTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+
+	@Test
+	public void testPublish_AppendsOneJsonLinePerMessage() throws Exception {
+		Path path = folder.getRoot().toPath().resolve("outbox.ndjson");
+		FileOutboxSink sink = new FileOutboxSink(path, objectMapper);
+
+		sink.publish(Arrays.asList(
+				new OutboxMessageDto(1L, Type.CREATED, 10L, 0L, "{\"email\":\"a@b.c\"}", LocalDateTime.now()),
+				new OutboxMessageDto(2L, Type.DELETED, 10L, null, null, LocalDateTime.now())));
+		sink.publish(Collections.singletonList(
+				new OutboxMessageDto(3L, Type.CREATED, 11L, 0L, "{\"email\":\"d@e.f\"}", LocalDateTime.now())));
+		sink.close();
+
+		List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+		assertThat(lines).hasSize(3);
+		JsonNode created = objectMapper.readTree(lines.get(0));
+		assertThat(created.get("type").asText()).isEqualTo("CREATED");
+		assertThat(created.get("payload").get("email").asText()).isEqualTo("a@b.c");
+		assertThat(objectMapper.readTree(lines.get(1)).get("payload").isNull()).isTrue();
+		assertThat(objectMapper.readTree(lines.get(2)).get("id").asLong()).isEqualTo(3L);
+	}
+
+	@Test
+	public void testPublish_AppendsToExistingFile() throws Exception {
+		Path path = folder.getRoot().toPath().resolve("outbox.ndjson");
+		Files.write(path, "{\"id\":0}\n".getBytes(StandardCharsets.UTF_8));
+		FileOutboxSink sink = new FileOutboxSink(path, objectMapper);
+
+		sink.publish(Collections.singletonList(
+				new OutboxMessageDto(1L, Type.CREATED, 10L, 0L, "{}", LocalDateTime.now())));
+		sink.close();
+
+		assertThat(Files.readAllLines(path, StandardCharsets.UTF_8)).hasSize(2);
+	}
+
+}
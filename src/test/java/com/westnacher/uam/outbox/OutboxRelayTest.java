@@ -0,0 +1,96 @@
+package com.westnacher.uam.outbox;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.westnacher.uam.dtos.OutboxMessageDto;
+import com.westnacher.uam.dtos.UserChangeEventDto.Type;
+import com.westnacher.uam.models.OutboxEvent;
+import com.westnacher.uam.repositories.OutboxEventRepository;
+import com.westnacher.uam.shards.ShardRouting;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class OutboxRelayTest {
+
+	private static final int BATCH_SIZE = 2;
+
+	private OutboxEventRepository outboxEventRepository = Mockito.mock(OutboxEventRepository.class);
+	private OutboxSink sink = Mockito.mock(OutboxSink.class);
+	private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private OutboxRelay relay;
+
+	@Before
+	public void setup() {
+		relay = new OutboxRelay(true, BATCH_SIZE, Duration.ofSeconds(1), outboxEventRepository, sink,
+				new ShardRouting(Collections.emptyList(), 1, false), Mockito.mock(PlatformTransactionManager.class),
+				meterRegistry);
+	}
+
+	@Test
+	public void testDrainAll_PublishesAndDeletesBatchesUntilEmpty() throws Exception {
+		List<OutboxEvent> first = Arrays.asList(event(1L), event(2L));
+		List<OutboxEvent> second = Collections.singletonList(event(3L));
+		given(outboxEventRepository.findByOrderByIdAsc(PageRequest.of(0, BATCH_SIZE))).willReturn(first, second);
+
+		relay.drainAll();
+
+		Mockito.verify(sink).publish(Mockito.argThat(messages -> ids(messages).equals(Arrays.asList(1L, 2L))));
+		Mockito.verify(sink).publish(Mockito.argThat(messages -> ids(messages).equals(Arrays.asList(3L))));
+		Mockito.verify(outboxEventRepository).deleteInBatch(first);
+		Mockito.verify(outboxEventRepository).deleteInBatch(second);
+		assertThat(meterRegistry.counter("uam.outbox.published").count()).isEqualTo(3);
+		assertThat(meterRegistry.timer("uam.outbox.lag").count()).isEqualTo(3);
+		assertThat(relay.pendingAgeSeconds()).isZero();
+	}
+
+	@Test
+	public void testDrainAll_EmptyOutbox_NothingPublished() throws Exception {
+		given(outboxEventRepository.findByOrderByIdAsc(Mockito.any())).willReturn(Collections.emptyList());
+
+		relay.drainAll();
+
+		Mockito.verify(sink, Mockito.never()).publish(Mockito.any());
+		Mockito.verify(outboxEventRepository, Mockito.never()).deleteInBatch(Mockito.any());
+	}
+
+	@Test
+	public void testDrainAll_SinkFails_BatchKeptAndLagReported() throws Exception {
+		OutboxEvent stuck = event(1L);
+		stuck.setCreatedAt(LocalDateTime.now().minusMinutes(1));
+		given(outboxEventRepository.findByOrderByIdAsc(Mockito.any())).willReturn(Collections.singletonList(stuck));
+		Mockito.doThrow(new IOException("Sink unavailable")).when(sink).publish(Mockito.any());
+
+		relay.drainAll();
+
+		Mockito.verify(outboxEventRepository, Mockito.never()).deleteInBatch(Mockito.any());
+		assertThat(meterRegistry.counter("uam.outbox.failures").count()).isEqualTo(1);
+		assertThat(meterRegistry.counter("uam.outbox.published").count()).isZero();
+		assertThat(meterRegistry.get("uam.outbox.pending.age").gauge().value()).isGreaterThanOrEqualTo(60);
+	}
+
+	private static OutboxEvent event(Long id) {
+		OutboxEvent event = new OutboxEvent(Type.CREATED, id, 0L, "{\"id\":" + id + "}");
+		event.setId(id);
+		return event;
+	}
+
+	private static List<Long> ids(List<OutboxMessageDto> messages) {
+		return Arrays.asList(messages.stream().map(OutboxMessageDto::getId).toArray(Long[]::new));
+	}
+
+}
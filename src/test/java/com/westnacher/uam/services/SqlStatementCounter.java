@@ -0,0 +1,32 @@
+package com.westnacher.uam.services;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+public class SqlStatementCounter implements StatementInspector {
+
+	private static final long serialVersionUID = 4315846320944152387L;
+
+	private static final List<String> STATEMENTS = new CopyOnWriteArrayList<>();
+
+	@Override
+	public String inspect(String sql) {
+		STATEMENTS.add(sql);
+		return sql;
+	}
+
+	public static void reset() {
+		STATEMENTS.clear();
+	}
+
+	public static int count() {
+		return STATEMENTS.size();
+	}
+
+	public static List<String> statements() {
+		return STATEMENTS;
+	}
+
+}
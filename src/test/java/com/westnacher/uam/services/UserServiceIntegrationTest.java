@@ -0,0 +1,654 @@
+package com.westnacher.uam.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.westnacher.uam.bulkheads.Bulkheads;
+import com.westnacher.uam.caches.EmailBloomFilter;
+import com.westnacher.uam.deadlines.RequestDeadline;
+import com.westnacher.uam.dtos.UserBatchResultDto;
+import com.westnacher.uam.dtos.UserChangeEventDto.Type;
+import com.westnacher.uam.dtos.UserChangesDto;
+import com.westnacher.uam.dtos.UserDto;
+import com.westnacher.uam.dtos.UserLookupResultDto;
+import com.westnacher.uam.dtos.UserTombstoneDto;
+import com.westnacher.uam.events.UserChangeFeed;
+import com.westnacher.uam.exceptions.AccountsManagerException;
+import com.westnacher.uam.forms.UserForm;
+import com.westnacher.uam.models.OutboxEvent;
+import com.westnacher.uam.models.User;
+import com.westnacher.uam.repositories.OutboxEventRepository;
+import com.westnacher.uam.repositories.UserRepository;
+import com.westnacher.uam.repositories.UserTombstoneRepository;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+		"spring.jpa.properties.hibernate.session_factory.statement_inspector=com.westnacher.uam.services.SqlStatementCounter",
+		"uam.outbox.relay.enabled=false",
+		"uam.cache.users.invalidation.enabled=false" })
+public class UserServiceIntegrationTest {
+
+	// ahead of the settle time of /users/changes, so the changes of a test are listed right away
+	@TestConfiguration
+	static class SettledClock {
+
+		@Bean
+		@Primary
+		public Clock settledClock() {
+			return Clock.offset(Clock.systemDefaultZone(), Duration.ofMinutes(1));
+		}
+
+	}
+
+	@Autowired
+	private UserService userService;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private UserTombstoneRepository userTombstoneRepository;
+
+	@SpyBean
+	private UserChangeFeed userChangeFeed;
+
+	@Autowired
+	private OutboxEventRepository outboxEventRepository;
+
+	@Autowired
+	private EmailBloomFilter emailBloomFilter;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Autowired
+	private RequestDeadline requestDeadline;
+
+	@Before
+	public void setup() throws InterruptedException {
+		for (int i = 0; i < 100 && !emailBloomFilter.isLoaded(); i++) {
+			Thread.sleep(50);
+		}
+		SqlStatementCounter.reset();
+	}
+
+	@After
+	public void cleanup() {
+		userRepository.deleteAll();
+		userTombstoneRepository.deleteAll();
+		outboxEventRepository.deleteAll();
+	}
+
+	@Test
+	public void testCreateUser_UserAndOutboxInsert() {
+		UserDto created = userService.createUser(createValidUserForm(randomEmail()));
+
+		assertStatements(2);
+		List<OutboxEvent> events = outboxEventRepository.findAll();
+		assertThat(events).hasSize(1);
+		assertThat(events.get(0).getType()).isEqualTo(Type.CREATED);
+		assertThat(events.get(0).getUserId()).isEqualTo(created.getId());
+		assertThat(events.get(0).getPayload()).contains(created.getEmail());
+	}
+
+	@Test
+	public void testCreateUser_DuplicateEmail_NoOutboxEvent() {
+		String email = randomEmail();
+		userService.createUser(createValidUserForm(email));
+
+		try {
+			userService.createUser(createValidUserForm(email));
+		} catch (AccountsManagerException ex) {
+			assertThat(outboxEventRepository.count()).isEqualTo(1);
+			return;
+		}
+		Assertions.fail();
+	}
+
+	@Test
+	public void testGetUserById_OneStatementThenCached() {
+		Long userId = userService.createUser(createValidUserForm(randomEmail())).getId();
+		SqlStatementCounter.reset();
+
+		userService.getUserById(userId);
+		assertStatements(1);
+
+		userService.getUserById(userId);
+		assertStatements(0);
+	}
+
+	@Test
+	public void testGetUsersByIds_OneStatementInRequestOrderThenCached() {
+		Long first = userService.createUser(createValidUserForm(randomEmail())).getId();
+		Long second = userService.createUser(createValidUserForm(randomEmail())).getId();
+		Long missing = first - 1;
+		SqlStatementCounter.reset();
+
+		List<UserLookupResultDto> results = userService.getUsersByIds(Arrays.asList(second, missing, first, second));
+		assertStatements(1);
+		assertThat(results.stream().map(UserLookupResultDto::getId)).containsExactly(second, missing, first, second);
+		assertThat(results.stream().map(UserLookupResultDto::getStatus)).containsExactly(HttpStatus.OK,
+				HttpStatus.NOT_FOUND, HttpStatus.OK, HttpStatus.OK);
+		assertThat(results.get(1).getUser()).isNull();
+		assertThat(results.get(2).getUser().getId()).isEqualTo(first);
+
+		userService.getUsersByIds(Arrays.asList(first, second));
+		assertStatements(0);
+	}
+
+	@Test
+	public void testGetUsersByIds_PartlyCached_LoadsOnlyMisses() {
+		Long cached = userService.createUser(createValidUserForm(randomEmail())).getId();
+		Long uncached = userService.createUser(createValidUserForm(randomEmail())).getId();
+		userService.getUserById(cached);
+		SqlStatementCounter.reset();
+
+		userService.getUsersByIds(Arrays.asList(cached, uncached));
+
+		assertThat(SqlStatementCounter.statements()).hasSize(1);
+		assertThat(SqlStatementCounter.statements().get(0)).contains("in (?)");
+	}
+
+	@Test
+	public void testGetUsersByIds_ManyIds_ChunkedInOneTransaction() {
+		Long userId = userService.createUser(createValidUserForm(randomEmail())).getId();
+		List<Long> ids = new ArrayList<>();
+		for (long i = 1; i < 600; i++) {
+			ids.add(userId - i);
+		}
+		ids.add(userId);
+		SqlStatementCounter.reset();
+
+		List<UserLookupResultDto> results = userService.getUsersByIds(ids);
+
+		assertStatements(3);
+		assertThat(results).hasSize(ids.size());
+		assertThat(results.get(ids.size() - 1).getUser().getId()).isEqualTo(userId);
+	}
+
+	@Test
+	public void testGetUserValidators_ReadsOnlyValidatorColumns() {
+		UserDto created = userService.createUser(createValidUserForm(randomEmail()));
+		SqlStatementCounter.reset();
+
+		assertThat(userService.getUserValidators(created.getId()).getVersion()).isEqualTo(created.getVersion());
+		assertThat(SqlStatementCounter.statements()).hasSize(1);
+		assertThat(SqlStatementCounter.statements().get(0)).doesNotContain("first_name").doesNotContain("email");
+	}
+
+	@Test
+	public void testCreateUsers_CaseVariantsOfEmails_RejectedPerItem() {
+		String registered = randomEmail().toLowerCase(Locale.ROOT);
+		userService.createUser(createValidUserForm(registered));
+		String email = randomEmail().toLowerCase(Locale.ROOT);
+
+		List<UserBatchResultDto> results = userService.createUsers(
+				Arrays.asList(createValidUserForm(registered.toUpperCase(Locale.ROOT)),
+						createValidUserForm(email), createValidUserForm(email.toUpperCase(Locale.ROOT))));
+
+		assertThat(results).extracting(UserBatchResultDto::getStatus).containsExactly(HttpStatus.BAD_REQUEST,
+				HttpStatus.CREATED, HttpStatus.BAD_REQUEST);
+		assertThat(userRepository.findByEmail(email)).isPresent();
+	}
+
+	@Test
+	public void testCreateUsers_EmailRegisteredThroughOtherInstance_RejectedPerItem() {
+		// written past the filter of this instance, as another instance would
+		String registered = randomEmail().toLowerCase(Locale.ROOT);
+		userRepository.saveAndFlush(User.of(createValidUserForm(registered)));
+		String email = randomEmail();
+
+		List<UserBatchResultDto> results = userService
+				.createUsers(Arrays.asList(createValidUserForm(registered), createValidUserForm(email)));
+
+		assertThat(results).extracting(UserBatchResultDto::getStatus).containsExactly(HttpStatus.BAD_REQUEST,
+				HttpStatus.CREATED);
+		assertThat(userRepository.findByEmail(email)).isPresent();
+	}
+
+	@Test
+	public void testEditUser_DeadlinePassed_AbandonedBeforeDatabase() {
+		UserDto created = userService.createUser(createValidUserForm(randomEmail()));
+		SqlStatementCounter.reset();
+
+		requestDeadline.start("0", Bulkheads.Type.WRITES);
+		try {
+			userService.editUser(created.getId(), createValidUserForm(randomEmail()));
+			Assertions.fail();
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.GATEWAY_TIMEOUT);
+		} finally {
+			requestDeadline.clear();
+		}
+
+		assertStatements(0);
+		assertThat(userRepository.findById(created.getId()).get().getEmail()).isEqualTo(created.getEmail());
+	}
+
+	@Test
+	public void testBulkReads_DeadlinePassed_AbandonedBeforeDatabase() {
+		userService.createUser(createValidUserForm(randomEmail()));
+		SqlStatementCounter.reset();
+
+		requestDeadline.start("0", Bulkheads.Type.BULK);
+		try {
+			for (Runnable read : Arrays.<Runnable>asList(() -> userService.getAllUsers(null, null),
+					() -> userService.getAllUsersETag(null, null), () -> userService.getChanges(null, null))) {
+				try {
+					read.run();
+					Assertions.fail();
+				} catch (AccountsManagerException ex) {
+					assertThat(ex.getStatus()).isEqualTo(HttpStatus.GATEWAY_TIMEOUT);
+				}
+			}
+		} finally {
+			requestDeadline.clear();
+		}
+
+		assertStatements(0);
+	}
+
+	@Test
+	public void testGetAllUsersETag_MatchesPageAndChangesOnEdit() {
+		UserDto created = userService.createUser(createValidUserForm(randomEmail()));
+		userService.createUser(createValidUserForm(randomEmail()));
+
+		String eTag = userService.getAllUsersETag(null, null);
+		assertThat(userService.getAllUsers(null, null).getETag()).isEqualTo(eTag);
+
+		userService.editUser(created.getId(), createValidUserForm(randomEmail()), created.getVersion());
+		assertThat(userService.getAllUsersETag(null, null)).isNotEqualTo(eTag);
+	}
+
+	@Test
+	public void testGetAllUsers_OneStatement() {
+		userService.createUser(createValidUserForm(randomEmail()));
+		userService.createUser(createValidUserForm(randomEmail()));
+		SqlStatementCounter.reset();
+
+		assertThat(userService.getAllUsers(null, 1).getNextCursor()).isNotNull();
+		assertStatements(1);
+	}
+
+	@Test
+	public void testEditUser_LookupUpdateAndOutbox() {
+		Long userId = userService.createUser(createValidUserForm(randomEmail())).getId();
+		SqlStatementCounter.reset();
+
+		String email = randomEmail();
+		assertThat(userService.editUser(userId, createValidUserForm(email)).getEmail()).isEqualTo(email);
+		assertStatements(3);
+	}
+
+	@Test
+	public void testEditUser_IfMatch_UpdateAndOutbox() {
+		UserDto created = userService.createUser(createValidUserForm(randomEmail()));
+		SqlStatementCounter.reset();
+
+		String email = randomEmail();
+		UserDto saved = userService.editUser(created.getId(), createValidUserForm(email), created.getVersion());
+		assertThat(saved.getEmail()).isEqualTo(email);
+		assertThat(saved.getVersion()).isEqualTo(created.getVersion() + 1);
+		// the previous email for the filter, the update and the outbox row
+		assertStatements(3);
+		assertThat(emailBloomFilter.mightBeRegistered(created.getEmail())).isFalse();
+
+		UserDto edited = userService.getUserById(created.getId());
+		assertThat(edited.getEmail()).isEqualTo(email);
+		assertThat(edited.getVersion()).isEqualTo(created.getVersion() + 1);
+	}
+
+	@Test
+	public void testEditUser_IfMatch_CachedUser_CachedAsWritten() {
+		UserDto created = userService.createUser(createValidUserForm(randomEmail()));
+		UserDto loaded = userService.getUserById(created.getId());
+		SqlStatementCounter.reset();
+
+		String email = randomEmail();
+		UserDto saved = userService.editUser(created.getId(), createValidUserForm(email), created.getVersion());
+		assertThat(saved.getRegisteredAt()).isEqualTo(loaded.getRegisteredAt());
+		assertStatements(2);
+		assertThat(emailBloomFilter.mightBeRegistered(created.getEmail())).isFalse();
+
+		UserDto cached = userService.getUserById(created.getId());
+		assertStatements(0);
+		assertThat(cached.getEmail()).isEqualTo(email);
+		assertThat(cached.getVersion()).isEqualTo(created.getVersion() + 1);
+		assertThat(cached.getRegisteredAt()).isEqualTo(loaded.getRegisteredAt());
+	}
+
+	@Test
+	public void testPatchUser_UpdatesOnlyChangedColumns() throws Exception {
+		UserDto created = userService.createUser(createValidUserForm(randomEmail()));
+		SqlStatementCounter.reset();
+
+		UserDto patched = userService.patchUser(created.getId(), patch("{\"lastName\": \"Patched\"}"), null);
+
+		assertThat(patched.getLastName()).isEqualTo("Patched");
+		assertThat(patched.getFirstName()).isEqualTo(created.getFirstName());
+		assertThat(patched.getVersion()).isEqualTo(created.getVersion() + 1);
+		String update = SqlStatementCounter.statements().stream().filter(sql -> sql.startsWith("update"))
+				.findFirst().get();
+		assertThat(update).contains("last_name").doesNotContain("first_name", "email", "date_of_birth");
+		// lookup, update, outbox insert
+		assertStatements(3);
+	}
+
+	@Test
+	public void testPatchUser_CurrentValue_NoWrite() throws Exception {
+		UserDto created = userService.createUser(createValidUserForm(randomEmail()));
+		SqlStatementCounter.reset();
+
+		UserDto patched = userService.patchUser(created.getId(),
+				patch("{\"firstName\": \"" + created.getFirstName() + "\", \"email\": \"" + created.getEmail() + "\"}"),
+				null);
+
+		assertStatements(1);
+		assertThat(patched.getVersion()).isEqualTo(created.getVersion());
+		assertThat(outboxEventRepository.count()).isEqualTo(1);
+	}
+
+	@Test
+	public void testPatchUser_InvalidOrRemovedField_Unprocessable() throws Exception {
+		Long userId = userService.createUser(createValidUserForm(randomEmail())).getId();
+
+		for (String patch : Arrays.asList("{\"email\": \"not an email\"}", "{\"dateOfBirth\": null}")) {
+			try {
+				userService.patchUser(userId, patch(patch), null);
+				Assertions.fail();
+			} catch (AccountsManagerException ex) {
+				assertThat(ex.getStatus()).isEqualTo(HttpStatus.UNPROCESSABLE_ENTITY);
+			}
+		}
+	}
+
+	@Test
+	public void testPatchUser_UnknownFieldOrStaleVersion_Rejected() throws Exception {
+		UserDto created = userService.createUser(createValidUserForm(randomEmail()));
+
+		try {
+			userService.patchUser(created.getId(), patch("{\"id\": 1}"), null);
+			Assertions.fail();
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+		}
+		try {
+			userService.patchUser(created.getId(), patch("{\"lastName\": \"Patched\"}"), created.getVersion() + 1);
+			Assertions.fail();
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.PRECONDITION_FAILED);
+		}
+	}
+
+	@Test
+	public void testUpsertUserByEmail_CreatesThenUpdates() {
+		String email = randomEmail();
+		UserBatchResultDto created = userService.upsertUserByEmail(email, createValidUserForm(email));
+		assertThat(created.getStatus()).isEqualTo(HttpStatus.CREATED);
+		// upsert, read back, outbox insert
+		assertStatements(3);
+		userService.getUserById(created.getUser().getId());
+		SqlStatementCounter.reset();
+
+		UserForm form = createValidUserForm(email);
+		form.setFirstName("Updated");
+		UserBatchResultDto updated = userService.upsertUserByEmail(email, form);
+		assertStatements(3);
+
+		assertThat(updated.getStatus()).isEqualTo(HttpStatus.OK);
+		assertThat(updated.getUser().getId()).isEqualTo(created.getUser().getId());
+		assertThat(updated.getUser().getVersion()).isEqualTo(created.getUser().getVersion() + 1);
+		assertThat(updated.getUser().getRegisteredAt()).isEqualTo(created.getUser().getRegisteredAt());
+		assertThat(userService.getUserById(created.getUser().getId()).getFirstName()).isEqualTo("Updated");
+		assertThat(outboxEventRepository.findAll().stream().map(OutboxEvent::getType).collect(Collectors.toList()))
+				.containsExactlyInAnyOrder(Type.CREATED, Type.UPDATED);
+	}
+
+	@Test
+	public void testUpsertUsersByEmail_OneBatchStatement() {
+		String existingEmail = randomEmail();
+		Long existingId = userService.createUser(createValidUserForm(existingEmail)).getId();
+		String newEmail = randomEmail();
+		UserForm invalid = createValidUserForm(randomEmail());
+		invalid.setFirstName(null);
+		SqlStatementCounter.reset();
+
+		List<UserBatchResultDto> results = userService.upsertUsersByEmail(Arrays.asList(
+				createValidUserForm(newEmail), createValidUserForm(existingEmail), invalid,
+				createValidUserForm(newEmail), createValidUserForm(randomEmail())));
+
+		assertStatements(3);
+		assertThat(results.stream().map(UserBatchResultDto::getStatus).collect(Collectors.toList())).containsExactly(
+				HttpStatus.CREATED, HttpStatus.OK, HttpStatus.UNPROCESSABLE_ENTITY, HttpStatus.BAD_REQUEST,
+				HttpStatus.CREATED);
+		assertThat(results.get(1).getUser().getId()).isEqualTo(existingId);
+		assertThat(userRepository.count()).isEqualTo(3);
+	}
+
+	@Test
+	public void testUpsertUserByEmail_OtherEmailInForm_BadRequest() {
+		try {
+			userService.upsertUserByEmail(randomEmail(), createValidUserForm(randomEmail()));
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+			assertThat(userRepository.count()).isZero();
+			return;
+		}
+		Assertions.fail();
+	}
+
+	@Test
+	public void testEditUser_IfMatchStale_PreconditionFailed() {
+		UserDto created = userService.createUser(createValidUserForm(randomEmail()));
+		userService.editUser(created.getId(), createValidUserForm(randomEmail()), created.getVersion());
+
+		try {
+			userService.editUser(created.getId(), createValidUserForm(randomEmail()), created.getVersion());
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.PRECONDITION_FAILED);
+			return;
+		}
+		Assertions.fail();
+	}
+
+	@Test
+	public void testDeleteUserById_DeleteTombstoneAndOutbox() {
+		String email = randomEmail();
+		Long userId = userService.createUser(createValidUserForm(email)).getId();
+		SqlStatementCounter.reset();
+
+		userService.deleteUserById(userId);
+		// the email for the filter, the delete, the tombstone and the outbox row
+		assertStatements(4);
+		assertThat(emailBloomFilter.mightBeRegistered(email)).isFalse();
+		assertThat(userRepository.existsById(userId)).isFalse();
+		assertThat(userTombstoneRepository.existsById(userId)).isTrue();
+	}
+
+	@Test
+	public void testMutations_PublishedToChangeFeed() {
+		UserDto created = userService.createUser(createValidUserForm(randomEmail()));
+		userService.editUser(created.getId(), createValidUserForm(randomEmail()), created.getVersion());
+		userService.deleteUserById(created.getId());
+
+		Mockito.verify(userChangeFeed).publish(Mockito.eq(Type.CREATED), Mockito.eq(created.getId()),
+				Mockito.eq(created.getVersion()), Mockito.any());
+		Mockito.verify(userChangeFeed).publish(Mockito.eq(Type.UPDATED), Mockito.eq(created.getId()),
+				Mockito.eq(created.getVersion() + 1), Mockito.argThat(user -> user != null
+						&& user.getVersion().equals(created.getVersion() + 1)));
+		Mockito.verify(userChangeFeed).publish(Type.DELETED, created.getId(), null, null);
+	}
+
+	@Test
+	public void testMutations_FailedEditNotPublished() {
+		UserDto created = userService.createUser(createValidUserForm(randomEmail()));
+
+		try {
+			userService.editUser(created.getId(), createValidUserForm(randomEmail()), created.getVersion() + 1);
+		} catch (AccountsManagerException ex) {
+			Mockito.verify(userChangeFeed, Mockito.never()).publish(Mockito.eq(Type.UPDATED), Mockito.any(),
+					Mockito.any(), Mockito.any());
+			return;
+		}
+		Assertions.fail();
+	}
+
+	@Test
+	public void testGetChanges_OnlyChurnSinceToken() {
+		UserDto kept = userService.createUser(createValidUserForm(randomEmail()));
+		UserDto deleted = userService.createUser(createValidUserForm(randomEmail()));
+		UserDto edited = userService.createUser(createValidUserForm(randomEmail()));
+		userService.deleteUserById(deleted.getId());
+
+		UserChangesDto initial = userService.getChanges(null, null);
+		assertThat(initial.getUsers()).extracting(UserDto::getId).containsExactlyInAnyOrder(kept.getId(), edited.getId());
+		assertThat(initial.getDeleted()).extracting(UserTombstoneDto::getId).containsExactly(deleted.getId());
+		assertThat(initial.isHasMore()).isFalse();
+
+		UserChangesDto unchanged = userService.getChanges(initial.getNextToken(), null);
+		assertThat(unchanged.getUsers()).isEmpty();
+		assertThat(unchanged.getDeleted()).isEmpty();
+
+		userService.editUser(edited.getId(), createValidUserForm(randomEmail()), edited.getVersion());
+		userService.deleteUserById(kept.getId());
+		SqlStatementCounter.reset();
+
+		UserChangesDto delta = userService.getChanges(unchanged.getNextToken(), null);
+		assertThat(delta.getUsers()).extracting(UserDto::getId).containsExactly(edited.getId());
+		assertThat(delta.getDeleted()).extracting(UserTombstoneDto::getId).containsExactly(kept.getId());
+		assertStatements(2);
+	}
+
+	@Test
+	public void testGetChanges_PagesThroughChanges() {
+		for (int i = 0; i < 5; i++) {
+			userService.createUser(createValidUserForm(randomEmail()));
+		}
+
+		UserChangesDto first = userService.getChanges(null, 3);
+		assertThat(first.getUsers()).hasSize(3);
+		assertThat(first.isHasMore()).isTrue();
+
+		UserChangesDto second = userService.getChanges(first.getNextToken(), 3);
+		assertThat(second.getUsers()).hasSize(2);
+		assertThat(second.isHasMore()).isFalse();
+		assertThat(second.getUsers()).extracting(UserDto::getId)
+				.doesNotContainAnyElementsOf(first.getUsers().stream().map(UserDto::getId).collect(Collectors.toList()));
+	}
+
+	@Test
+	public void testGetChanges_InvalidToken_BadRequest() {
+		try {
+			userService.getChanges("not-a-token", null);
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+			return;
+		}
+		Assertions.fail();
+	}
+
+	@Test
+	public void testDeleteUserById_NotFound_OneStatement() {
+		try {
+			userService.deleteUserById(-1L);
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+			assertStatements(1);
+			return;
+		}
+		Assertions.fail();
+	}
+
+	@Test
+	public void testCreateUser_ConcurrentSameEmail_ExactlyOneWinner() throws Exception {
+		final int creators = 16;
+		String email = randomEmail();
+		CountDownLatch start = new CountDownLatch(1);
+
+		ExecutorService executor = Executors.newFixedThreadPool(creators);
+		List<Future<HttpStatus>> results = new ArrayList<>();
+		for (int i = 0; i < creators; i++) {
+			results.add(executor.submit(() -> {
+				start.await();
+				try {
+					userService.createUser(createValidUserForm(email));
+					return HttpStatus.CREATED;
+				} catch (AccountsManagerException ex) {
+					return ex.getStatus();
+				}
+			}));
+		}
+		start.countDown();
+
+		int created = 0;
+		int rejected = 0;
+		for (Future<HttpStatus> result : results) {
+			HttpStatus status = result.get(1, TimeUnit.MINUTES);
+			if (status == HttpStatus.CREATED) {
+				created++;
+			} else if (status == HttpStatus.BAD_REQUEST) {
+				rejected++;
+			}
+		}
+		executor.shutdown();
+
+		assertThat(created).isEqualTo(1);
+		assertThat(rejected).isEqualTo(creators - 1);
+		assertThat(userRepository.findByEmail(email)).isPresent();
+	}
+
+	private JsonNode patch(String json) throws IOException {
+		return objectMapper.readTree(json);
+	}
+
+	private void assertStatements(int expected) {
+		assertThat(SqlStatementCounter.statements()).hasSize(expected);
+		SqlStatementCounter.reset();
+	}
+
+	private String randomEmail() {
+		return RandomStringUtils.random(8, true, true) + "@test.com";
+	}
+
+	private UserForm createValidUserForm(String email) {
+		UserForm form = new UserForm();
+		form.setFirstName("Concurrent");
+		form.setLastName("Creator");
+		form.setEmail(email);
+		form.setDateOfBirth(LocalDate.of(1990, 1, 1));
+		return form;
+	}
+
+}
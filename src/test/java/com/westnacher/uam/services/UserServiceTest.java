@@ -3,18 +3,31 @@ package com.westnacher.uam.services;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.BDDMockito.given;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.Month;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.RandomUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.hibernate.exception.ConstraintViolationException;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.jupiter.api.Assertions;
 import org.junit.runner.RunWith;
@@ -24,15 +37,23 @@ import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMock
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 
+import com.westnacher.uam.caches.EmailBloomFilter;
+import com.westnacher.uam.caches.UserCache;
+import com.westnacher.uam.dtos.UserBatchResultDto;
 import com.westnacher.uam.dtos.UserDto;
+import com.westnacher.uam.dtos.UserPageDto;
 import com.westnacher.uam.exceptions.AccountsManagerException;
 import com.westnacher.uam.forms.UserForm;
 import com.westnacher.uam.models.User;
+import com.westnacher.uam.repositories.OutboxEventRepository;
 import com.westnacher.uam.repositories.UserRepository;
+import com.westnacher.uam.repositories.UserTombstoneRepository;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT)
@@ -45,9 +66,29 @@ public class UserServiceTest {
 	@MockBean
 	private UserRepository userRepository;
 
+	@MockBean
+	private UserTombstoneRepository userTombstoneRepository;
+
+	@MockBean
+	private OutboxEventRepository outboxEventRepository;
+
 	@Autowired
 	private UserService userService;
 
+	@Autowired
+	private UserCache userCache;
+
+	@Autowired
+	private EmailBloomFilter emailBloomFilter;
+
+	@Before
+	public void setup() throws InterruptedException {
+		userCache.invalidateAll();
+		for (int i = 0; i < 100 && !emailBloomFilter.isLoaded(); i++) {
+			Thread.sleep(50);
+		}
+	}
+
 	@Test
 	public void getAllUsers_Success() {
 
@@ -58,10 +99,76 @@ public class UserServiceTest {
 
 		List<UserDto> expected = users.stream().map(UserDto::of).collect(Collectors.toList());
 
-		given(userRepository.findAll()).willReturn(users);
+		given(userRepository.findByIdGreaterThanOrderByIdAsc(Mockito.anyLong(), Mockito.any())).willReturn(users);
+
+		UserPageDto page = userService.getAllUsers(null, null);
+		assertThat(page.getUsers()).hasSize(2);
+		assertThat(page.getNextCursor()).isNull();
+
+	}
+
+	@Test
+	public void getAllUsers_NextPage_Success() {
+
+		List<User> users = new ArrayList();
+		for (long id = 11; id <= 14; id++) {
+			User user = createRandomUser();
+			user.setId(id);
+			users.add(user);
+		}
+
+		given(userRepository.findByIdGreaterThanOrderByIdAsc(10L, PageRequest.of(0, 4))).willReturn(users);
+
+		String after = Base64.getUrlEncoder().withoutPadding().encodeToString("10".getBytes());
+		UserPageDto page = userService.getAllUsers(after, 3);
+		assertThat(page.getUsers()).extracting(UserDto::getId).containsExactly(11L, 12L, 13L);
+
+		given(userRepository.findByIdGreaterThanOrderByIdAsc(13L, PageRequest.of(0, 4)))
+				.willReturn(users.subList(3, 4));
+
+		UserPageDto nextPage = userService.getAllUsers(page.getNextCursor(), 3);
+		assertThat(nextPage.getUsers()).extracting(UserDto::getId).containsExactly(14L);
+		assertThat(nextPage.getNextCursor()).isNull();
+	}
+
+	@Test
+	public void getAllUsers_InvalidCursor_Fail() {
+		try {
+			userService.getAllUsers("not-a-cursor", null);
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+			return;
+		}
+		Assertions.fail();
+	}
+
+	@Test
+	public void getAllUsers_LimitOutOfRange_Fail() {
+		try {
+			userService.getAllUsers(null, UserService.MAX_PAGE_SIZE + 1);
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+			return;
+		}
+		Assertions.fail();
+	}
 
-		assertThat(userService.getAllUsers()).isInstanceOf(List.class).hasSize(2);
+	@Test
+	public void exportUsers_Success() throws Exception {
+		User user1 = createRandomUser();
+		user1.setId(1L);
+		User user2 = createRandomUser();
+		user2.setId(2L);
 
+		given(userRepository.streamAllByOrderByIdAsc()).willReturn(Stream.of(user1, user2));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		userService.exportUsers(out);
+
+		String[] lines = out.toString(StandardCharsets.UTF_8.name()).split("\n");
+		assertThat(lines).hasSize(2);
+		assertThat(lines[0]).startsWith("{\"id\":1,").contains(user1.getEmail());
+		assertThat(lines[1]).startsWith("{\"id\":2,").contains(user2.getEmail());
 	}
 
 	@Test
@@ -78,6 +185,67 @@ public class UserServiceTest {
 
 	}
 
+	@Test
+	public void getUserById_SecondCallServedFromCache() {
+		User user = createRandomUser();
+		Long userId = RandomUtils.nextLong();
+		user.setId(userId);
+
+		given(userRepository.findById(userId)).willReturn(Optional.of(user));
+
+		userService.getUserById(userId);
+		assertThat(userService.getUserById(userId).getEmail()).isEqualTo(user.getEmail());
+
+		Mockito.verify(userRepository, Mockito.times(1)).findById(userId);
+	}
+
+	@Test
+	public void getUserById_AfterEdit_NotServedFromCache() {
+		User user = createRandomUser();
+		Long userId = RandomUtils.nextLong();
+		user.setId(userId);
+		UserForm form = createValidUserForm();
+
+		given(userRepository.findById(userId)).willReturn(Optional.of(user));
+		given(userRepository.saveAndFlush(Mockito.any())).willAnswer(invocation -> invocation.getArgument(0));
+
+		userService.getUserById(userId);
+		userService.editUser(userId, form);
+
+		assertThat(userService.getUserById(userId).getEmail()).isEqualTo(form.getEmail());
+		Mockito.verify(userRepository, Mockito.times(3)).findById(userId);
+	}
+
+	@Test
+	public void getUserById_ConcurrentSameId_SingleQuery() throws Exception {
+		final int readers = 1000;
+		User user = createRandomUser();
+		Long userId = RandomUtils.nextLong();
+		user.setId(userId);
+		CountDownLatch arrived = new CountDownLatch(readers);
+
+		given(userRepository.findById(userId)).willAnswer(invocation -> {
+			arrived.await();
+			Thread.sleep(200);
+			return Optional.of(user);
+		});
+
+		ExecutorService executor = Executors.newFixedThreadPool(readers);
+		List<Future<UserDto>> results = new ArrayList<>();
+		for (int i = 0; i < readers; i++) {
+			results.add(executor.submit(() -> {
+				arrived.countDown();
+				return userService.getUserById(userId);
+			}));
+		}
+		for (Future<UserDto> result : results) {
+			assertThat(result.get(1, TimeUnit.MINUTES).getId()).isEqualTo(userId);
+		}
+		executor.shutdown();
+
+		Mockito.verify(userRepository, Mockito.times(1)).findById(userId);
+	}
+
 	@Test
 	public void getUserById_Fail() {
 		Long id = RandomUtils.nextLong();
@@ -101,8 +269,7 @@ public class UserServiceTest {
 		Long userId = RandomUtils.nextLong();
 		createdUser.setId(userId);
 
-		given(userRepository.findByEmail(Mockito.anyString())).willReturn(Optional.empty());
-		given(userRepository.save(Mockito.any())).willReturn(createdUser);
+		given(userRepository.saveAndFlush(Mockito.any())).willReturn(createdUser);
 
 		assertThat(userService.createUser(form).getId()).isEqualTo(userId);
 		assertThat(userService.createUser(form).getEmail()).isEqualTo(form.getEmail());
@@ -112,12 +279,23 @@ public class UserServiceTest {
 	}
 
 	@Test
-	public void testCreateUser_AlreadyRegisteredEmail_Fail() {
+	public void testCreateUser_InsertsWithoutLookup() {
 		UserForm form = createValidUserForm();
 
-		Optional<User> opt = Optional.of(createRandomUser());
+		given(userRepository.saveAndFlush(Mockito.any())).willAnswer(invocation -> invocation.getArgument(0));
+
+		userService.createUser(form);
 
-		given(userRepository.findByEmail(Mockito.anyString())).willReturn(opt);
+		Mockito.verify(userRepository, Mockito.never()).findByEmail(Mockito.anyString());
+		Mockito.verify(userRepository, Mockito.times(1)).saveAndFlush(Mockito.any());
+		assertThat(emailBloomFilter.mightBeRegistered(form.getEmail())).isTrue();
+	}
+
+	@Test
+	public void testCreateUser_AlreadyRegisteredEmail_Fail() {
+		UserForm form = createValidUserForm();
+
+		given(userRepository.saveAndFlush(Mockito.any())).willThrow(duplicateEmailViolation());
 
 		try {
 			userService.createUser(form);
@@ -129,6 +307,78 @@ public class UserServiceTest {
 		Assertions.fail();
 	}
 
+	@Test
+	public void testCreateUsers_MixedBatch() {
+		UserForm valid = createValidUserForm();
+		UserForm invalid = createValidUserForm();
+		invalid.setFirstName(null);
+		UserForm registered = createValidUserForm();
+		UserForm duplicate = createValidUserForm();
+		duplicate.setEmail(valid.getEmail());
+
+		emailBloomFilter.add(registered.getEmail());
+		given(userRepository.findRegisteredEmails(Mockito.anyCollection()))
+				.willReturn(Collections.singleton(registered.getEmail()));
+		given(userRepository.saveAll(Mockito.anyIterable())).willAnswer(invocation -> {
+			List<User> saved = new ArrayList<>();
+			for (User user : (Iterable<User>) invocation.getArgument(0)) {
+				user.setId(RandomUtils.nextLong());
+				saved.add(user);
+			}
+			return saved;
+		});
+
+		List<UserBatchResultDto> results = userService
+				.createUsers(Arrays.asList(valid, invalid, registered, duplicate));
+
+		assertThat(results).extracting(UserBatchResultDto::getIndex).containsExactly(0, 1, 2, 3);
+		assertThat(results).extracting(UserBatchResultDto::getStatus).containsExactly(HttpStatus.CREATED,
+				HttpStatus.UNPROCESSABLE_ENTITY, HttpStatus.BAD_REQUEST, HttpStatus.BAD_REQUEST);
+		assertThat(results.get(0).getUser().getEmail()).isEqualTo(valid.getEmail());
+		assertThat(results.get(1).getErrors()).containsExactly("FIRSTNAME : '' must not be null or blank");
+		assertThat(results.get(2).getErrors())
+				.containsExactly("This email (" + registered.getEmail() + ") is already registered");
+		Mockito.verify(userRepository, Mockito.times(1)).findRegisteredEmails(Mockito.anyCollection());
+		Mockito.verify(userRepository, Mockito.never()).findByEmail(Mockito.anyString());
+	}
+
+	@Test
+	public void testCreateUsers_EmailMissedByFilter_WrittenAgainWithLookup() {
+		UserForm valid = createValidUserForm();
+		UserForm registeredElsewhere = createValidUserForm();
+
+		given(userRepository.findRegisteredEmails(Mockito.anyCollection()))
+				.willReturn(Collections.singleton(registeredElsewhere.getEmail()));
+		given(userRepository.saveAll(Mockito.anyIterable())).willAnswer(invocation -> {
+			List<User> saved = new ArrayList<>();
+			for (User user : (Iterable<User>) invocation.getArgument(0)) {
+				user.setId(RandomUtils.nextLong());
+				saved.add(user);
+			}
+			return saved;
+		});
+		Mockito.doThrow(duplicateEmailViolation()).doNothing().when(userRepository).flush();
+
+		List<UserBatchResultDto> results = userService.createUsers(Arrays.asList(valid, registeredElsewhere));
+
+		assertThat(results).extracting(UserBatchResultDto::getStatus).containsExactly(HttpStatus.CREATED,
+				HttpStatus.BAD_REQUEST);
+		Mockito.verify(userRepository, Mockito.times(1)).findRegisteredEmails(Mockito.anyCollection());
+		Mockito.verify(userRepository, Mockito.times(2)).flush();
+	}
+
+	@Test
+	public void testCreateUsers_TooLarge_Fail() {
+		List<UserForm> forms = Collections.nCopies(UserService.MAX_BATCH_SIZE + 1, createValidUserForm());
+		try {
+			userService.createUsers(forms);
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+			return;
+		}
+		Assertions.fail();
+	}
+
 	@Test
 	public void testEditUser_Success() {
 		UserForm form = createValidUserForm();
@@ -137,7 +387,6 @@ public class UserServiceTest {
 		foundUser.setId(userId);
 
 		given(userRepository.findById(Mockito.anyLong())).willReturn(Optional.of(foundUser));
-		given(userRepository.findByEmail(Mockito.anyString())).willReturn(Optional.empty());
 		given(userRepository.saveAndFlush(Mockito.any())).willReturn(foundUser);
 
 		assertThat(userService.editUser(userId, form).getId()).isEqualTo(userId);
@@ -153,7 +402,7 @@ public class UserServiceTest {
 		Long userId = RandomUtils.nextLong();
 
 		given(userRepository.findById(Mockito.anyLong())).willReturn(Optional.of(createRandomUser()));
-		given(userRepository.findByEmail(Mockito.anyString())).willReturn(Optional.of(createRandomUser()));
+		given(userRepository.saveAndFlush(Mockito.any())).willThrow(duplicateEmailViolation());
 
 		try {
 			userService.editUser(userId, form);
@@ -183,11 +432,26 @@ public class UserServiceTest {
 		Assertions.fail();
 	}
 
+	@Test
+	public void testDeleteUserById_LeavesTombstone() {
+		Long userId = RandomUtils.nextLong();
+		String email = createValidUserForm().getEmail();
+		emailBloomFilter.add(email);
+
+		given(userRepository.findEmailById(userId)).willReturn(Optional.of(email));
+		given(userRepository.deleteUserById(userId)).willReturn(1);
+
+		userService.deleteUserById(userId);
+		Mockito.verify(userTombstoneRepository)
+				.save(Mockito.argThat(tombstone -> userId.equals(tombstone.getId()) && tombstone.getDeletedAt() != null));
+		assertThat(emailBloomFilter.mightBeRegistered(email)).isFalse();
+	}
+
 	@Test
 	public void testDeleteUserById_CannotFindId_Fail() {
 		Long userId = RandomUtils.nextLong();
 
-		given(userRepository.findById(Mockito.anyLong())).willReturn(Optional.empty());
+		given(userRepository.deleteUserById(Mockito.anyLong())).willReturn(0);
 
 		try {
 			userService.deleteUserById(userId);
@@ -195,11 +459,17 @@ public class UserServiceTest {
 			assertThat(ex.getStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
 			assertThat(ex.getMessage()).isEqualTo(
 					"Attempting to delete User with id :" + userId.toString() + " failed. User was not found.");
+			Mockito.verify(userTombstoneRepository, Mockito.never()).save(Mockito.any());
 			return;
 		}
 		Assertions.fail();
 	}
 
+	private DataIntegrityViolationException duplicateEmailViolation() {
+		return new DataIntegrityViolationException("could not execute statement",
+				new ConstraintViolationException("Duplicate entry", new SQLException(), User.UNIQUE_EMAIL_CONSTRAINT));
+	}
+
 	private User createRandomUser() {
 		User user = new User();
 		user.setDateOfBirth(generateRandomPastLocalDate());
@@ -0,0 +1,26 @@
+package com.westnacher.uam.shards;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class ShardRebalanceApplicationTest {
+
+	private ShardRebalancer shardRebalancer = Mockito.mock(ShardRebalancer.class);
+
+	@Test
+	public void testRebalance_Completed_ExitCodeZero() {
+		assertThat(ShardRebalanceApplication.rebalance(shardRebalancer)).isZero();
+		Mockito.verify(shardRebalancer).rebalance();
+	}
+
+	@Test
+	public void testRebalance_Failed_ExitCodeOne() {
+		given(shardRebalancer.rebalance()).willThrow(new IllegalStateException("shard-1 is down"));
+
+		assertThat(ShardRebalanceApplication.rebalance(shardRebalancer)).isEqualTo(1);
+	}
+
+}
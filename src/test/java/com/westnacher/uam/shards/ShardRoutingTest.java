@@ -0,0 +1,166 @@
+package com.westnacher.uam.shards;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.springframework.http.HttpStatus;
+
+import com.westnacher.uam.bulkheads.Bulkheads;
+import com.westnacher.uam.deadlines.RequestDeadline;
+import com.westnacher.uam.exceptions.AccountsManagerException;
+import com.westnacher.uam.generators.KSortedIdGenerator;
+
+public class ShardRoutingTest {
+
+	private static final int USERS = 100_000;
+	private static final RequestDeadline REQUEST_DEADLINE = new RequestDeadline(Duration.ofSeconds(2),
+			Duration.ofSeconds(5), Duration.ofSeconds(30));
+
+	@Test
+	public void testShardOf_KSortedIds_EvenlySpread() {
+		KSortedIdGenerator generator = new KSortedIdGenerator(0);
+		int[] users = new int[4];
+		for (int i = 0; i < USERS; i++) {
+			users[ShardRouting.shardOf(generator.nextId(), users.length)]++;
+		}
+
+		for (int count : users) {
+			assertThat(count).isBetween(USERS / users.length * 9 / 10, USERS / users.length * 11 / 10);
+		}
+	}
+
+	@Test
+	public void testShardOf_AddingShard_MovesOnlyItsShare() {
+		KSortedIdGenerator generator = new KSortedIdGenerator(0);
+		int moved = 0;
+		for (int i = 0; i < USERS; i++) {
+			long id = generator.nextId();
+			int before = ShardRouting.shardOf(id, 4);
+			int after = ShardRouting.shardOf(id, 5);
+			if (before != after) {
+				assertThat(after).isEqualTo(4);
+				moved++;
+			}
+		}
+
+		assertThat(moved).isBetween(USERS / 5 * 9 / 10, USERS / 5 * 11 / 10);
+	}
+
+	@Test
+	public void testEnter_Nested_RestoresPrevious() {
+		ShardRouting shardRouting = shards(3);
+
+		try (ShardRouting.Scope outer = shardRouting.enter(2)) {
+			try (ShardRouting.Scope inner = shardRouting.enter(1)) {
+				assertThat(ShardRouting.currentShard()).isEqualTo(1);
+			}
+			assertThat(ShardRouting.currentShard()).isEqualTo(2);
+		}
+		assertThat(ShardRouting.currentShard()).isEqualTo(ShardRouting.DIRECTORY_SHARD);
+	}
+
+	@Test
+	public void testEnter_UnknownShard_Rejected() {
+		try {
+			shards(3).enter(3);
+		} catch (IllegalArgumentException ex) {
+			return;
+		}
+		Assertions.fail();
+	}
+
+	@Test
+	public void testScatter_RunsOnEveryShard() {
+		ShardRouting shardRouting = shards(3);
+
+		List<Integer> results = shardRouting.scatter(shard -> shard * 10 + ShardRouting.currentShard());
+
+		assertThat(results).containsExactly(0, 11, 22);
+		shardRouting.shutdown();
+	}
+
+	@Test
+	public void testScatter_SingleShard_RunsInCaller() {
+		ShardRouting shardRouting = new ShardRouting(Collections.emptyList(), 1, false);
+		Thread caller = Thread.currentThread();
+
+		assertThat(shardRouting.scatter(shard -> Thread.currentThread() == caller)).containsExactly(true);
+		assertThat(shardRouting.isSharded()).isFalse();
+	}
+
+	@Test
+	public void testScatter_QueryFails_SameException() {
+		ShardRouting shardRouting = shards(3);
+		IllegalStateException failure = new IllegalStateException("shard down");
+
+		try {
+			shardRouting.scatter(shard -> {
+				if (shard == 1) {
+					throw failure;
+				}
+				return shard;
+			});
+		} catch (IllegalStateException ex) {
+			assertThat(ex).isSameAs(failure);
+			return;
+		} finally {
+			shardRouting.shutdown();
+		}
+		Assertions.fail();
+	}
+
+	@Test
+	public void testScatter_Deadline_CarriedToShards() {
+		ShardRouting shardRouting = shards(3);
+		REQUEST_DEADLINE.start("10000", Bulkheads.Type.BULK);
+		try {
+			List<Long> remaining = shardRouting.scatter(shard -> RequestDeadline.remainingMillis());
+
+			assertThat(remaining).hasSize(3).allSatisfy(millis -> assertThat(millis).isBetween(0L, 10_000L));
+		} finally {
+			REQUEST_DEADLINE.clear();
+			shardRouting.shutdown();
+		}
+	}
+
+	@Test
+	public void testScatter_DeadlinePassesWhileWaiting_GatewayTimeout() {
+		ShardRouting shardRouting = shards(3);
+		CountDownLatch slowShard = new CountDownLatch(1);
+		REQUEST_DEADLINE.start("100", Bulkheads.Type.BULK);
+		long start = System.nanoTime();
+		try {
+			shardRouting.scatter(shard -> {
+				if (shard == 1) {
+					try {
+						slowShard.await(1, TimeUnit.MINUTES);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return shard;
+			});
+			Assertions.fail();
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.GATEWAY_TIMEOUT);
+			assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(30));
+		} finally {
+			slowShard.countDown();
+			REQUEST_DEADLINE.clear();
+			shardRouting.shutdown();
+		}
+	}
+
+	private static ShardRouting shards(int count) {
+		return new ShardRouting(Arrays.asList(new String[count]), count, false);
+	}
+
+}
@@ -0,0 +1,432 @@
+package com.westnacher.uam.shards;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.westnacher.uam.dtos.UserBatchResultDto;
+import com.westnacher.uam.dtos.UserChangesDto;
+import com.westnacher.uam.dtos.UserDto;
+import com.westnacher.uam.dtos.UserLookupResultDto;
+import com.westnacher.uam.dtos.UserPageDto;
+import com.westnacher.uam.exceptions.AccountsManagerException;
+import com.westnacher.uam.forms.UserForm;
+import com.westnacher.uam.services.UserService;
+
+/**
+ * Three embedded databases stand in for the shards, the first one also holds
+ * the email directory.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+		"spring.datasource.driverClassName=org.h2.Driver",
+		"spring.datasource.username=sa",
+		"spring.datasource.password=",
+		"spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+		"uam.shards.urls=" + ShardedUserServiceIntegrationTest.SHARD_0_URL + ","
+				+ ShardedUserServiceIntegrationTest.SHARD_1_URL + "," + ShardedUserServiceIntegrationTest.SHARD_2_URL,
+		"uam.shards.rebalance.claim-grace-time=0s",
+		"uam.bloom.emails.enabled=false",
+		"uam.outbox.relay.enabled=false" })
+public class ShardedUserServiceIntegrationTest {
+
+	// ahead of the settle time of /users/changes, so the changes of a test are listed right away
+	@TestConfiguration
+	static class SettledClock {
+
+		@Bean
+		@Primary
+		public Clock settledClock() {
+			return Clock.offset(Clock.systemDefaultZone(), Duration.ofMinutes(1));
+		}
+
+	}
+
+	static final String SHARD_0_URL = "jdbc:h2:mem:uam-shard-0;MODE=MySQL;DB_CLOSE_DELAY=-1";
+	static final String SHARD_1_URL = "jdbc:h2:mem:uam-shard-1;MODE=MySQL;DB_CLOSE_DELAY=-1";
+	static final String SHARD_2_URL = "jdbc:h2:mem:uam-shard-2;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+	private final List<JdbcTemplate> shards = Arrays.asList(shard(SHARD_0_URL), shard(SHARD_1_URL),
+			shard(SHARD_2_URL));
+	private final JdbcTemplate directory = shards.get(ShardRouting.DIRECTORY_SHARD);
+
+	@Autowired
+	private UserService userService;
+
+	@Autowired
+	private ShardRouting shardRouting;
+
+	@Autowired
+	private ShardRebalancer shardRebalancer;
+
+	@Before
+	public void setup() {
+		for (JdbcTemplate shard : shards) {
+			shard.update("DELETE FROM \"user\"");
+			shard.update("DELETE FROM user_tombstone");
+			shard.update("DELETE FROM user_outbox");
+			shard.update("DELETE FROM user_email");
+		}
+	}
+
+	@Test
+	public void testCreateUser_StoredOnShardOfId() {
+		List<UserDto> created = new ArrayList<>();
+		for (int i = 0; i < 30; i++) {
+			created.add(userService.createUser(createValidUserForm(randomEmail())));
+		}
+
+		Set<Integer> usedShards = new HashSet<>();
+		for (UserDto user : created) {
+			int shard = shardRouting.shardOf(user.getId());
+			usedShards.add(shard);
+			assertThat(countUsers(shards.get(shard), user.getId())).isEqualTo(1);
+			assertThat(shards.get(shard).queryForObject("SELECT COUNT(*) FROM user_outbox WHERE user_id = ?",
+					Long.class, user.getId())).isEqualTo(1);
+			assertThat(directory.queryForObject("SELECT user_id FROM user_email WHERE email = ?", Long.class,
+					user.getEmail())).isEqualTo(user.getId());
+			assertThat(userService.getUserById(user.getId()).getEmail()).isEqualTo(user.getEmail());
+		}
+		assertThat(totalUsers()).isEqualTo(created.size());
+		assertThat(usedShards).hasSize(shards.size());
+	}
+
+	@Test
+	public void testCreateUser_EmailTakenOnAnyShard_BadRequest() {
+		String email = randomEmail();
+		userService.createUser(createValidUserForm(email));
+
+		for (int i = 0; i < 5; i++) {
+			try {
+				userService.createUser(createValidUserForm(email));
+				Assertions.fail();
+			} catch (AccountsManagerException ex) {
+				assertThat(ex.getStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+			}
+		}
+		assertThat(totalUsers()).isEqualTo(1);
+	}
+
+	@Test
+	public void testCreateUsers_BatchAcrossShards() {
+		String email = randomEmail();
+		List<UserForm> forms = Arrays.asList(createValidUserForm(email), createValidUserForm(randomEmail()),
+				createValidUserForm(email), createValidUserForm(randomEmail()));
+
+		List<UserBatchResultDto> results = userService.createUsers(forms);
+
+		assertThat(results.stream().map(UserBatchResultDto::getStatus).collect(Collectors.toList()))
+				.containsExactly(HttpStatus.CREATED, HttpStatus.CREATED, HttpStatus.BAD_REQUEST, HttpStatus.CREATED);
+		for (UserBatchResultDto result : results) {
+			if (result.getUser() != null) {
+				assertThat(countUsers(shards.get(shardRouting.shardOf(result.getUser().getId())),
+						result.getUser().getId())).isEqualTo(1);
+			}
+		}
+		assertThat(totalUsers()).isEqualTo(3);
+	}
+
+	@Test
+	public void testUpsertUsersByEmail_UpdatesOnShardOfExistingUser() {
+		String existingEmail = randomEmail();
+		UserDto existing = userService.createUser(createValidUserForm(existingEmail));
+		String newEmail = randomEmail();
+
+		List<UserBatchResultDto> results = userService.upsertUsersByEmail(
+				Arrays.asList(createValidUserForm(existingEmail), createValidUserForm(newEmail)));
+
+		assertThat(results.stream().map(UserBatchResultDto::getStatus).collect(Collectors.toList()))
+				.containsExactly(HttpStatus.OK, HttpStatus.CREATED);
+		assertThat(results.get(0).getUser().getId()).isEqualTo(existing.getId());
+		Long createdId = results.get(1).getUser().getId();
+		assertThat(countUsers(shards.get(shardRouting.shardOf(createdId)), createdId)).isEqualTo(1);
+		assertThat(totalUsers()).isEqualTo(2);
+		assertThat(directory.queryForObject("SELECT user_id FROM user_email WHERE email = ?", Long.class, newEmail))
+				.isEqualTo(createdId);
+	}
+
+	@Test
+	public void testEditUser_ChangedEmail_PreviousReleased() {
+		String previousEmail = randomEmail();
+		String newEmail = randomEmail();
+		UserDto created = userService.createUser(createValidUserForm(previousEmail));
+
+		userService.editUser(created.getId(), createValidUserForm(newEmail));
+
+		assertThat(userService.getUserById(created.getId()).getEmail()).isEqualTo(newEmail);
+		assertThat(userService.createUser(createValidUserForm(previousEmail)).getEmail()).isEqualTo(previousEmail);
+		try {
+			userService.createUser(createValidUserForm(newEmail));
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+			return;
+		}
+		Assertions.fail();
+	}
+
+	@Test
+	public void testEditUserIfVersionMatches_ChangedEmail_PreviousReleased() {
+		String previousEmail = randomEmail();
+		UserDto created = userService.createUser(createValidUserForm(previousEmail));
+
+		userService.editUser(created.getId(), createValidUserForm(randomEmail()), created.getVersion());
+
+		assertThat(userService.createUser(createValidUserForm(previousEmail)).getEmail()).isEqualTo(previousEmail);
+	}
+
+	@Test
+	public void testEditUserIfVersionMatches_StaleVersion_NewEmailNotClaimed() {
+		String newEmail = randomEmail();
+		UserDto created = userService.createUser(createValidUserForm(randomEmail()));
+
+		try {
+			userService.editUser(created.getId(), createValidUserForm(newEmail), created.getVersion() + 1);
+			Assertions.fail();
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.PRECONDITION_FAILED);
+		}
+
+		assertThat(userService.createUser(createValidUserForm(newEmail)).getEmail()).isEqualTo(newEmail);
+	}
+
+	@Test
+	public void testDeleteUserById_EmailReleasedAndTombstoneOnShard() {
+		String email = randomEmail();
+		UserDto created = userService.createUser(createValidUserForm(email));
+		JdbcTemplate shard = shards.get(shardRouting.shardOf(created.getId()));
+
+		userService.deleteUserById(created.getId());
+
+		assertThat(countUsers(shard, created.getId())).isZero();
+		assertThat(shard.queryForObject("SELECT COUNT(*) FROM user_tombstone WHERE user_id = ?", Long.class,
+				created.getId())).isEqualTo(1);
+		assertThat(userService.createUser(createValidUserForm(email)).getEmail()).isEqualTo(email);
+	}
+
+	@Test
+	public void testGetAllUsers_PagesMergedInIdOrder() {
+		List<Long> ids = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			ids.add(userService.createUser(createValidUserForm(randomEmail())).getId());
+		}
+
+		List<Long> paged = new ArrayList<>();
+		String cursor = null;
+		do {
+			UserPageDto page = userService.getAllUsers(cursor, 3);
+			assertThat(page.getETag()).isEqualTo(userService.getAllUsersETag(cursor, 3));
+			page.getUsers().forEach(user -> paged.add(user.getId()));
+			cursor = page.getNextCursor();
+		} while (cursor != null);
+
+		ids.sort(null);
+		assertThat(paged).isEqualTo(ids);
+	}
+
+	@Test
+	public void testGetUsersByIds_GatheredFromAllShardsInRequestOrder() {
+		List<Long> ids = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			ids.add(userService.createUser(createValidUserForm(randomEmail())).getId());
+		}
+		Long missing = RandomUtils.nextLong(1, Long.MAX_VALUE);
+		ids.add(3, missing);
+
+		List<UserLookupResultDto> results = userService.getUsersByIds(ids);
+
+		assertThat(results.stream().map(UserLookupResultDto::getId).collect(Collectors.toList())).isEqualTo(ids);
+		for (UserLookupResultDto result : results) {
+			assertThat(result.getStatus()).isEqualTo(result.getId().equals(missing) ? HttpStatus.NOT_FOUND : HttpStatus.OK);
+		}
+	}
+
+	@Test
+	public void testGetChanges_MergedAcrossShards() {
+		Set<Long> ids = new HashSet<>();
+		for (int i = 0; i < 7; i++) {
+			ids.add(userService.createUser(createValidUserForm(randomEmail())).getId());
+		}
+		Long deletedId = ids.iterator().next();
+		userService.deleteUserById(deletedId);
+		ids.remove(deletedId);
+
+		List<Long> changed = new ArrayList<>();
+		List<Long> deleted = new ArrayList<>();
+		String token = null;
+		UserChangesDto changes;
+		do {
+			changes = userService.getChanges(token, 2);
+			assertThat(changes.getUsers().size()).isLessThanOrEqualTo(2);
+			changes.getUsers().forEach(user -> changed.add(user.getId()));
+			changes.getDeleted().forEach(tombstone -> deleted.add(tombstone.getId()));
+			token = changes.getNextToken();
+		} while (changes.isHasMore());
+
+		assertThat(changed).doesNotHaveDuplicates().containsExactlyInAnyOrderElementsOf(ids);
+		assertThat(deleted).containsExactly(deletedId);
+		assertThat(userService.getChanges(token, 2).getUsers()).isEmpty();
+	}
+
+	@Test
+	public void testGetChanges_TokenOfOtherShardCount_BadRequest() {
+		String singleShardToken = Base64.getUrlEncoder().withoutPadding().encodeToString(
+				"1970-01-01T00:00|1|1970-01-01T00:00|1".getBytes(StandardCharsets.UTF_8));
+
+		try {
+			userService.getChanges(singleShardToken, null);
+		} catch (AccountsManagerException ex) {
+			assertThat(ex.getStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+			return;
+		}
+		Assertions.fail();
+	}
+
+	@Test
+	public void testExportUsers_AllShards() throws Exception {
+		Set<String> emails = new HashSet<>();
+		for (int i = 0; i < 10; i++) {
+			emails.add(userService.createUser(createValidUserForm(randomEmail())).getEmail());
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		userService.exportUsers(out);
+
+		String export = new String(out.toByteArray(), StandardCharsets.UTF_8);
+		assertThat(export.split("\n")).hasSize(emails.size());
+		for (String email : emails) {
+			assertThat(export).contains(email);
+		}
+	}
+
+	@Test
+	public void testRebalance_MovesMisplacedRows() {
+		List<Long> misplaced = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			long id = RandomUtils.nextLong(1, Long.MAX_VALUE);
+			String email = randomEmail();
+			insertUser(shards.get(wrongShard(id)), id, email);
+			directory.update("INSERT INTO user_email (email, user_id, claimed_at) VALUES (?, ?, ?)", email, id,
+					Timestamp.valueOf(LocalDateTime.now().minusHours(1)));
+			misplaced.add(id);
+		}
+		long tombstoneId = RandomUtils.nextLong(1, Long.MAX_VALUE);
+		shards.get(wrongShard(tombstoneId)).update("INSERT INTO user_tombstone (user_id, deleted_at) VALUES (?, ?)",
+				tombstoneId, Timestamp.valueOf(LocalDateTime.now()));
+		UserDto placed = userService.createUser(createValidUserForm(randomEmail()));
+
+		ShardRebalancer.Report report = shardRebalancer.rebalance();
+
+		assertThat(report.getUsersMoved()).isEqualTo(misplaced.size());
+		assertThat(report.getTombstonesMoved()).isEqualTo(1);
+		assertThat(report.getClaimsReleased()).isZero();
+		for (Long id : misplaced) {
+			assertThat(countUsers(shards.get(shardRouting.shardOf(id)), id)).isEqualTo(1);
+			assertThat(userService.getUserById(id).getVersion()).isEqualTo(3);
+		}
+		assertThat(shards.get(shardRouting.shardOf(tombstoneId)).queryForObject(
+				"SELECT COUNT(*) FROM user_tombstone WHERE user_id = ?", Long.class, tombstoneId)).isEqualTo(1);
+		assertThat(totalUsers()).isEqualTo(misplaced.size() + 1);
+		assertThat(userService.getUserById(placed.getId()).getEmail()).isEqualTo(placed.getEmail());
+
+		assertThat(shardRebalancer.rebalance().getUsersMoved()).isZero();
+	}
+
+	@Test
+	public void testRebalance_InterruptedCopy_DuplicateRemoved() {
+		long id = RandomUtils.nextLong(1, Long.MAX_VALUE);
+		String email = randomEmail();
+		insertUser(shards.get(shardRouting.shardOf(id)), id, email);
+		insertUser(shards.get(wrongShard(id)), id, email);
+
+		shardRebalancer.rebalance();
+
+		assertThat(totalUsers()).isEqualTo(1);
+		assertThat(countUsers(shards.get(shardRouting.shardOf(id)), id)).isEqualTo(1);
+	}
+
+	@Test
+	public void testRebalance_StaleClaimsReleased() {
+		UserDto created = userService.createUser(createValidUserForm(randomEmail()));
+		String orphaned = randomEmail();
+		String previous = randomEmail();
+		directory.update("INSERT INTO user_email (email, user_id, claimed_at) VALUES (?, ?, ?)", orphaned,
+				RandomUtils.nextLong(1, Long.MAX_VALUE), Timestamp.valueOf(LocalDateTime.now().minusHours(1)));
+		directory.update("INSERT INTO user_email (email, user_id, claimed_at) VALUES (?, ?, ?)", previous,
+				created.getId(), Timestamp.valueOf(LocalDateTime.now().minusHours(1)));
+
+		ShardRebalancer.Report report = shardRebalancer.rebalance();
+
+		assertThat(report.getClaimsReleased()).isEqualTo(2);
+		assertThat(directory.queryForList("SELECT email FROM user_email", String.class))
+				.containsExactly(created.getEmail());
+		assertThat(userService.createUser(createValidUserForm(orphaned)).getEmail()).isEqualTo(orphaned);
+	}
+
+	private int wrongShard(long id) {
+		return (shardRouting.shardOf(id) + 1) % shards.size();
+	}
+
+	private static void insertUser(JdbcTemplate shard, long id, String email) {
+		shard.update("INSERT INTO \"user\" (id, first_name, last_name, email, date_of_birth, registered_at, "
+				+ "modified_at, version) VALUES (?, 'Sharded', 'User', ?, ?, ?, ?, 3)", id, email,
+				Date.valueOf(LocalDate.of(1990, 1, 1)), Timestamp.valueOf(LocalDateTime.now().minusDays(1)),
+				Timestamp.valueOf(LocalDateTime.now().minusDays(1)));
+	}
+
+	private long totalUsers() {
+		return shards.stream().mapToLong(shard -> shard.queryForObject("SELECT COUNT(*) FROM \"user\"", Long.class))
+				.sum();
+	}
+
+	private static long countUsers(JdbcTemplate shard, Long id) {
+		return shard.queryForObject("SELECT COUNT(*) FROM \"user\" WHERE id = ?", Long.class, id);
+	}
+
+	private static JdbcTemplate shard(String url) {
+		return new JdbcTemplate(new DriverManagerDataSource(url, "sa", ""));
+	}
+
+	private static String randomEmail() {
+		return RandomStringUtils.random(8, true, true) + "@test.com";
+	}
+
+	private static UserForm createValidUserForm(String email) {
+		UserForm form = new UserForm();
+		form.setFirstName("Sharded");
+		form.setLastName("User");
+		form.setEmail(email);
+		form.setDateOfBirth(LocalDate.of(1990, 1, 1));
+		return form;
+	}
+
+}